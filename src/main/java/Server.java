@@ -17,12 +17,23 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Slf4j
 public class Server {
     private static boolean explain = false;
     @Setter
     private Transaction currentTransaction = null;//当前事务
+    private boolean synchronousCommit = true;//会话的提交方式，新事务使用该设置
+    private boolean explicitTransaction = false;//SET TRANSACTION开启的事务，语句执行后不自动提交，由COMMIT或ROLLBACK结束
+
+    //SET [LOCAL] name = value，zql只支持SET TRANSACTION
+    private static final Pattern SET_PATTERN = Pattern.compile("^\\s*SET\\s+(LOCAL\\s+)?(\\w+)\\s*(=|TO)\\s*'?(\\w+)'?\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+    //SAVEPOINT name、ROLLBACK TO [SAVEPOINT] name、RELEASE [SAVEPOINT] name，zql不支持保存点
+    private static final Pattern SAVEPOINT_PATTERN = Pattern.compile("^\\s*(SAVEPOINT|ROLLBACK\\s+TO|RELEASE)(\\s+SAVEPOINT)?\\s+(\\w+)\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+    //语句末尾的LIMIT n，zql不支持LIMIT，解析前去掉后交给查询计划
+    private static final Pattern LIMIT_PATTERN = Pattern.compile("^(.*?)\\s+LIMIT\\s+([1-9]\\d{0,8})\\s*;?\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
     public static void main (String[] args) throws IOException {
         //todo
@@ -35,18 +46,33 @@ public class Server {
 
 
     private void processNextStatement(String sql) {
+        try {
+            if (handleSetStatement(sql) || handleSavepointStatement(sql))
+                return;
+        } catch (common.ParseException e) {
+            System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+            return;
+        }
+        int limit = 0;
+        Matcher m = LIMIT_PATTERN.matcher(sql);
+        boolean hasLimit = m.matches();
+        if (hasLimit) {
+            sql = m.group(1) + ";";
+            limit = Integer.parseInt(m.group(2));
+        }
         ByteArrayInputStream is = new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8));
         try {
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
+            if (hasLimit && !(s instanceof ZQuery)) {
+                throw new common.ParseException("LIMIT is only supported in SELECT statements");
+            }
             Query query = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (currentTransaction==null) {
-                    currentTransaction = new Transaction();
-                    currentTransaction.start();
-                    System.out.println("Started a new transaction tid = " + currentTransaction.getId().getId());
+                    startTransaction(false);
                 }
                 try {
                     if (s instanceof ZInsert)
@@ -54,7 +80,7 @@ public class Server {
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s, currentTransaction.getId());
                     else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s, currentTransaction.getId());
+                        query = handleQueryStatement((ZQuery) s, currentTransaction.getId(), limit);
                     else if (s instanceof ZUpdate)
                         query = handleUpdateStatement((ZUpdate) s, currentTransaction.getId());
                     else {
@@ -64,7 +90,7 @@ public class Server {
                     if (query != null)
                         query.execute();
 
-                    if ( currentTransaction != null) {
+                    if (currentTransaction != null && !explicitTransaction) {
                         currentTransaction.commit();
                         System.out.println("Transaction " + currentTransaction.getId().getId() + " committed.");
                     }
@@ -80,8 +106,10 @@ public class Server {
                         throw (Zql.TokenMgrError) a;
                     throw new DbException(a.getMessage());
                 } finally {
-                    if (currentTransaction!=null&&!currentTransaction.started)
+                    if (currentTransaction!=null&&!currentTransaction.started) {
                         currentTransaction = null;
+                        explicitTransaction = false;
+                    }
                 }
             }
 
@@ -95,34 +123,133 @@ public class Server {
     }
 
     private void handleTransactStatement(ZTransactStmt s) throws IOException, common.ParseException {
+        if (!s.getStmtType().equals("SET TRANSACTION"))
+            explicitTransaction = false;
         switch (s.getStmtType()) {
             case "COMMIT":
                 if (currentTransaction == null)
                     throw new common.ParseException(
                             "No transaction is currently running");
-                currentTransaction.commit();
-                currentTransaction = null;
+                try {
+                    currentTransaction.commit();
+                } catch (TransactionAbortedException e) {
+                    System.out.println("Transaction " + currentTransaction.getId().getId() + " aborted because of a conflicting update.");
+                    currentTransaction = null;
+                    break;
+                }
                 System.out.println("Transaction " + currentTransaction.getId().getId() + " committed.");
+                currentTransaction = null;
                 break;
             case "ROLLBACK":
                 if (currentTransaction == null)
                     throw new common.ParseException("No transaction is currently running");
                 currentTransaction.abort();
-                currentTransaction = null;
                 System.out.println("Transaction " + currentTransaction.getId().getId() + " aborted.");
+                currentTransaction = null;
                 break;
             case "SET TRANSACTION":
                 if (currentTransaction != null)
                     throw new common.ParseException("Can't start new transactions until current transaction has been committed or rolledback.");
-                currentTransaction = new Transaction();
-                currentTransaction.start();
-                System.out.println("Started a new transaction tid = " + currentTransaction.getId().getId());
+                startTransaction(s.isReadOnly());
+                explicitTransaction = true;
                 break;
             default:
                 throw new common.ParseException("Unsupported operation");
         }
     }
 
+    /**
+     * 开启新事务
+     * @param readOnly SET TRANSACTION READ ONLY开启的只读事务，读取开始时的快照，不加锁，和写事务互不阻塞
+     */
+    private void startTransaction(boolean readOnly) {
+        currentTransaction = new Transaction();
+        currentTransaction.setSynchronousCommit(synchronousCommit);
+        currentTransaction.setReadOnly(readOnly);
+        currentTransaction.start();
+        System.out.println("Started a new " + (readOnly ? "read-only " : "") + "transaction tid = " + currentTransaction.getId().getId());
+    }
+
+    /**
+     * 处理会话参数设置，不是参数设置语句时返回false
+     * SET synchronous_commit = on|off 设置会话的提交方式，SET LOCAL只作用于当前事务
+     * SET commit_delay = 毫秒数 设置异步提交的最长刷盘间隔
+     * @param sql
+     * @return
+     * @throws common.ParseException
+     */
+    private boolean handleSetStatement(String sql) throws common.ParseException {
+        Matcher m = SET_PATTERN.matcher(sql);
+        if (!m.matches() || m.group(2).equalsIgnoreCase("TRANSACTION"))
+            return false;
+        boolean local = m.group(1) != null;
+        String name = m.group(2).toLowerCase();
+        String value = m.group(4).toLowerCase();
+        switch (name) {
+            case "synchronous_commit":
+                boolean sync;
+                if (value.equals("on") || value.equals("true")) {
+                    sync = true;
+                } else if (value.equals("off") || value.equals("false")) {
+                    sync = false;
+                } else {
+                    throw new common.ParseException("synchronous_commit must be on or off");
+                }
+                if (local) {
+                    if (currentTransaction == null)
+                        throw new common.ParseException("SET LOCAL requires a running transaction");
+                } else {
+                    synchronousCommit = sync;
+                }
+                if (currentTransaction != null)
+                    currentTransaction.setSynchronousCommit(sync);
+                System.out.println("synchronous_commit = " + (sync ? "on" : "off"));
+                return true;
+            case "commit_delay":
+                try {
+                    Database.getLogFile().setCommitDelay(Long.parseLong(value));
+                } catch (IllegalArgumentException e) {
+                    throw new common.ParseException("commit_delay must be a positive number of milliseconds");
+                }
+                System.out.println("commit_delay = " + Database.getLogFile().getCommitDelay());
+                return true;
+            default:
+                throw new common.ParseException("Unknown parameter " + m.group(2));
+        }
+    }
+
+    /**
+     * 处理保存点语句，不是保存点语句时返回false
+     * 保存点只能在SET TRANSACTION开启的事务中使用，ROLLBACK TO撤销保存点之后的修改，事务继续执行
+     * @param sql
+     * @return
+     * @throws common.ParseException
+     */
+    private boolean handleSavepointStatement(String sql) throws common.ParseException {
+        Matcher m = SAVEPOINT_PATTERN.matcher(sql);
+        if (!m.matches())
+            return false;
+        if (currentTransaction == null || !explicitTransaction)
+            throw new common.ParseException("Savepoints can only be used in a transaction started by SET TRANSACTION");
+        String command = m.group(1).toUpperCase();
+        String name = m.group(3);
+        try {
+            if (command.equals("SAVEPOINT")) {
+                currentTransaction.savepoint(name);
+                System.out.println("Savepoint " + name + " created.");
+            } else if (command.equals("RELEASE")) {
+                currentTransaction.releaseSavepoint(name);
+                System.out.println("Savepoint " + name + " released.");
+            } else {
+                currentTransaction.rollbackTo(name);
+                System.out.println("Rolled back to savepoint " + name + ".");
+            }
+        } catch (DbException e) {
+            throw new common.ParseException(e.getMessage());
+        }
+        return true;
+    }
+
     private Query handleInsertStatement(ZInsert s, TransactionId tId) throws DbException, IOException, common.ParseException, Zql.ParseException {
         int tableId;
         try {
@@ -203,9 +330,17 @@ public class Server {
     }
 
 
-    private Query handleQueryStatement(ZQuery s, TransactionId tId) throws IOException, common.ParseException, Zql.ParseException {
+    /**
+     * 执行查询语句
+     * @param s
+     * @param tId
+     * @param limit 语句的LIMIT，0表示没有
+     * @return
+     */
+    private Query handleQueryStatement(ZQuery s, TransactionId tId, int limit) throws IOException, common.ParseException, Zql.ParseException {
         Query query = new Query(tId);
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
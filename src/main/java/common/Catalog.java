@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import storage.DbFile;
 import heap.HeapFile;
+import index.SecondaryIndex;
 import storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -11,6 +12,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Catalog {
     private List<Table> tables;
@@ -22,6 +24,7 @@ public class Catalog {
         private DbFile file;
         private String name;
         private String pkeyField;
+        private final List<SecondaryIndex> indexes = new CopyOnWriteArrayList<>();//表上的二级索引
 
         @Override
         public String toString() {
@@ -37,6 +40,13 @@ public class Catalog {
         this.tables = new ArrayList<>();
     }
 
+    /**
+     * 添加表，替换同名或同一文件的表
+     * 同一文件重新加入时保留表上的二级索引；换成其他文件时索引项指向的是旧文件中的tuple，索引被一起去掉
+     * @param file
+     * @param name
+     * @param pkeyField
+     */
     public void addTable(DbFile file, String name, String pkeyField) {
         Table table = new Table(file, name, pkeyField);
         for(int i=0;i<this.tables.size();i++){
@@ -45,6 +55,9 @@ public class Catalog {
                 continue;
             }
             if(tmp.getName().equals(name) || tmp.getFile().getId()==file.getId()){
+                if (tmp.getFile().getId() == file.getId()) {
+                    table.getIndexes().addAll(tmp.getIndexes());
+                }
                 this.tables.set(i,table);
                 return;
             }
@@ -62,6 +75,49 @@ public class Catalog {
     }
 
 
+    /**
+     * 添加二级索引，索引文件以索引名加入目录，替换基表上同名的索引
+     * @param index
+     */
+    public void addIndex(SecondaryIndex index) {
+        Table table = getTableById(index.getTableId());
+        if (table == null) {
+            throw new NoSuchElementException();
+        }
+        addTable(index.getFile(), index.getName());
+        table.getIndexes().removeIf(i -> i.getName().equals(index.getName()));
+        table.getIndexes().add(index);
+    }
+
+    /**
+     * 获取表上的二级索引
+     * @param tableId
+     * @return
+     */
+    public List<SecondaryIndex> getIndexes(int tableId) {
+        Table table = getTableById(tableId);
+        if (table == null) {
+            return Collections.emptyList();
+        }
+        return table.getIndexes();
+    }
+
+    /**
+     * 表是否是二级索引的索引文件
+     * @param tableId
+     * @return
+     */
+    public boolean isIndex(int tableId) {
+        for (Table table : this.tables) {
+            for (SecondaryIndex index : table.getIndexes()) {
+                if (index.getFile().getId() == tableId) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public int getTableId(String name) throws NoSuchElementException {
 
         if(name!=null){
@@ -148,6 +204,8 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
                 String primaryKey = "";
+                Map<Integer, SecondaryIndex.Kind> indexFields = new LinkedHashMap<>();//key:索引字段 value:索引类型
+                Map<Integer, List<String>> includedNames = new HashMap<>();//key:索引字段 value:索引中包含的其他字段名
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -159,13 +217,25 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    if (els2.length >= 3) {
+                        if (els2[2].trim().equals("pk") && els2.length == 3)
                             primaryKey = els2[0].trim();
+                        else if (els2[2].trim().equals("index"))
+                            indexFields.put(names.size() - 1, SecondaryIndex.Kind.BTREE);
+                        else if (els2[2].trim().equals("hash"))
+                            indexFields.put(names.size() - 1, SecondaryIndex.Kind.HASH);
                         else {
                             System.out.println("Unknown annotation " + els2[2]);
                             System.exit(0);
                         }
+                        //name type index include f1 f2：索引项中保存的其他字段
+                        if (els2.length > 3) {
+                            if (!els2[3].trim().equals("include") || els2.length == 4) {
+                                System.out.println("Unknown annotation " + els2[3]);
+                                System.exit(0);
+                            }
+                            includedNames.put(names.size() - 1, Arrays.asList(els2).subList(4, els2.length));
+                        }
                     }
                 }
                 Type[] typeAr = types.toArray(new Type[0]);
@@ -174,11 +244,28 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (Map.Entry<Integer, SecondaryIndex.Kind> entry : indexFields.entrySet()) {
+                    int field = entry.getKey();
+                    File indexFile = new File(baseFolder + "/" + name + "_" + namesAr[field] + ".idx");
+                    boolean exists = indexFile.length() > 0;
+                    List<String> included = includedNames.getOrDefault(field, Collections.emptyList());
+                    int[] includedFields = new int[included.size()];
+                    for (int i = 0; i < includedFields.length; i++) {
+                        includedFields[i] = t.fieldNameToIndex(included.get(i).trim());
+                    }
+                    SecondaryIndex index = new SecondaryIndex("idx_" + name + "_" + namesAr[field], tabHf.getId(), field, indexFile, entry.getValue(), includedFields);
+                    addIndex(index);
+                    //索引文件不存在时用表中已有的数据建立
+                    if (!exists && tabHf.numPages() > 0) {
+                        index.build();
+                    }
+                    System.out.println("Added index : " + index.getName() + " on " + name + "." + namesAr[field]);
+                }
             }
-        } catch (IOException e) {
+        } catch (IOException | DbException | TransactionAbortedException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
@@ -2,44 +2,109 @@ package common;
 
 import storage.BufferPool;
 import storage.LogFile;
+import storage.SystemTable;
+import transaction.TransactionMonitor;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * 数据库实例，包含目录、缓冲池、日志和事务监控
+ * 静态方法访问当前线程绑定的实例，没有绑定时访问默认实例
+ * 可以创建多个独立的实例（如分片），通过execute在指定实例上执行操作
+ */
 public class Database {
 
-    private static final AtomicReference<Database> INSTANCE = new AtomicReference<>(new Database());
-    private static final String LOG_FILENAME = "log";
+    /**
+     * 在数据库实例上执行的操作
+     */
+    public interface Task<T> {
+        T run() throws DbException, IOException, TransactionAbortedException;
+    }
+
+    private static final String LOG_FILENAME = "log";//日志目录，存放日志段和MANIFEST
+    private static final ThreadLocal<Database> CURRENT = new ThreadLocal<>();//当前线程绑定的实例
+    private static final AtomicReference<Database> INSTANCE = new AtomicReference<>(createDefault());
 
     private final Catalog catalog;
     private final BufferPool bufferpool;
     private final LogFile logfile;
+    private final TransactionMonitor transactionMonitor;
+
+    /**
+     * 创建独立的数据库实例
+     * @param logDir 日志目录，不同实例不能共用
+     * @throws IOException
+     */
+    public Database(File logDir) throws IOException {
+        this(logDir, logDir.getPath());
+    }
 
-    private Database() {
+    private Database(File logDir, String monitorName) throws IOException {
         catalog = new Catalog();
         bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
-        LogFile tmp = null;
+        logfile = new LogFile(logDir);
+        transactionMonitor = new TransactionMonitor();
+        transactionMonitor.registerMBean(monitorName);
+        //系统表，查询时读取当前的事务和锁
+        catalog.addTable(new SystemTable("sys_transactions", TransactionMonitor.TRANSACTIONS_DESC, transactionMonitor::transactionRows), "sys_transactions");
+        catalog.addTable(new SystemTable("sys_locks", TransactionMonitor.LOCKS_DESC, transactionMonitor::lockRows), "sys_locks");
+    }
+
+    private static Database createDefault() {
         try {
-            tmp = new LogFile(new File(LOG_FILENAME));
+            return new Database(new File(LOG_FILENAME), null);
         } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+            //类初始化时不能退出进程，由第一次访问数据库的调用方看到原因
+            throw new UncheckedIOException("can't open default database log " + LOG_FILENAME, e);
+        }
+    }
+
+    /**
+     * 当前线程绑定的实例，没有绑定时为默认实例
+     * @return
+     */
+    public static Database current() {
+        Database database = CURRENT.get();
+        return database != null ? database : INSTANCE.get();
+    }
+
+    /**
+     * 在本实例上执行操作，执行期间当前线程的静态方法都访问本实例，可以嵌套
+     * @param task
+     * @return 操作的结果
+     */
+    public <T> T execute(Task<T> task) throws DbException, IOException, TransactionAbortedException {
+        Database previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return task.run();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
         }
-        logfile = tmp;
     }
 
 
     public static LogFile getLogFile() {
-        return INSTANCE.get().logfile;
+        return current().logfile;
     }
 
     public static BufferPool getBufferPool() {
-        return INSTANCE.get().bufferpool;
+        return current().bufferpool;
     }
 
     public static Catalog getCatalog() {
-        return INSTANCE.get().catalog;
+        return current().catalog;
+    }
+
+    public static TransactionMonitor getTransactionMonitor() {
+        return current().transactionMonitor;
     }
 
 }
@@ -0,0 +1,120 @@
+package execution;
+
+import lombok.Getter;
+import storage.Field;
+
+import java.io.Serializable;
+
+/**
+ * 索引字段上的取值范围，上下界为null时表示该方向不受限制
+ */
+@Getter
+public class IndexRange implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Field lower;
+    private final boolean lowerInclusive;
+    private final Field upper;
+    private final boolean upperInclusive;
+
+    public IndexRange(Field lower, boolean lowerInclusive, Field upper, boolean upperInclusive) {
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+    }
+
+    /**
+     * 不受限制的范围
+     * @return
+     */
+    public static IndexRange all() {
+        return new IndexRange(null, false, null, false);
+    }
+
+    /**
+     * 索引条件对应的范围
+     * @param ipred
+     * @return 操作符不能表示为范围时返回null
+     */
+    public static IndexRange of(IndexPredicate ipred) {
+        Field v = ipred.getField();
+        switch (ipred.getOp()) {
+            case EQUALS:
+                return new IndexRange(v, true, v, true);
+            case GREATER_THAN:
+                return new IndexRange(v, false, null, false);
+            case GREATER_THAN_OR_EQ:
+                return new IndexRange(v, true, null, false);
+            case LESS_THAN:
+                return new IndexRange(null, false, v, false);
+            case LESS_THAN_OR_EQ:
+                return new IndexRange(null, false, v, true);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 和另一个条件取交集
+     * @param ipred
+     * @return 操作符不能表示为范围时返回null
+     */
+    public IndexRange intersect(IndexPredicate ipred) {
+        IndexRange r = of(ipred);
+        if (r == null) {
+            return null;
+        }
+        Field lo = lower;
+        boolean loInc = lowerInclusive;
+        if (r.lower != null && (lo == null || r.lower.compare(Predicate.Op.GREATER_THAN, lo)
+                || (r.lower.compare(Predicate.Op.EQUALS, lo) && !r.lowerInclusive))) {
+            lo = r.lower;
+            loInc = r.lowerInclusive;
+        }
+        Field hi = upper;
+        boolean hiInc = upperInclusive;
+        if (r.upper != null && (hi == null || r.upper.compare(Predicate.Op.LESS_THAN, hi)
+                || (r.upper.compare(Predicate.Op.EQUALS, hi) && !r.upperInclusive))) {
+            hi = r.upper;
+            hiInc = r.upperInclusive;
+        }
+        return new IndexRange(lo, loInc, hi, hiInc);
+    }
+
+    /**
+     * f是否不低于下界
+     * @param f
+     * @return
+     */
+    public boolean aboveLower(Field f) {
+        return lower == null || f.compare(lowerInclusive ? Predicate.Op.GREATER_THAN_OR_EQ : Predicate.Op.GREATER_THAN, lower);
+    }
+
+    /**
+     * f是否不超过上界
+     * @param f
+     * @return
+     */
+    public boolean belowUpper(Field f) {
+        return upper == null || f.compare(upperInclusive ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN, upper);
+    }
+
+    public boolean contains(Field f) {
+        return aboveLower(f) && belowUpper(f);
+    }
+
+    /**
+     * 是否只包含一个值
+     * @return
+     */
+    public boolean isPoint() {
+        return lower != null && upper != null && lowerInclusive && upperInclusive && lower.compare(Predicate.Op.EQUALS, upper);
+    }
+
+    @Override
+    public String toString() {
+        return (lower == null ? "(-inf" : (lowerInclusive ? "[" : "(") + lower) + ", "
+                + (upper == null ? "+inf)" : upper + (upperInclusive ? "]" : ")"));
+    }
+}
@@ -0,0 +1,166 @@
+package execution;
+
+import common.Database;
+import common.DbException;
+import common.TransactionAbortedException;
+import common.Type;
+import index.IndexFile;
+import index.SecondaryIndex;
+import lombok.Getter;
+import storage.DbFileIterator;
+import storage.Tuple;
+import storage.TupleDesc;
+import transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * 索引扫描，只读取满足索引条件的tuple，输出的tuple和SeqScan相同
+ * 表本身是B+树或哈希文件且条件作用于它的索引字段时按文件组织查找，否则通过二级索引按RecordId读取基表
+ * 按范围扫描时按索引字段的顺序（可以降序）输出，读到范围之外或返回limit个tuple后停止
+ * 只读取覆盖索引时不访问基表，输出的tuple只有索引字段和包含字段
+ */
+@Getter
+public class IndexScan implements OpIterator {
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId transactionId;
+    private int tableId;
+    private SecondaryIndex index;//使用的二级索引，聚簇索引扫描时为null
+    private IndexPredicate predicate;//作用于索引字段的条件，按范围扫描时为null
+    private IndexRange range;//索引字段的范围
+    private boolean descending;//是否按索引字段降序输出
+    private int limit;//最多输出的tuple数，0表示不限制
+    private boolean indexOnly;//是否只读取二级索引
+    private String tableAlias;
+    private DbFileIterator dbFileIterator;
+
+    /**
+     * 通过二级索引扫描基表
+     * @param tid
+     * @param index
+     * @param predicate
+     * @param tableAlias
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate predicate, String tableAlias) {
+        this.transactionId = tid;
+        this.tableId = index.getTableId();
+        this.index = index;
+        this.predicate = predicate;
+        this.tableAlias = tableAlias;
+    }
+
+    /**
+     * 扫描B+树或哈希文件组织的表，条件作用于文件的索引字段
+     * @param tid
+     * @param tableId
+     * @param predicate
+     * @param tableAlias
+     */
+    public IndexScan(TransactionId tid, int tableId, IndexPredicate predicate, String tableAlias) {
+        this.transactionId = tid;
+        this.tableId = tableId;
+        this.predicate = predicate;
+        this.tableAlias = tableAlias;
+    }
+
+    /**
+     * 通过二级索引按索引字段的顺序扫描范围内的tuple
+     * @param tid
+     * @param index B+树索引
+     * @param range
+     * @param descending
+     * @param limit 0表示不限制
+     * @param tableAlias
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexRange range, boolean descending, int limit, String tableAlias) {
+        this(tid, index, range, descending, limit, false, tableAlias);
+    }
+
+    /**
+     * 按索引字段的顺序扫描二级索引范围内的索引项
+     * @param tid
+     * @param index B+树索引
+     * @param range
+     * @param descending
+     * @param limit 0表示不限制
+     * @param indexOnly 只读取索引，输出索引字段和包含字段
+     * @param tableAlias
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexRange range, boolean descending, int limit, boolean indexOnly, String tableAlias) {
+        this.indexOnly = indexOnly;
+        this.transactionId = tid;
+        this.tableId = index.getTableId();
+        this.index = index;
+        this.range = range;
+        this.descending = descending;
+        this.limit = limit;
+        this.tableAlias = tableAlias;
+    }
+
+    /**
+     * 按索引字段的顺序扫描B+树文件组织的表中范围内的tuple
+     * @param tid
+     * @param tableId
+     * @param range
+     * @param descending
+     * @param limit 0表示不限制
+     * @param tableAlias
+     */
+    public IndexScan(TransactionId tid, int tableId, IndexRange range, boolean descending, int limit, String tableAlias) {
+        this.transactionId = tid;
+        this.tableId = tableId;
+        this.range = range;
+        this.descending = descending;
+        this.limit = limit;
+        this.tableAlias = tableAlias;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        if (indexOnly) {
+            this.dbFileIterator = index.coveredIterator(this.transactionId, this.range, this.descending, this.limit);
+        } else if (index != null) {
+            this.dbFileIterator = range != null ? index.rangeIterator(this.transactionId, this.range, this.descending, this.limit)
+                    : index.iterator(this.transactionId, this.predicate);
+        } else {
+            IndexFile indexFile = (IndexFile) Database.getCatalog().getDatabaseFile(this.tableId);
+            this.dbFileIterator = range != null ? indexFile.rangeIterator(this.transactionId, this.range, this.descending, this.limit)
+                    : indexFile.Iterator(this.transactionId, this.predicate);
+        }
+        this.dbFileIterator.open();
+    }
+
+    @Override
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return this.dbFileIterator.hasNext();
+    }
+
+    @Override
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return this.dbFileIterator.next();
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.dbFileIterator.rewind();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        TupleDesc tupleDesc = indexOnly ? index.getCoveredDesc() : Database.getCatalog().getTupleDesc(this.tableId);
+        int itemLen = tupleDesc.getItemLength();
+        Type[] types = new Type[itemLen];
+        String[] fieldNames = new String[itemLen];
+        for(int i=0;i<itemLen;i++){
+            types[i] = tupleDesc.getFieldType(i);
+            fieldNames[i] = this.tableAlias +"."+ tupleDesc.getFieldName(i);
+        }
+        return new TupleDesc(types,fieldNames);
+    }
+
+    @Override
+    public void close() {
+        this.dbFileIterator.close();
+    }
+}
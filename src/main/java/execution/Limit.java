@@ -0,0 +1,70 @@
+package execution;
+
+import common.DbException;
+import common.TransactionAbortedException;
+import storage.Tuple;
+import storage.TupleDesc;
+
+import java.util.NoSuchElementException;
+
+/**
+ * 只输出子节点的前limit个tuple，输出够之后不再从子节点读取
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private int count;//已输出的tuple数
+
+
+    public Limit(int limit, OpIterator child) {
+        this.limit = limit;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        count = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        count = 0;
+    }
+
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (count >= limit || !child.hasNext()) return null;
+        count++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (this.child != children[0]) {
+            this.child = children[0];
+        }
+    }
+
+}
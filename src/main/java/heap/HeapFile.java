@@ -34,7 +34,7 @@ public class HeapFile implements DbFile {
             if(randomAccessFile.read(buf)==-1){
                 return null;
             }
-            heapPage= new HeapPage((HeapPageId) pageId, buf);
+            heapPage = (HeapPage) createPage(pageId, buf);
             randomAccessFile.close();
         } catch (IOException e ) {
             e.printStackTrace();
@@ -42,6 +42,11 @@ public class HeapFile implements DbFile {
         return heapPage;
     }
 
+    @Override
+    public Page createPage(PageId pageId, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pageId, data);
+    }
+
     @Override
     public void writePage(Page page) throws IOException {
         HeapPageId heapPageId = (HeapPageId) page.getId();
@@ -54,31 +59,75 @@ public class HeapFile implements DbFile {
         randomAccessFile.close();
     }
 
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        int size = BufferPool.getPageSize();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            for (Page page : pages) {
+                randomAccessFile.seek((long) page.getId().getPageNumber() * size);
+                randomAccessFile.write(page.getPageData());
+            }
+        }
+    }
+
     @Override
     public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         if (!file.canRead() || !file.canWrite()) {
             throw new IOException();
         }
         List<Page> res = new ArrayList<>();
-        //遍历全部page，找到空的tuple插入
-        for(int i=0;i<numPages();i++){
-            HeapPageId heapPageId = new HeapPageId(getId(),i);
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_ONLY);
-            if (heapPage == null || heapPage.getNumEmptySlots() == 0) {
-                Database.getBufferPool().unsafeReleasePage(tid, heapPageId);
-                continue;
+        //遍历全部page，找到空闲且没有被其他事务锁定的插槽插入，没有则在文件末尾追加一个空page
+        for (int i = 0; ; i++) {
+            if (i >= numPages()) {
+                appendEmptyPage(i);
             }
-            heapPage.insertTuple(t);
-            res.add(heapPage);
-            return res;
-        }
-        //新建一个page
-        HeapPageId heapPageId = new HeapPageId(getId(), numPages());
-        HeapPage heapPage = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
-        heapPage.insertTuple(t);
-        writePage(heapPage);
-        res.add(heapPage);
-        return res;
+            HeapPage heapPage = insertIntoPage(tid, new HeapPageId(getId(), i), t);
+            if (heapPage != null) {
+                res.add(heapPage);
+                return res;
+            }
+        }
+    }
+
+    /**
+     * 在页面中找一个空闲且能加上行锁的插槽插入tuple，页面只加意向锁，其他事务可以同时修改其他行
+     * @param tid
+     * @param heapPageId
+     * @param t
+     * @return 没有可用插槽时返回null
+     */
+    private HeapPage insertIntoPage(TransactionId tid, HeapPageId heapPageId, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        boolean held = bufferPool.holdsLock(tid, heapPageId);
+        HeapPage heapPage = (HeapPage) bufferPool.getIntentionPage(tid, heapPageId, Permissions.READ_WRITE);
+        synchronized (heapPage) {
+            for (int i = 0; i < heapPage.getNumSlots(); i++) {
+                if (heapPage.isSlotUsed(i)) {
+                    continue;
+                }
+                //删除后还未提交的插槽仍被删除的事务锁定，不能复用
+                if (bufferPool.tryLockRow(tid, new RecordId(heapPageId, i), Permissions.READ_WRITE)) {
+                    heapPage.insertTuple(t, i);
+                    bufferPool.rowChanged(tid, heapPage, TupleChange.Op.INSERT, t);
+                    return heapPage;
+                }
+            }
+        }
+        if (!held) {
+            bufferPool.unsafeReleasePage(tid, heapPageId);
+        }
+        return null;
+    }
+
+    /**
+     * 在文件末尾追加空page，其他事务已经追加过时忽略
+     * @param pageNumber
+     * @throws IOException
+     */
+    private synchronized void appendEmptyPage(int pageNumber) throws IOException {
+        if (numPages() == pageNumber) {
+            writePage(new HeapPage(new HeapPageId(getId(), pageNumber), HeapPage.createEmptyPageData()));
+        }
     }
 
     /**
@@ -93,12 +142,15 @@ public class HeapFile implements DbFile {
     @Override
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> res = new ArrayList<>();
-        HeapPageId heapPageId  = (HeapPageId) t.getRecordId().getPageId();
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
+        //只锁定要删除的行
+        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,t.getRecordId(),Permissions.READ_WRITE);
         if(heapPage==null){
             throw new DbException("null");
         }
-        heapPage.deleteTuple(t);
+        synchronized (heapPage) {
+            heapPage.deleteTuple(t);
+            Database.getBufferPool().rowChanged(tid, heapPage, TupleChange.Op.DELETE, t);
+        }
         res.add(heapPage);
         return res;
     }
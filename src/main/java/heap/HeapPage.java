@@ -11,7 +11,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
-public class HeapPage implements Page {
+public class HeapPage implements RowPage {
 
     private final HeapPageId pid;
     private final TupleDesc td;
@@ -21,6 +21,7 @@ public class HeapPage implements Page {
 
     private Boolean dirty;
     private TransactionId transactionId;
+    private byte[] oldData;//修改前镜像
 
     public HeapPage(HeapPageId pid, byte[] data) throws IOException {
         this.pid = pid;
@@ -41,6 +42,8 @@ public class HeapPage implements Page {
             e.printStackTrace();
         }
         dis.close();
+
+        setBeforeImage();
     }
 
     /**
@@ -69,6 +72,24 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * 插入tuple到指定的空插槽，按行加锁时由调用方选择已锁定的插槽
+     * @param t
+     * @param slot
+     * @throws DbException
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if(!t.getTupleDesc().equals(this.td)){
+            throw new DbException("insert tuple err");
+        }
+        if(isSlotUsed(slot)){
+            throw new DbException("slot " + slot + " is used");
+        }
+        tuples[slot] = t;
+        tuples[slot].setRecordId(new RecordId(pid, slot));
+        markSlotUsed(slot, true);
+    }
+
     /**
      * 删除tuple
      * @param t
@@ -84,6 +105,19 @@ public class HeapPage implements Page {
         throw new DbException("tuple is not in tuples");
     }
 
+    @Override
+    public void restoreTuple(Tuple t) {
+        int slot = t.getRecordId().getTupleNumber();
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+    }
+
+    @Override
+    public void clearSlot(int slot) {
+        tuples[slot] = null;
+        markSlotUsed(slot, false);
+    }
+
     public static byte[] createEmptyPageData() {
         int len = BufferPool.getPageSize();
         return new byte[len];
@@ -104,6 +138,10 @@ public class HeapPage implements Page {
     }
 
 
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * 计算每一页的tuple数量
      * @return
@@ -114,6 +152,29 @@ public class HeapPage implements Page {
 
     }
 
+    @Override
+    public HeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (this) {
+                oldDataRef = oldData;
+            }
+            return new HeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            //页面已经成功解析过，不会发生
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return null;
+    }
+
+    @Override
+    public void setBeforeImage(byte[] data) {
+        synchronized (this) {
+            oldData = data.clone();
+        }
+    }
+
     /**
      * 计算head大小
      * @return
@@ -162,6 +223,7 @@ public class HeapPage implements Page {
      * @param i
      * @return true 不为空 false 为空
      */
+    @Override
     public boolean isSlotUsed(int i) {
         int index = i/8;
         int offset = i%8;
@@ -185,6 +247,18 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * 获取插槽中的tuple
+     * @param slot
+     * @return 插槽为空或不存在时返回null
+     */
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            return null;
+        }
+        return tuples[slot];
+    }
+
     public Iterator<Tuple> iterator() {
         List<Tuple> tuples = new ArrayList<>();
         for(int i=0;i<numSlots;i++){
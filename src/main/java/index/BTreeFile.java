@@ -4,22 +4,33 @@ import common.Database;
 import common.DbException;
 import common.Permissions;
 import common.TransactionAbortedException;
+import common.Type;
 import execution.IndexPredicate;
+import execution.IndexRange;
 import execution.Predicate;
 import lombok.extern.slf4j.Slf4j;
 import storage.*;
+import transaction.Transaction;
 import transaction.TransactionId;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.Function;
 
 
 @Slf4j
-public class BTreeFile implements DbFile {
+public class BTreeFile implements IndexFile {
+    private static final int BLOOM_MIN_KEYS = 1024;//重建布隆过滤器时至少按这么多key计算大小
     private final File f;
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;//主键字段id
+    private volatile double bloomFalsePositiveRate = 0;//0表示没有使用布隆过滤器
+    private volatile BloomFilter bloomFilter = null;//还没有建立时为null，查找时不使用
+    private volatile boolean bloomFileMayExist = true;//磁盘上可能有保存的过滤器文件，打开文件时不知道之前是否保存过
+    private final Object bloomFileLock = new Object();
 
     public BTreeFile(File f, int key, TupleDesc td) {
         this.f = f;
@@ -44,7 +55,7 @@ public class BTreeFile implements DbFile {
                     throw new IllegalArgumentException("Unable to read " + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
                 }
                 log.info("BTreeFile.readPage: read page {}", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
+                return createPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
                 if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) != BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
@@ -58,20 +69,28 @@ public class BTreeFile implements DbFile {
                     throw new IllegalArgumentException("Unable to read " + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 log.info("BTreeFile.readPage: read page {}", id.getPageNumber());
-                //分别是三种节点
-                if (id.getPageCategory() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.getPageCategory() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else {
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
+                return createPage(id, pageBuf);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        BTreePageId id = (BTreePageId) pid;
+        //分别是根节点指针和三种节点
+        if (id.getPageCategory() == BTreePageId.ROOT_PTR) {
+            return new BTreeRootPtrPage(id, data);
+        } else if (id.getPageCategory() == BTreePageId.INTERNAL) {
+            return new BTreeInternalPage(id, data, keyField);
+        } else if (id.getPageCategory() == BTreePageId.LEAF) {
+            return new BTreeLeafPage(id, data, keyField);
+        } else {
+            return new BTreeHeaderPage(id, data);
+        }
+    }
+
     @Override
     public void writePage(Page page) throws IOException {
         BTreePageId id = (BTreePageId) page.getId();
@@ -88,27 +107,46 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+            for (Page page : pages) {
+                BTreePageId id = (BTreePageId) page.getId();
+                if (id.getPageCategory() == BTreePageId.ROOT_PTR) {
+                    rf.seek(0);
+                } else {
+                    rf.seek(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize());
+                }
+                rf.write(page.getPageData());
+            }
+        }
+    }
+
     @Override
     public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         Map<PageId, Page> dirtypages = new HashMap<>();
 
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if(rootId == null) {
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
+        //寻找插入的叶节点，从根指针开始查找，不对根指针和内部页面加锁
+        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE, t.getField(keyField));
+        if(leafPage == null) {
+            //树为空，加锁创建根节点
+            BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+            BTreePageId rootId = rootPtr.getRootId();
+            if(rootId == null) {
+                rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+                rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                rootPtr.setRootId(rootId);
+            }
+            leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
         }
-
-        //寻找插入的叶节点
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
         //叶节点没有空位就分裂
         if(leafPage.getNumEmptySlots() == 0) {
             leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
         }
 
         leafPage.insertTuple(t);
+        //已对叶节点加写锁，重建过滤器的扫描要么还没读到这个叶节点，要么已经替换了过滤器
+        addToBloomFilter(t.getField(keyField));
 
         return new ArrayList<>(dirtypages.values());
     }
@@ -120,6 +158,10 @@ public class BTreeFile implements DbFile {
         BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(), BTreePageId.LEAF);
         BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        BloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.recordDelete();
+        }
 
         //空位超过一半
         int maxEmptySlots =  (page.getMaxTuples()+1)/2;
@@ -135,8 +177,29 @@ public class BTreeFile implements DbFile {
         return new BTreeFileIterator(this, tid);
     }
 
+    @Override
     public DbFileIterator Iterator(TransactionId tid, IndexPredicate ipred) {
-        return new BTreeSearchIterator(this, tid, ipred);
+        IndexRange range = IndexRange.of(ipred);
+        if (range == null) {
+            //不能表示为范围的条件扫描所有叶节点，逐个tuple检查
+            return new BTreeSearchIterator(this, tid, IndexRange.all(), false, 0, ipred);
+        }
+        return new BTreeSearchIterator(this, tid, range, false, 0, null);
+    }
+
+    @Override
+    public DbFileIterator rangeIterator(TransactionId tid, IndexRange range, boolean descending, int limit) {
+        return new BTreeSearchIterator(this, tid, range, descending, limit, null);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
     }
 
     @Override
@@ -149,60 +212,346 @@ public class BTreeFile implements DbFile {
         return td;
     }
 
+    public File getFile() {
+        return f;
+    }
+
+    @Override
     public int numPages() {
         //只有完整的页
         return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
     }
 
+    @Override
     public int keyField() {
         return keyField;
     }
 
+    /**
+     * 在索引字段上使用布隆过滤器，等值查找判断key不存在时不从根节点查找叶节点
+     * 有saveBloomFilter保存的过滤器文件时直接读取，否则在一个事务中扫描所有叶节点建立
+     * 过滤器判断不存在时不读取页面也不加锁，其他事务之后插入的这个key在同一事务中可能被查找到；
+     * 快照事务和乐观事务读取的不是最新的页面，不使用过滤器
+     * @param falsePositiveRate 建立时的误判率，在0到1之间
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    public void enableBloomFilter(double falsePositiveRate) throws DbException, IOException, TransactionAbortedException {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        }
+        bloomFalsePositiveRate = falsePositiveRate;
+        File saved = getBloomFile();
+        if (saved.exists()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(saved)))) {
+                synchronized (bloomFileLock) {
+                    bloomFilter = BloomFilter.readFrom(dis);
+                    bloomFileMayExist = true;
+                }
+                return;
+            } catch (IOException e) {
+                log.warn("ignore bloom filter file {}: {}", saved, e.getMessage());
+            }
+        }
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            rebuildBloomFilter(t.getId());
+            t.commit();
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            t.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * 扫描所有叶节点重新建立布隆过滤器，去掉已删除的key，按现有的key数重新计算大小
+     * 扫描对读过的叶节点加读锁直到事务结束，新的过滤器在事务结束前替换旧的，
+     * 并发插入的key要么在扫描读到叶节点之前插入，要么等替换之后才能拿到叶节点的写锁，都不会漏掉
+     * @param tid 加锁读取的事务
+     * @throws DbException 没有使用布隆过滤器，或者是快照事务、乐观事务
+     * @throws TransactionAbortedException
+     */
+    public void rebuildBloomFilter(TransactionId tid) throws DbException, TransactionAbortedException {
+        if (bloomFalsePositiveRate == 0) {
+            throw new DbException("bloom filter is not enabled on btree file " + tableid);
+        }
+        if (!Database.getBufferPool().readsLatest(tid)) {
+            throw new DbException("bloom filter must be rebuilt by a locking transaction");
+        }
+        //先收集哈希值，知道key数后再确定过滤器的大小
+        long[] hashes = new long[1024];
+        int n = 0;
+        DbFileIterator it = iterator(tid);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                if (n == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, n * 2);
+                }
+                hashes[n++] = BloomFilter.hash(it.next().getField(keyField));
+            }
+        } finally {
+            it.close();
+        }
+        //留出一倍的空间给之后插入的key
+        BloomFilter filter = BloomFilter.create(Math.max(BLOOM_MIN_KEYS, 2 * n), bloomFalsePositiveRate);
+        for (int i = 0; i < n; i++) {
+            filter.add(hashes[i]);
+        }
+        synchronized (bloomFileLock) {
+            bloomFilter = filter;
+            invalidateBloomFile();
+        }
+    }
+
+    /**
+     * 插入和删除太多后过滤器的误判率升高，需要重新建立；使用了过滤器但还没有建立时也返回true
+     * @return
+     */
+    public boolean isBloomFilterStale() {
+        BloomFilter filter = bloomFilter;
+        return bloomFalsePositiveRate > 0 && (filter == null || filter.isStale());
+    }
+
+    /**
+     * 把布隆过滤器保存到索引文件旁边，下次使用时不需要扫描重建
+     * 保存之后第一次插入时删除保存的文件，没有使用过滤器的插入也会删除，之后不会读到缺少key的过滤器
+     * @throws IOException
+     */
+    public void saveBloomFilter() throws IOException {
+        synchronized (bloomFileLock) {
+            BloomFilter filter = bloomFilter;
+            if (filter == null) {
+                return;
+            }
+            //先标记再读取过滤器，之后的插入一定会删除这次保存的文件
+            bloomFileMayExist = true;
+            File saved = getBloomFile();
+            File tmp = new File(saved.getPath() + ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                filter.writeTo(dos);
+            }
+            Files.move(tmp.toPath(), saved.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * 等值查找前判断key是否可能存在
+     * @param tid
+     * @param key
+     * @return false时key一定不存在
+     */
+    boolean mightContain(TransactionId tid, Field key) {
+        BloomFilter filter = bloomFilter;
+        return filter == null || !Database.getBufferPool().readsLatest(tid) || filter.mightContain(key);
+    }
+
+    /**
+     * 插入key后记录到布隆过滤器中，事务回滚时不能去掉，只是多一个误判
+     * 没有使用过滤器时也要删除保存的过滤器文件，否则之后使用时读到的过滤器缺少这个key
+     * @param key
+     */
+    void addToBloomFilter(Field key) {
+        BloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.add(key);
+        }
+        if (bloomFileMayExist) {
+            synchronized (bloomFileLock) {
+                invalidateBloomFile();
+            }
+        }
+    }
+
+    private void invalidateBloomFile() {
+        if (bloomFileMayExist) {
+            bloomFileMayExist = false;
+            getBloomFile().delete();
+        }
+    }
+
+    private File getBloomFile() {
+        return new File(f.getPath() + ".bloom");
+    }
+
     public BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Field f) throws DbException, TransactionAbortedException {
         return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
     }
 
     /**
-     * 寻找主键f所在叶节点
+     * 寻找最后一个key小于等于f（inclusive为false时小于f）的tuple可能所在的叶节点，作为降序扫描的起点
      * @param tid
-     * @param dirtypages
-     * @param pid
-     * @param perm
-     * @param f
-     * @return
+     * @param pid 开始查找的页面，可以是根指针
+     * @param f 为空时返回最右边的叶节点
+     * @param inclusive
+     * @return 树为空时返回null
      * @throws DbException
      * @throws TransactionAbortedException
      */
+    public BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Field f, boolean inclusive) throws DbException, TransactionAbortedException {
+        return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, p -> p.findLastChild(f, inclusive));
+    }
+
     private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Field f) throws DbException, TransactionAbortedException {
-        //1. 如果是叶子节点，直接返回
-        if(pid.getPageCategory() == BTreePageId.LEAF){
-            return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
+        //当有重复值的时候 节点分裂有可能一半在左边一半在右边，所以等于key时进入左子节点
+        return findLeafPage(tid, dirtypages, pid, perm, p -> p.findChild(f));
+    }
+
+    /**
+     * 沿descent选择的子节点寻找叶节点
+     * 根指针和内部页面不加事务锁，用页面latch保护读取，只对叶节点加锁，加锁后校验经过的页面没有被其他事务修改
+     * 经过的页面正在被修改或校验失败时，改为对路径上的页面加锁查找
+     * @param tid
+     * @param dirtypages
+     * @param pid 开始查找的页面，可以是根指针
+     * @param perm 叶节点的权限
+     * @param descent 在内部节点中选择子节点
+     * @return 树为空时返回null
+     * @throws DbException
+     * @throws TransactionAbortedException
+     */
+    private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Function<BTreeInternalPage, BTreePageId> descent) throws DbException, TransactionAbortedException {
+        Optional<BTreeLeafPage> leaf = findLatchedLeafPage(tid, dirtypages, pid, perm, descent);
+        if (leaf != null) {
+            return leaf.orElse(null);
         }
-        BTreeInternalPage page = (BTreeInternalPage) getPage(tid,dirtypages,pid,perm);
-        Iterator<BTreeEntry> iterator = page.iterator();
-        //2. 如果filed为空，找到最左边的节点
-        if(f==null){
-            if(iterator.hasNext()){
-                return findLeafPage(tid,dirtypages,iterator.next().getLeftChild(),perm,f);
-            }
+        return findLockedLeafPage(tid, dirtypages, pid, perm, descent);
+    }
+
+    /**
+     * 用页面latch读取根指针和内部页面寻找叶节点
+     * @return 需要改为加锁查找时返回null
+     */
+    private Optional<BTreeLeafPage> findLatchedLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Function<BTreeInternalPage, BTreePageId> descent) throws DbException, TransactionAbortedException {
+        //文件为空时需要加锁初始化根指针
+        if (this.f.length() == 0) {
             return null;
         }
+        BufferPool bufferPool = Database.getBufferPool();
+        Map<PageId, Long> path = new HashMap<>();//key:经过的页面 value:读取前的页面版本号
+        BTreePageId cur = pid;
+        while (cur.getPageCategory() != BTreePageId.LEAF) {
+            if (dirtypages.containsKey(cur)) {
+                return null;
+            }
+            long version = bufferPool.getPageVersion(cur);
+            Optional<BTreePageId> child = bufferPool.readLatched(tid, cur, page -> Optional.ofNullable(childOf(page, descent)));
+            if (child == null) {
+                return null;
+            }
+            if (!child.isPresent()) {
+                return Optional.empty();
+            }
+            path.put(cur, version);
+            cur = child.get();
+        }
+        BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, cur, perm);
+        //持有叶节点的锁之后，移动叶节点中记录的分裂、合并都需要修改路径上的页面
+        for (Map.Entry<PageId, Long> entry : path.entrySet()) {
+            if (!bufferPool.isUnchanged(entry.getKey(), entry.getValue())) {
+                return null;
+            }
+        }
+        return Optional.of(leaf);
+    }
 
-        BTreeEntry next = null;
-        //3. 否则，内部节点查找符合条件的entry，并递归查找
-        while(iterator.hasNext()){
-            next =  iterator.next();
-            Field key = next.getKey();
-            //当有重复值的时候 节点分裂有可能一半在左边一半在右边，所以是小于等于
-            if(f.compare(Predicate.Op.LESS_THAN_OR_EQ,key)){
-                return findLeafPage(tid,dirtypages,next.getLeftChild(),perm,f);
+    /**
+     * 对路径上的页面加锁寻找主键f所在叶节点（latch crabbing）
+     * 根指针和内部页面加锁但不登记修改，其他事务仍可以用latch读取，确定要分裂时再登记
+     * 子节点加锁后如果是安全的，释放之前经过的页面的锁：查找时总是安全，插入时子节点有空位，分裂不会影响上层页面
+     * 只有可能因为分裂被修改的页面持有锁到事务结束
+     */
+    private BTreeLeafPage findLockedLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Function<BTreeInternalPage, BTreePageId> descent) throws DbException, TransactionAbortedException {
+        try {
+            createIfEmpty();
+        } catch (IOException e) {
+            throw new DbException("create root pointer failed: " + e.getMessage());
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        List<Page> held = new ArrayList<>();//加锁经过且还没有释放锁的页面
+        BTreePageId cur = pid;
+        while (cur.getPageCategory() != BTreePageId.LEAF) {
+            Page page = dirtypages.containsKey(cur) ? dirtypages.get(cur) : bufferPool.lockPage(tid, cur, perm);
+            if (isSafe(page, perm)) {
+                releaseLocks(tid, dirtypages, held);
             }
+            held.add(page);
+            BTreePageId child = childOf(page, descent);
+            if (child == null) {
+                return null;
+            }
+            cur = child;
         }
-        //最后一个entry的右子节点
-        if(next!=null){
-            return findLeafPage(tid,dirtypages,next.getRightChild(),perm,f);
+        BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, cur, perm);
+        if (isSafe(leaf, perm)) {
+            releaseLocks(tid, dirtypages, held);
         }
-        return null;
+        return leaf;
+    }
+
+    /**
+     * 页面加锁后，上层页面是否不会再被修改
+     * @param page
+     * @param perm
+     * @return 根指针只有在根节点安全时才能释放，总是返回false
+     */
+    private boolean isSafe(Page page, Permissions perm) {
+        if (perm == Permissions.READ_ONLY) {
+            return true;
+        }
+        return page instanceof BTreePage && ((BTreePage) page).getNumEmptySlots() > 0;
+    }
+
+    /**
+     * 释放经过的页面的锁，事务已修改或将要修改的页面除外
+     * @param tid
+     * @param dirtypages
+     * @param held
+     */
+    private void releaseLocks(TransactionId tid, Map<PageId, Page> dirtypages, List<Page> held) {
+        for (Page page : held) {
+            if (!dirtypages.containsKey(page.getId()) && page.isDirty() == null) {
+                Database.getBufferPool().unsafeReleasePage(tid, page.getId());
+            }
+        }
+        held.clear();
+    }
+
+    /**
+     * 根指针或内部节点中查找经过的子节点
+     * @param p
+     * @param descent 在内部节点中选择子节点
+     * @return 树或页面为空时返回null
+     */
+    private BTreePageId childOf(Page p, Function<BTreeInternalPage, BTreePageId> descent) {
+        if (p instanceof BTreeRootPtrPage) {
+            return ((BTreeRootPtrPage) p).getRootId();
+        }
+        return descent.apply((BTreeInternalPage) p);
+    }
+
+    /**
+     * 相邻两个叶节点之间的分隔key（后缀截断）：右节点最小key的最短前缀，且不小于左节点的最大key
+     * 字符串key截断后内部节点能存放更多的项
+     * @param left 左节点的最大key
+     * @param right 右节点的最小key
+     * @return
+     */
+    static Field separatorOf(Field left, Field right) {
+        if (!(right instanceof StringField)) {
+            return right;
+        }
+        String l = ((StringField) left).getValue();
+        String r = ((StringField) right).getValue();
+        int common = 0;
+        while (common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common)) {
+            common++;
+        }
+        //左key是共同前缀时它本身就是最短的分隔key，否则多取一个不同的字符
+        int len = common == l.length() ? common : Math.min(common + 1, r.length());
+        return new StringField(r.substring(0, len), Type.STRING_LEN);
     }
 
     /**
@@ -218,21 +567,21 @@ public class BTreeFile implements DbFile {
      */
     public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
             throws DbException, IOException, TransactionAbortedException {
-        //1. 将当前page的后半部分放入新page
-        int half = page.getNumTuples()/2;
+        //1. 将当前page的后半部分放入新page，tuple变长，按已用空间分成两半
         BTreeLeafPage newPage = (BTreeLeafPage)getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
         Iterator<Tuple> iterator = page.reverseIterator();
-        while(iterator.hasNext() && half>0){
-            Tuple next = iterator.next();
+        Tuple first = null;
+        while(iterator.hasNext() && page.getNumTuples()>1 && newPage.getUsedSpace()<page.getUsedSpace()){
+            first = iterator.next();
             //从旧页中删除，插入新页
-            page.deleteTuple(next);
-            newPage.insertTuple(next);
-            half--;
+            page.deleteTuple(first);
+            newPage.insertTuple(first);
         }
-        //2. 将中间tuple插入父节点
+        //2. 将两页之间截断后的分隔key插入父节点
         Tuple up = iterator.next();
+        Field separator = separatorOf(up.getField(keyField), first.getField(keyField));
         BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
-        BTreeEntry insertEntry = new BTreeEntry(up.getField(keyField), page.getId(), newPage.getId());
+        BTreeEntry insertEntry = new BTreeEntry(separator, page.getId(), newPage.getId());
         parentPage.insertEntry(insertEntry);
         //3. 设置节点间的关系
         if(page.getRightSiblingId()!=null){
@@ -253,7 +602,7 @@ public class BTreeFile implements DbFile {
         dirtypages.put(newPage.getId(),newPage);
 
         //5. 返回要插入field的页
-        if (field.compare(Predicate.Op.GREATER_THAN_OR_EQ, up.getField(keyField))) {
+        if (field.compare(Predicate.Op.GREATER_THAN_OR_EQ, separator)) {
             return newPage;
         }
         return page;
@@ -306,15 +655,13 @@ public class BTreeFile implements DbFile {
      */
     private BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page, Field field)
             throws DbException, IOException, TransactionAbortedException {
-        //1. 将当前page的后半部分放入新page
-        int half = page.getNumEntries()/2;
+        //1. 将当前page的后半部分放入新page，key变长，按已用空间分成两半
         BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
         Iterator<BTreeEntry> iterator = page.reverseIterator();
-        while(iterator.hasNext() && half>0){
+        while(iterator.hasNext() && page.getNumEntries()>1 && newPage.getUsedSpace()<page.getUsedSpace()){
             BTreeEntry next = iterator.next();
             page.deleteKeyAndRightChild(next);
             newPage.insertEntry(next);
-            half--;
         }
         //2. 将中间entry插入父节点，并从原来的节点删除
         BTreeEntry up = iterator.next();
@@ -454,7 +801,7 @@ public class BTreeFile implements DbFile {
             if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
             }
-            else {
+            else if(!splitParentForSteal(tid, dirtypages, page, parent, leftEntry)) {
                 stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
             }
         }
@@ -464,7 +811,7 @@ public class BTreeFile implements DbFile {
             if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
             }
-            else {
+            else if(!splitParentForSteal(tid, dirtypages, page, parent, rightEntry)) {
                 stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
             }
         }
@@ -487,7 +834,7 @@ public class BTreeFile implements DbFile {
             if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
             }
-            else {
+            else if(!splitParentForSteal(tid, dirtypages, page, parent, leftEntry)) {
                 stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
             }
         }
@@ -497,16 +844,34 @@ public class BTreeFile implements DbFile {
             if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
             }
-            else {
+            else if(!splitParentForSteal(tid, dirtypages, page, parent, rightEntry)) {
                 stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
             }
         }
     }
 
+    /**
+     * 窃取后父节点中的key会被替换，变长的key可能变长，父节点没有空位时先分裂父节点，再重新处理page
+     * @param tid
+     * @param dirtypages
+     * @param page 空位超过一半的page
+     * @param parent
+     * @param entry page和兄弟节点之间的父entry
+     * @return 父节点是否被分裂
+     */
+    private boolean splitParentForSteal(TransactionId tid, Map<PageId, Page> dirtypages, BTreePage page, BTreeInternalPage parent, BTreeEntry entry)
+            throws DbException, IOException, TransactionAbortedException {
+        if(parent.getNumEmptySlots() > 0) {
+            return false;
+        }
+        splitInternalPage(tid, dirtypages, parent, entry.getKey());
+        handleMinOccupancyPage(tid, dirtypages, page);
+        return true;
+    }
+
     private void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling, BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-        //1. 获取要窃取的tuple个数，平均数量-原来数量
-        int stealNum = ((page.getNumTuples()+sibling.getNumTuples())/2) - page.getNumTuples();
-        if(stealNum<=0){
+        //1. 已用空间不少于兄弟节点则不窃取，tuple变长，按已用空间平分，兄弟节点至少留下一个tuple
+        if(page.getUsedSpace()>=sibling.getUsedSpace() || sibling.getNumTuples()<2){
             return;
         }
         //2. 判断是从左还是右节点窃取，并获取迭代器
@@ -517,27 +882,22 @@ public class BTreeFile implements DbFile {
             tupleIterator = sibling.reverseIterator();
         }
         //3. 进行窃取
-        Tuple next = null;
-        while(stealNum>0){
-            next = tupleIterator.next();
+        while(sibling.getNumTuples()>1 && page.getUsedSpace()<sibling.getUsedSpace()){
+            Tuple next = tupleIterator.next();
             sibling.deleteTuple(next);
             page.insertTuple(next);
-            stealNum--;
-        }
-        //4. 新建一个entry插入父节点
-        if(isRightSibling){
-            entry.setKey(tupleIterator.next().getField(keyField));
-        }else{
-            entry.setKey(next.getField(keyField));
         }
+        //4. 用两页之间截断后的分隔key更新父节点的entry
+        BTreeLeafPage left = isRightSibling ? page : sibling;
+        BTreeLeafPage right = isRightSibling ? sibling : page;
+        entry.setKey(separatorOf(left.reverseIterator().next().getField(keyField), right.iterator().next().getField(keyField)));
         parent.updateEntry(entry);
     }
 
     private void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent, BTreeEntry parentEntry)
             throws DbException, TransactionAbortedException {
-        //1. 获取要窃取的tuple个数，平均数量-原来数量
-        int stealNum = (page.getNumEntries()+leftSibling.getNumEntries())/2 - page.getNumEntries();
-        if(stealNum<=0){
+        //1. 已用空间不少于兄弟节点则不窃取，左节点至少留下一个entry
+        if(page.getUsedSpace()>=leftSibling.getUsedSpace() || leftSibling.getNumEntries()<2){
             return;
         }
         //2. 获取迭代器和节点
@@ -548,13 +908,11 @@ public class BTreeFile implements DbFile {
         //3. 先将父节点中的中间entry插入page
         BTreeEntry midEntry = new BTreeEntry(parentEntry.getKey(), leftLastEntry.getRightChild(), pageFirstEntry.getLeftChild());
         page.insertEntry(midEntry);
-        stealNum--;
 
-        //4. 再插入左节点中的entry
-        while(stealNum>0){
+        //4. 再插入左节点中的entry，直到已用空间平分
+        while(leftSibling.getNumEntries()>2 && page.getUsedSpace()<leftSibling.getUsedSpace()){
             leftSibling.deleteKeyAndRightChild(leftLastEntry);
             page.insertEntry(leftLastEntry);
-            stealNum--;
             leftLastEntry = leftIterator.next();
         }
 
@@ -574,9 +932,8 @@ public class BTreeFile implements DbFile {
 
     private void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent, BTreeEntry parentEntry)
             throws DbException, TransactionAbortedException {
-        //1. 获取要窃取的tuple个数，平均数量-原来数量
-        int stealNum = (page.getNumEntries()+rightSibling.getNumEntries())/2 - page.getNumEntries();
-        if(stealNum<=0){
+        //1. 已用空间不少于兄弟节点则不窃取，右节点至少留下一个entry
+        if(page.getUsedSpace()>=rightSibling.getUsedSpace() || rightSibling.getNumEntries()<2){
             return;
         }
         //2. 获取迭代器和节点
@@ -587,18 +944,16 @@ public class BTreeFile implements DbFile {
         //3. 先将父节点中的中间entry插入page
         BTreeEntry midEntry = new BTreeEntry(parentEntry.getKey(), pageLastEntry.getRightChild(), rightFirstEntry.getLeftChild());
         page.insertEntry(midEntry);
-        stealNum--;
 
-        //4. 再插入右节点中的entry
-        while(stealNum>0){
-            rightSibling.deleteKeyAndRightChild(rightFirstEntry);
-            page.insertEntry(pageLastEntry);
-            stealNum--;
+        //4. 再插入右节点中的entry，直到已用空间平分，右节点第一个entry的左孩子已经是page的最后一个孩子
+        while(rightSibling.getNumEntries()>2 && page.getUsedSpace()<rightSibling.getUsedSpace()){
+            rightSibling.deleteKeyAndLeftChild(rightFirstEntry);
+            page.insertEntry(rightFirstEntry);
             rightFirstEntry = rightIterator.next();
         }
 
-        //5. 将右节点最小的entry插入到父节点
-        rightSibling.deleteKeyAndRightChild(rightFirstEntry);
+        //5. 将右节点最小的entry插入到父节点，它的左孩子留在page
+        rightSibling.deleteKeyAndLeftChild(rightFirstEntry);
         parentEntry.setKey(rightFirstEntry.getKey());
         parent.updateEntry(parentEntry);
 
@@ -688,19 +1043,25 @@ public class BTreeFile implements DbFile {
     }
 
     private BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-        synchronized(this) {
-            if(f.length() == 0) {
-                BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
-            }
-        }
+        createIfEmpty();
         return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
+    /**
+     * 文件为空时写入根指针和一个空的叶节点
+     * @throws IOException
+     */
+    private synchronized void createIfEmpty() throws IOException {
+        if(f.length() == 0) {
+            BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
+            byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+            byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+            bw.write(emptyRootPtrData);
+            bw.write(emptyLeafData);
+            bw.close();
+        }
+    }
+
     private int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
             throws DbException, IOException, TransactionAbortedException {
         BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
@@ -731,24 +1092,42 @@ public class BTreeFile implements DbFile {
         }
 
         if(headerId == null) {
-            synchronized(this) {
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
-            }
+            emptyPageNo = appendEmptyPage();
         }
 
         return emptyPageNo;
     }
 
+    /**
+     * 在文件末尾追加一个空页面
+     * @return 新页面的页号
+     * @throws IOException
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        BufferedOutputStream bw = new BufferedOutputStream(
+                new FileOutputStream(f, true));
+        byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+        bw.write(emptyData);
+        bw.close();
+        return numPages();
+    }
+
     private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pageCategory)
             throws DbException, IOException, TransactionAbortedException {
         int emptyPageNo = getEmptyPageNo(tid, dirtypages);
-        BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pageCategory);
+        return initEmptyPage(tid, dirtypages, new BTreePageId(tableid, emptyPageNo, pageCategory));
+    }
 
+    /**
+     * 在已分配的页号上写入空页面并加写锁读取，缓冲池中该页号原来的页面被丢弃
+     * @param tid
+     * @param dirtypages
+     * @param newPageId
+     * @return
+     */
+    private Page initEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId newPageId)
+            throws DbException, IOException, TransactionAbortedException {
+        int emptyPageNo = newPageId.getPageNumber();
         RandomAccessFile rf = new RandomAccessFile(f, "rw");
         rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
         rf.write(BTreePage.createEmptyPageData());
@@ -802,6 +1181,336 @@ public class BTreeFile implements DbFile {
         headerPage.markSlotUsed(emptySlot, false);
     }
 
+    /**
+     * 整理时读取的树结构，读取时对根指针、header page和所有内部页面加读锁，
+     * 事务结束前其他事务不能分裂、合并页面，也不能分配、释放页号
+     */
+    static class Layout {
+        final List<BTreePageId> leaves = new ArrayList<>();//按key顺序排列的叶节点
+        final List<BTreePageId> leafParents = new ArrayList<>();//叶节点的父节点
+        final List<BTreePageId> internals = new ArrayList<>();
+        final List<BTreePageId> headers = new ArrayList<>();
+        final TreeSet<Integer> free = new TreeSet<>();//header page中标记为空闲的页号，截断后文件末尾之后的页号也是空闲的
+        int numPages;
+    }
+
+    /**
+     * 读取树结构
+     * @param tid
+     * @param dirtypages
+     * @return
+     */
+    Layout readLayout(TransactionId tid, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        Layout layout = new Layout();
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+        layout.numPages = numPages();
+        BTreePageId headerId = rootPtr.getHeaderId();
+        int headerPageCount = 0;
+        while (headerId != null) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            layout.headers.add(headerId);
+            for (int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+                int pageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + i;
+                if (pageNo > 0 && !headerPage.isSlotUsed(i)) {
+                    layout.free.add(pageNo);
+                }
+            }
+            headerId = headerPage.getNextPageId();
+            headerPageCount++;
+        }
+        if (rootPtr.getRootId() != null) {
+            readLayout(tid, dirtypages, layout, rootPtr.getRootId(), rootPtr.getId());
+        }
+        return layout;
+    }
+
+    private void readLayout(TransactionId tid, Map<PageId, Page> dirtypages, Layout layout, BTreePageId pid, BTreePageId parentId)
+            throws DbException, TransactionAbortedException {
+        if (pid.getPageCategory() == BTreePageId.LEAF) {
+            layout.leaves.add(pid);
+            layout.leafParents.add(parentId);
+            return;
+        }
+        layout.internals.add(pid);
+        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            readLayout(tid, dirtypages, layout, e.getLeftChild(), pid);
+        }
+        if (e != null) {
+            readLayout(tid, dirtypages, layout, e.getRightChild(), pid);
+        }
+    }
+
+    /**
+     * 从第from个叶节点开始，把已用空间之和不超过容量fillFactor的相邻叶节点合并到左边的页面，
+     * 两页必须有相同的父节点，合并后的父节点按删除时的规则处理
+     * @param tid
+     * @param dirtypages
+     * @param from 按key顺序的叶节点序号
+     * @param fillFactor
+     * @param batch 最多检查的叶节点数，检查过的叶节点在事务结束前保持读锁
+     * @return 下次开始检查的序号，合并后仍是左边页面的序号；没有更多的叶节点时返回-1
+     */
+    int mergeSparseLeaves(TransactionId tid, Map<PageId, Page> dirtypages, int from, double fillFactor, int batch)
+            throws DbException, IOException, TransactionAbortedException {
+        Layout layout = readLayout(tid, dirtypages);
+        int end = Math.min(layout.leaves.size() - 1, from + batch);
+        for (int i = from; i < end; i++) {
+            if (!layout.leafParents.get(i).equals(layout.leafParents.get(i + 1))) {
+                continue;
+            }
+            BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, layout.leaves.get(i), Permissions.READ_ONLY);
+            BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, layout.leaves.get(i + 1), Permissions.READ_ONLY);
+            if (left.getUsedSpace() + right.getUsedSpace() > left.getCapacity() * fillFactor) {
+                continue;
+            }
+            BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, layout.leafParents.get(i), Permissions.READ_WRITE);
+            left = (BTreeLeafPage) getPage(tid, dirtypages, left.getId(), Permissions.READ_WRITE);
+            right = (BTreeLeafPage) getPage(tid, dirtypages, right.getId(), Permissions.READ_WRITE);
+            Iterator<BTreeEntry> it = parent.iterator();
+            while (it.hasNext()) {
+                BTreeEntry e = it.next();
+                if (e.getLeftChild().equals(left.getId()) && e.getRightChild().equals(right.getId())) {
+                    mergeLeafPages(tid, dirtypages, left, right, parent, e);
+                    return i;
+                }
+            }
+            throw new DbException("no parent entry between leaf pages " + left.getId() + " and " + right.getId());
+        }
+        return end < layout.leaves.size() - 1 ? end : -1;
+    }
+
+    /**
+     * 移动一个页面，先把header page和内部页面移到文件前部，再使叶节点按key顺序排列在递增的页号上，顺序扫描时按文件顺序读取
+     * 1. header page和页号最大的内部页面移到更小的空闲页号
+     * 2. 叶节点和空闲页号中最小的几个页号按顺序分给每个叶节点，找到第一个不在目标页号上的叶节点移过去，
+     *    目标页号上是之后的叶节点时先把它移到空闲页号，没有空闲页号时追加到文件末尾
+     * 移动叶节点不改变叶节点和空闲页号的集合，每个叶节点最多移动两次就排好
+     * @param tid
+     * @param dirtypages
+     * @return 是否移动了页面，返回false时已经整理完
+     */
+    boolean relocateNextPage(TransactionId tid, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        Layout layout = readLayout(tid, dirtypages);
+        //1. header page和内部页面
+        for (BTreePageId header : layout.headers) {
+            if (!layout.free.isEmpty() && layout.free.first() < header.getPageNumber()) {
+                moveHeaderPage(tid, dirtypages, header, layout.free.first());
+                return true;
+            }
+        }
+        List<BTreePageId> internals = new ArrayList<>(layout.internals);
+        internals.sort(Comparator.comparingInt(BTreePageId::getPageNumber).reversed());
+        for (BTreePageId internal : internals) {
+            if (!layout.free.isEmpty() && layout.free.first() < internal.getPageNumber()) {
+                movePage(tid, dirtypages, internal, layout.free.first());
+                return true;
+            }
+        }
+        //2. 叶节点
+        TreeSet<Integer> slots = new TreeSet<>(layout.free);
+        Map<Integer, BTreePageId> leafAt = new HashMap<>();
+        for (BTreePageId leaf : layout.leaves) {
+            slots.add(leaf.getPageNumber());
+            leafAt.put(leaf.getPageNumber(), leaf);
+        }
+        Iterator<Integer> targets = slots.iterator();
+        for (BTreePageId leaf : layout.leaves) {
+            int target = targets.next();
+            if (leaf.getPageNumber() == target) {
+                continue;
+            }
+            //目标页号上是之后的叶节点时先把它移走，下次调用时目标页号已经空闲
+            //不能在同一个事务中移入：新页面直接写入磁盘，事务回滚时原页面的数据就丢失了
+            BTreePageId occupant = leafAt.get(target);
+            if (occupant != null) {
+                movePage(tid, dirtypages, occupant, layout.free.isEmpty() ? null : layout.free.first());
+            } else {
+                movePage(tid, dirtypages, leaf, target);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 把页面的内容移到空闲的页号上，修改父节点、兄弟节点和孩子节点中指向它的页号，原页号设置为空闲
+     * @param tid
+     * @param dirtypages
+     * @param pid 叶节点或内部页面
+     * @param pageNo 空闲页号，为null时追加到文件末尾
+     * @return 移动后的页面
+     */
+    private BTreePage movePage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Integer pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        if (pageNo == null) {
+            pageNo = appendEmptyPage();
+        } else {
+            claimPageNo(tid, dirtypages, pageNo);
+        }
+        BTreePageId newId = new BTreePageId(tableid, pageNo, pid.getPageCategory());
+        BTreePage moved = (BTreePage) initEmptyPage(tid, dirtypages, newId);
+        moved.setParentId(page.getParentId());
+
+        if (pid.getPageCategory() == BTreePageId.LEAF) {
+            BTreeLeafPage from = (BTreeLeafPage) page;
+            BTreeLeafPage to = (BTreeLeafPage) moved;
+            //1. 修改左右兄弟的指向
+            if (from.getLeftSiblingId() != null) {
+                BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, from.getLeftSiblingId(), Permissions.READ_WRITE);
+                left.setRightSiblingId(newId);
+            }
+            if (from.getRightSiblingId() != null) {
+                BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, from.getRightSiblingId(), Permissions.READ_WRITE);
+                right.setLeftSiblingId(newId);
+            }
+            to.setLeftSiblingId(from.getLeftSiblingId());
+            to.setRightSiblingId(from.getRightSiblingId());
+            //2. 移动tuple
+            Iterator<Tuple> it = from.iterator();
+            while (it.hasNext()) {
+                Tuple next = it.next();
+                from.deleteTuple(next);
+                to.insertTuple(next);
+            }
+        } else {
+            //1. 复制entry，再修改孩子节点的父节点指向
+            BTreeInternalPage to = (BTreeInternalPage) moved;
+            Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+            while (it.hasNext()) {
+                BTreeEntry e = it.next();
+                to.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+            }
+            updateParentPointers(tid, dirtypages, to);
+        }
+
+        //3. 修改父节点中的孩子页号
+        BTreePageId parentId = page.getParentId();
+        if (parentId.getPageCategory() == BTreePageId.ROOT_PTR) {
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+            rootPtr.setRootId(newId);
+        } else {
+            BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+            Iterator<BTreeEntry> it = parent.iterator();
+            boolean found = false;
+            while (it.hasNext() && !found) {
+                BTreeEntry e = it.next();
+                //相邻entry共用孩子指针，修改第一个出现的位置即可
+                if (e.getLeftChild().equals(pid)) {
+                    e.setLeftChild(newId);
+                    found = true;
+                }
+                if (e.getRightChild().equals(pid)) {
+                    e.setRightChild(newId);
+                    found = true;
+                }
+                if (found) {
+                    parent.updateEntry(e);
+                }
+            }
+            if (!found) {
+                throw new DbException("page " + pid + " is not a child of " + parentId);
+            }
+        }
+
+        //4. 原页号设置为空闲
+        setEmptyPage(tid, dirtypages, pid.getPageNumber());
+        dirtypages.remove(pid);
+        dirtypages.put(newId, moved);
+        return moved;
+    }
+
+    /**
+     * 把header page移到更小的空闲页号，修改根指针或链表中前后header page的指向，原页号设置为空闲
+     * @param tid
+     * @param dirtypages
+     * @param pid
+     * @param pageNo 空闲页号
+     */
+    private void moveHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, int pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeHeaderPage page = (BTreeHeaderPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        //空闲页号可能就记录在要移动的页面中，先标记再复制
+        claimPageNo(tid, dirtypages, pageNo);
+        BTreePageId newId = new BTreePageId(tableid, pageNo, BTreePageId.HEADER);
+        BTreeHeaderPage moved = (BTreeHeaderPage) initEmptyPage(tid, dirtypages, newId);
+        moved.copySlots(page);
+        moved.setPrevPageId(page.getPrevPageId());
+        moved.setNextPageId(page.getNextPageId());
+        if (page.getPrevPageId() == null) {
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+            rootPtr.setHeaderId(newId);
+        } else {
+            BTreeHeaderPage prev = (BTreeHeaderPage) getPage(tid, dirtypages, page.getPrevPageId(), Permissions.READ_WRITE);
+            prev.setNextPageId(newId);
+        }
+        if (page.getNextPageId() != null) {
+            BTreeHeaderPage next = (BTreeHeaderPage) getPage(tid, dirtypages, page.getNextPageId(), Permissions.READ_WRITE);
+            next.setPrevPageId(newId);
+        }
+        dirtypages.remove(pid);
+        //链表已经指向新页面，在新页面中把原页号设置为空闲
+        setEmptyPage(tid, dirtypages, pid.getPageNumber());
+    }
+
+    /**
+     * 在header page中把指定的空闲页号标记为已使用
+     * @param tid
+     * @param dirtypages
+     * @param pageNo
+     * @throws DbException 页号已被使用
+     */
+    private void claimPageNo(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+        BTreePageId headerId = rootPtr.getHeaderId();
+        for (int i = 0; headerId != null && i < pageNo / BTreeHeaderPage.getNumSlots(); i++) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            headerId = headerPage.getNextPageId();
+        }
+        int slot = pageNo % BTreeHeaderPage.getNumSlots();
+        BTreeHeaderPage headerPage = headerId == null ? null : (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+        if (headerPage == null || headerPage.isSlotUsed(slot)) {
+            throw new DbException("page " + pageNo + " is not free");
+        }
+        headerPage.markSlotUsed(slot, true);
+    }
+
+    /**
+     * 截掉文件末尾的空闲页面，截掉的页号在header page中仍是空闲的，之后分配时重新写入
+     * 有只读事务使用快照时不截断，快照可能还会读取已被释放的页面
+     * @param tid
+     * @param dirtypages
+     * @return 截掉的页面数
+     */
+    int truncateFreePages(TransactionId tid, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        Layout layout = readLayout(tid, dirtypages);
+        if (Database.getBufferPool().hasSnapshots()) {
+            return 0;
+        }
+        synchronized (this) {
+            int pages = numPages();
+            int keep = pages;
+            while (keep > 0 && layout.free.contains(keep)) {
+                keep--;
+            }
+            if (keep == pages || keep < 1) {
+                return 0;
+            }
+            try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+                rf.setLength(BTreeRootPtrPage.getPageSize() + (long) keep * BufferPool.getPageSize());
+            }
+            return pages - keep;
+        }
+    }
+
 
 }
 class BTreeFileIterator implements DbFileIterator {
@@ -820,11 +1529,10 @@ class BTreeFileIterator implements DbFileIterator {
 
 
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
+        //从根指针开始查找，只对叶节点加锁
+        BTreePageId root = BTreeRootPtrPage.getId(f.getId());
         curp = f.findLeafPage(tid, root, null);
-        it = curp.iterator();
+        it = curp == null ? null : curp.iterator();
     }
 
 
@@ -884,60 +1592,84 @@ class BTreeFileIterator implements DbFileIterator {
 }
 
 
+/**
+ * 按key的顺序扫描范围内的tuple，升序沿右兄弟、降序沿左兄弟读取叶节点
+ * 越过范围的另一端或返回limit个tuple后停止，不再读取之后的页面
+ */
 class BTreeSearchIterator implements DbFileIterator {
     private Tuple next = null;
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    private int returned;//已返回的tuple数
 
     final TransactionId tid;
     final BTreeFile f;
-    final IndexPredicate ipred;
+    final IndexRange range;
+    final boolean descending;
+    final int limit;//0表示不限制
+    final IndexPredicate filter;//不能表示为范围的条件，为null时不检查
 
 
-    public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+    public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexRange range, boolean descending, int limit, IndexPredicate filter) {
         this.f = f;
         this.tid = tid;
-        this.ipred = ipred;
+        this.range = range;
+        this.descending = descending;
+        this.limit = limit;
+        this.filter = filter;
     }
 
 
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        if(ipred.getOp() == Predicate.Op.EQUALS || ipred.getOp() == Predicate.Op.GREATER_THAN || ipred.getOp() == Predicate.Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, ipred.getField());
+        //从根指针开始查找，只对叶节点加锁，叶节点内二分查找范围的起点
+        BTreePageId root = BTreeRootPtrPage.getId(f.getId());
+        returned = 0;
+        //等值查找的key不在布隆过滤器中时不读取页面
+        if (range.isPoint() && !f.mightContain(tid, range.getLower())) {
+            curp = null;
+            it = null;
+            return;
         }
-        else {
-            curp = f.findLeafPage(tid, root, null);
+        if (descending) {
+            Field upper = range.getUpper();
+            curp = f.findLastLeafPage(tid, root, upper, range.isUpperInclusive());
+            it = curp == null ? null : upper == null ? curp.reverseIterator() : curp.reverseIterator(upper, range.isUpperInclusive());
+        } else {
+            Field lower = range.getLower();
+            //不包含下界时从最后一个等于下界的key所在叶节点开始，跳过重复值所在的页面
+            curp = lower == null || range.isLowerInclusive() ? f.findLeafPage(tid, root, lower) : f.findLastLeafPage(tid, root, lower, true);
+            it = curp == null ? null : lower == null ? curp.iterator() : curp.iterator(lower, range.isLowerInclusive());
         }
-        it = curp.iterator();
     }
 
 
     public Tuple readNext() throws TransactionAbortedException, DbException, NoSuchElementException {
+        if (limit > 0 && returned >= limit) {
+            return null;
+        }
         while (it != null) {
             while (it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-                    return t;
-                }
-                else if(ipred.getOp() == Predicate.Op.LESS_THAN || ipred.getOp() == Predicate.Op.LESS_THAN_OR_EQ) {
+                Field key = t.getField(f.keyField());
+                if (descending ? !range.aboveLower(key) : !range.belowUpper(key)) {
+                    it = null;
                     return null;
                 }
-                else if(ipred.getOp() == Predicate.Op.EQUALS && t.getField(f.keyField()).compare(Predicate.Op.GREATER_THAN, ipred.getField())) {
-                    return null;
+                if (filter == null || key.compare(filter.getOp(), filter.getField())) {
+                    returned++;
+                    return t;
                 }
             }
 
-            BTreePageId nextp = curp.getRightSiblingId();
+            BTreePageId nextp = descending ? curp.getLeftSiblingId() : curp.getRightSiblingId();
             if(nextp == null) {
+                it = null;
                 return null;
             }
             else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
-                it = curp.iterator();
+                it = descending ? curp.reverseIterator() : curp.iterator();
             }
         }
 
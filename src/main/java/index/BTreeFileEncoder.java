@@ -1,4 +1,267 @@
 package index;
 
+import common.DbException;
+import execution.Predicate;
+import optimizer.TupleComparator;
+import storage.BufferPool;
+import storage.Field;
+import storage.Tuple;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 自底向上批量建立B+树文件，不经过缓冲池和日志，只能用于还没有数据的文件
+ * tuple按key升序顺序写满叶节点，再逐层用下层页面之间的分隔key建立内部节点，最后写入根指针
+ * 页面只填充到容量的fillFactor，留出的空间供之后的插入使用；新文件没有空闲页面，不需要header page
+ */
 public class BTreeFileEncoder {
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    private final BTreeFile bf;
+    private final RandomAccessFile rf;
+    private final double fillFactor;
+    private int nextPageNo = 1;//页号顺序分配，第0页是根指针
+
+    /**
+     * 同一层相邻的页面，keys.get(i)是pages.get(i)和pages.get(i+1)之间的分隔key
+     */
+    private static class Level {
+        final List<BTreePageId> pages = new ArrayList<>();
+        final List<Field> keys = new ArrayList<>();
+    }
+
+    private BTreeFileEncoder(BTreeFile bf, RandomAccessFile rf, double fillFactor) {
+        this.bf = bf;
+        this.rf = rf;
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * 用未排序的tuple建立B+树文件，在内存中排序
+     * @param tuples
+     * @param bf 已加入目录的空文件
+     * @param fillFactor
+     * @throws IOException
+     * @throws DbException
+     */
+    public static void convert(List<Tuple> tuples, BTreeFile bf, double fillFactor) throws IOException, DbException {
+        List<Tuple> sorted = new ArrayList<>(tuples);
+        sorted.sort(new TupleComparator(bf.keyField(), true));
+        bulkLoad(bf, sorted.iterator(), fillFactor);
+    }
+
+    /**
+     * 用按key升序排列的tuple建立B+树文件，先写入临时文件，完成后替换原文件，中途失败不会留下不完整的树
+     * @param bf 已加入目录的空文件，建立期间不能被访问
+     * @param sorted
+     * @param fillFactor 页面的填充比例，在0.5到1之间，不低于0.5使页面满足最低占用率
+     * @throws IOException
+     * @throws DbException 文件不为空或tuple没有按key排序
+     */
+    public static void bulkLoad(BTreeFile bf, Iterator<Tuple> sorted, double fillFactor) throws IOException, DbException {
+        if (fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+        File target = bf.getFile();
+        if (target.length() > 0) {
+            throw new DbException("bulk load requires an empty BTreeFile");
+        }
+        File tmp = new File(target.getPath() + ".load");
+        try (RandomAccessFile rf = new RandomAccessFile(tmp, "rw")) {
+            rf.setLength(0);
+            new BTreeFileEncoder(bf, rf, fillFactor).load(sorted);
+        } catch (IOException | DbException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load(Iterator<Tuple> sorted) throws IOException, DbException {
+        //先占住根指针的位置，建完后再写入
+        rf.write(BTreeRootPtrPage.createEmptyPageData());
+        Level level = writeLeaves(sorted);
+        if (level.pages.isEmpty()) {
+            //没有tuple，和BTreeFile.createIfEmpty一样只有一个空叶节点
+            rf.write(BTreePage.createEmptyPageData());
+            return;
+        }
+        while (level.pages.size() > 1) {
+            level = writeInternalLevel(level);
+        }
+        BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(bf.getId()), BTreeRootPtrPage.createEmptyPageData());
+        rootPtr.setRootId(level.pages.get(0));
+        rf.seek(0);
+        rf.write(rootPtr.getPageData());
+    }
+
+    /**
+     * 顺序写入叶节点，每页写满到容量的fillFactor
+     * 最后一页在写入前和前一页按已用空间平分，所以总是比当前页晚一页写入
+     * @param sorted
+     * @return 叶节点层
+     */
+    private Level writeLeaves(Iterator<Tuple> sorted) throws IOException, DbException {
+        Level level = new Level();
+        BTreeLeafPage prev = null;
+        BTreeLeafPage cur = null;
+        int target = 0;
+        Field lastKey = null;
+        while (sorted.hasNext()) {
+            Tuple t = sorted.next();
+            Field key = t.getField(bf.keyField());
+            if (lastKey != null && key.compare(Predicate.Op.LESS_THAN, lastKey)) {
+                throw new DbException("tuples are not sorted on the key field");
+            }
+            lastKey = key;
+            if (cur == null) {
+                cur = newLeaf(level, null);
+                target = (int) (cur.getCapacity() * fillFactor);
+            } else if (cur.getUsedSpace() + BTreeLeafPage.tupleSize(t) > target) {
+                if (prev != null) {
+                    writeLeaf(level, prev, cur);
+                }
+                prev = cur;
+                cur = newLeaf(level, prev);
+            }
+            cur.insertTuple(t);
+            //直接写入文件的key也要记录到布隆过滤器中并删除保存的过滤器文件，失败时多记录的key只是误判
+            bf.addToBloomFilter(key);
+        }
+        if (cur == null) {
+            return level;
+        }
+        if (prev != null) {
+            //最后一页不足一半时从前一页移过来一部分tuple
+            if (cur.getUsedSpace() < target / 2) {
+                Iterator<Tuple> it = prev.reverseIterator();
+                while (prev.getNumTuples() > 1 && cur.getUsedSpace() < prev.getUsedSpace()) {
+                    Tuple t = it.next();
+                    prev.deleteTuple(t);
+                    cur.insertTuple(t);
+                }
+            }
+            writeLeaf(level, prev, cur);
+        }
+        writeLeaf(level, cur, null);
+        return level;
+    }
+
+    private BTreeLeafPage newLeaf(Level level, BTreeLeafPage left) throws IOException, DbException {
+        BTreePageId id = new BTreePageId(bf.getId(), nextPageNo++, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(id, BTreePage.createEmptyPageData(), bf.keyField());
+        if (left != null) {
+            page.setLeftSiblingId(left.getId());
+        }
+        level.pages.add(id);
+        return page;
+    }
+
+    /**
+     * 写入叶节点，记录它和右兄弟之间截断后的分隔key
+     * @param level
+     * @param page
+     * @param right 右兄弟，最后一页为null
+     */
+    private void writeLeaf(Level level, BTreeLeafPage page, BTreeLeafPage right) throws IOException, DbException {
+        if (right != null) {
+            page.setRightSiblingId(right.getId());
+            Field last = page.reverseIterator().next().getField(bf.keyField());
+            Field first = right.iterator().next().getField(bf.keyField());
+            level.keys.add(BTreeFile.separatorOf(last, first));
+        }
+        writePage(page);
+    }
+
+    /**
+     * 用下一层的页面建立一层内部节点，并把下一层页面的父节点指向新页面
+     * 先按key的大小分组，每组至少两个孩子，组之间的key移到上一层；最后一组不足一半时和前一组按字节平分
+     * @param children
+     * @return 新的一层
+     */
+    private Level writeInternalLevel(Level children) throws IOException, DbException {
+        List<Field> keys = children.keys;
+        int capacity = new BTreeInternalPage(new BTreePageId(bf.getId(), 0, BTreePageId.INTERNAL), BTreePage.createEmptyPageData(), bf.keyField()).getCapacity();
+        int target = (int) (capacity * fillFactor);
+        //starts.get(g)是第g组的第一个孩子，第i个孩子左边的key是keys.get(i-1)
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        int used = 0;
+        for (int i = 1; i < children.pages.size(); i++) {
+            int size = BTreeInternalPage.entrySize(keys.get(i - 1));
+            if (i - 1 > starts.get(starts.size() - 1) && used + size > target) {
+                starts.add(i);
+                used = 0;
+            } else {
+                used += size;
+            }
+        }
+        int last = children.pages.size() - 1;
+        int lastStart = starts.get(starts.size() - 1);
+        if (starts.size() > 1 && (lastStart == last || used < target / 2)) {
+            starts.remove(starts.size() - 1);
+            int from = starts.get(starts.size() - 1);
+            //两组至少各有两个孩子，否则合成一组
+            if (last - from + 1 >= 4) {
+                int total = 0;
+                for (int i = from + 1; i <= last; i++) {
+                    total += BTreeInternalPage.entrySize(keys.get(i - 1));
+                }
+                int split = from + 2;
+                int left = BTreeInternalPage.entrySize(keys.get(from));
+                while (split < last - 1 && left < total - left - BTreeInternalPage.entrySize(keys.get(split - 1))) {
+                    left += BTreeInternalPage.entrySize(keys.get(split - 1));
+                    split++;
+                }
+                starts.add(split);
+            }
+        }
+
+        Level level = new Level();
+        for (int g = 0; g < starts.size(); g++) {
+            int from = starts.get(g);
+            int to = g + 1 < starts.size() ? starts.get(g + 1) - 1 : last;
+            BTreePageId id = new BTreePageId(bf.getId(), nextPageNo++, BTreePageId.INTERNAL);
+            BTreeInternalPage page = new BTreeInternalPage(id, BTreePage.createEmptyPageData(), bf.keyField());
+            for (int i = from + 1; i <= to; i++) {
+                page.insertEntry(new BTreeEntry(keys.get(i - 1), children.pages.get(i - 1), children.pages.get(i)));
+            }
+            for (int i = from; i <= to; i++) {
+                writeParent(children.pages.get(i), id);
+            }
+            writePage(page);
+            if (g > 0) {
+                level.keys.add(keys.get(from - 1));
+            }
+            level.pages.add(id);
+        }
+        return level;
+    }
+
+    private long offsetOf(BTreePageId id) {
+        return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+    }
+
+    private void writePage(BTreePage page) throws IOException {
+        rf.seek(offsetOf(page.getId()));
+        rf.write(page.getPageData());
+    }
+
+    /**
+     * 修改已写入页面的父节点，叶节点和内部节点的第一个int都是父节点页号
+     * @param child
+     * @param parent
+     * @throws IOException
+     */
+    private void writeParent(BTreePageId child, BTreePageId parent) throws IOException {
+        rf.seek(offsetOf(child));
+        rf.writeInt(parent.getPageNumber());
+    }
 }
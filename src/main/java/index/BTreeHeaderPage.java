@@ -25,6 +25,7 @@ public class BTreeHeaderPage implements Page {
 
     private int nextPage; // 下一个header page的pageNumber，如果是最后一个，就是0
     private int prevPage; // 上一个header page的pageNumber，如果是第一个，就是0
+    private byte[] oldData;//修改前镜像
 
 
     public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
@@ -52,13 +53,21 @@ public class BTreeHeaderPage implements Page {
 
         dis.close();
 
-
+        setBeforeImage();
     }
 
     public void init() {
         Arrays.fill(header, (byte) 0xFF);
     }
 
+    /**
+     * 复制另一个header page记录的页面使用情况，用于移动header page
+     * @param other
+     */
+    void copySlots(BTreeHeaderPage other) {
+        System.arraycopy(other.header, 0, header, 0, header.length);
+    }
+
 
     private static int getHeaderSize() {
         int pointerBytes = 2 * INDEX_SIZE;
@@ -70,6 +79,29 @@ public class BTreeHeaderPage implements Page {
         return getHeaderSize() * 8;
     }
 
+    public BTreeHeaderPage getBeforeImage(){
+        try {
+            byte[] oldDataRef = null;
+            synchronized(this)
+            {
+                oldDataRef = oldData;
+            }
+            return new BTreeHeaderPage(pid,oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage(byte[] data) {
+        synchronized(this)
+        {
+            oldData = data.clone();
+        }
+    }
+
 
 
     public BTreePageId getId() {
@@ -13,18 +13,24 @@ import java.io.*;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+/**
+ * B+树内部节点，key使用紧凑格式保存，字符串key只占实际长度，叶节点分裂时上推的key经过后缀截断，
+ * 因此页面能容纳的项数取决于key的长度，空位数按最长的项换算
+ * 页面格式：父节点页号 + 孩子节点类型 + 插槽位图 + 按插槽顺序排列的已用项（插槽0只有孩子指针，其余为key + 孩子指针）
+ */
 @Slf4j
 public class BTreeInternalPage extends BTreePage{
     private final byte[] header; //记录slot的占用情况
     private final Field[] keys;  //存储key的数组
     private final int[] children;  //存储page的序号，用于获取左孩子、右孩子的BTreePageId
-    private final int numSlots;  //不是key的数量，而是内部节点中能存储的指针的数量（即n，内部节点中最多能存储key的数量为n-1）
+    private final int numSlots;  //插槽数，按最短的项计算，不是实际能存储的项数
+    private int usedSpace;  //插槽1及之后的项已使用的字节数
 
     private int childCategory;  //孩子节点的类型（内部节点或叶节点）
 
     public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
         super(id, key);
-        this.numSlots = getMaxEntries() + 1;
+        this.numSlots = computeNumSlots();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         try {
@@ -41,85 +47,80 @@ public class BTreeInternalPage extends BTreePage{
             header[i] = dis.readByte();
 
         keys = new Field[numSlots];
-        try{
-            keys[0] = null;
-            for (int i=1; i<keys.length; i++)
-                keys[i] = readNextKey(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-
         children = new int[numSlots];
         try{
-            for (int i=0; i<children.length; i++)
-                children[i] = readNextChild(dis,i);
-        }catch(NoSuchElementException e){
+            for (int i=0; i<numSlots; i++) {
+                if (!isSlotUsed(i))
+                    continue;
+                if (i > 0) {
+                    keys[i] = readCompact(dis, td.getFieldType(keyField));
+                    usedSpace += entrySize(keys[i]);
+                }
+                children[i] = dis.readInt();
+            }
+        }catch(java.text.ParseException e){
             e.printStackTrace();
         }
         dis.close();
 
+        setBeforeImage();
     }
 
-    public int getMaxEntries() {
-        int keySize = td.getFieldType(keyField).getLen();
-        int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
+    private int computeNumSlots() {
+        int bitsPerEntryIncludingHeader = minEntrySize() * 8 + 1;
         int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
-        return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
+        return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader + 1;
     }
 
-    private int getHeaderSize() {
-        int slotsPerPage = getMaxEntries() + 1;
-        int hb = (slotsPerPage / 8);
-        if (hb * 8 < slotsPerPage) hb++;
+    private int minEntrySize() {
+        return minCompactSize(td.getFieldType(keyField)) + INDEX_SIZE;
+    }
 
-        return hb;
+    private int maxEntrySize() {
+        return maxCompactSize(td.getFieldType(keyField)) + INDEX_SIZE;
     }
 
-    private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty key");
-                }
-            }
-            return null;
-        }
+    static int entrySize(Field key) {
+        return compactSize(key) + INDEX_SIZE;
+    }
 
-        Field f;
-        try {
-            f = td.getFieldType(keyField).parse(dis);
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /**
+     * 插槽1及之后的项可以使用的字节数
+     * @return
+     */
+    int getCapacity() {
+        return Math.min(BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - header.length, (numSlots - 1) * minEntrySize());
+    }
 
-        return f;
+    /**
+     * 能存储的最长的项的数量，key为定长类型时就是能存储的key的数量
+     * @return
+     */
+    public int getMaxEntries() {
+        return getCapacity() / maxEntrySize();
     }
 
-    private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<INDEX_SIZE; i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty child pointer");
-                }
-            }
-            return -1;
-        }
+    private int getHeaderSize() {
+        int hb = (numSlots / 8);
+        if (hb * 8 < numSlots) hb++;
+
+        return hb;
+    }
 
-        int child = -1;
+    public BTreeInternalPage getBeforeImage(){
         try {
-            Field f = Type.INT_TYPE.parse(dis);
-            child = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
+            byte[] oldDataRef = null;
+            synchronized(this)
+            {
+                oldDataRef = oldData;
+            }
+            return new BTreeInternalPage(pid,oldDataRef,keyField);
+        } catch (IOException e) {
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
         }
-
-        return child;
+        return null;
     }
 
     public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
@@ -135,11 +136,20 @@ public class BTreeInternalPage extends BTreePage{
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
     }
 
     public int getNumEntries() {
-        return numSlots - getNumEmptySlots() - 1;
+        int cnt = 0;
+        for(int i=1; i<numSlots; i++)
+            if(isSlotUsed(i))
+                cnt++;
+        return cnt;
+    }
+
+    @Override
+    public int getUsedSpace() {
+        return usedSpace;
     }
 
 
@@ -150,84 +160,18 @@ public class BTreeInternalPage extends BTreePage{
 
         try {
             dos.writeInt(parent);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
             dos.writeByte((byte) childCategory);
+            dos.write(header);
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        for (int i=1; i<keys.length; i++) {
-
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-
-            try {
-                keys[i].serialize(dos);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-        }
-
-
-        for (int i=0; i<children.length; i++) {
-
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<INDEX_SIZE; j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            try {
+            for (int i=0; i<numSlots; i++) {
+                if (!isSlotUsed(i))
+                    continue;
+                if (i > 0)
+                    writeCompact(dos, keys[i]);
                 dos.writeInt(children[i]);
-
-            } catch (IOException e) {
-                e.printStackTrace();
             }
-        }
-
 
-        int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length +
-                td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length);
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
+            dos.write(new byte[len - dos.size()]);
             dos.flush();
         } catch (IOException e) {
             e.printStackTrace();
@@ -237,11 +181,8 @@ public class BTreeInternalPage extends BTreePage{
     }
 
     public int getNumEmptySlots() {
-        int cnt = 0;
-        for(int i=1; i<numSlots; i++)
-            if(!isSlotUsed(i))
-                cnt++;
-        return cnt;
+        int free = (getMaxEntries() * maxEntrySize() - usedSpace) / maxEntrySize();
+        return Math.max(0, Math.min(free, numSlots - 1 - getNumEntries()));
     }
 
 
@@ -268,6 +209,7 @@ public class BTreeInternalPage extends BTreePage{
             throw new DbException("tried to delete entry on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null entry.");
+        usedSpace -= entrySize(keys[rid.getTupleNumber()]);
         if(deleteRightChild) {
             markSlotUsed(rid.getTupleNumber(), false);
         }
@@ -291,6 +233,9 @@ public class BTreeInternalPage extends BTreePage{
             throw new DbException("tried to update entry on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to update null entry.");
+        int newUsedSpace = usedSpace - entrySize(keys[rid.getTupleNumber()]) + entrySize(e.getKey());
+        if (newUsedSpace > getCapacity())
+            throw new DbException("not enough space for updated key " + e.getKey());
 
         for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
             if(isSlotUsed(i)) {
@@ -313,6 +258,7 @@ public class BTreeInternalPage extends BTreePage{
         }
         children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
         keys[rid.getTupleNumber()] = e.getKey();
+        usedSpace = newUsedSpace;
     }
 
     public void insertEntry(BTreeEntry e) throws DbException {
@@ -331,12 +277,16 @@ public class BTreeInternalPage extends BTreePage{
         else if(e.getLeftChild().getPageCategory() != childCategory || e.getRightChild().getPageCategory() != childCategory)
             throw new DbException("child page category mismatch in insertEntry");
 
-        if(getNumEmptySlots() == getMaxEntries()) {
+        if (usedSpace + entrySize(e.getKey()) > getCapacity())
+            throw new DbException("called insertEntry on page with not enough space.");
+
+        if(!isSlotUsed(0)) {
             children[0] = e.getLeftChild().getPageNumber();
             children[1] = e.getRightChild().getPageNumber();
             keys[1] = e.getKey();
             markSlotUsed(0, true);
             markSlotUsed(1, true);
+            usedSpace += entrySize(e.getKey());
             e.setRecordId(new RecordId(pid, 1));
             return;
         }
@@ -411,6 +361,7 @@ public class BTreeInternalPage extends BTreePage{
         log.info( "BTreeLeafPage.insertEntry: new entry, tableId = {} pageId = {} slotId = {}", pid.getTableId(), pid.getPageNumber(), goodSlot);
         keys[goodSlot] = e.getKey();
         children[goodSlot] = e.getRightChild().getPageNumber();
+        usedSpace += entrySize(e.getKey());
         e.setRecordId(new RecordId(pid, goodSlot));
     }
 
@@ -443,6 +394,88 @@ public class BTreeInternalPage extends BTreePage{
         return new BTreeInternalPageReverseIterator(this);
     }
 
+    /**
+     * 二分查找主键f所在的子节点，f等于key时进入左子节点
+     * @param f 为空时返回最左边的子节点
+     * @return 页面为空时返回null
+     */
+    public BTreePageId findChild(Field f) {
+        if (!isSlotUsed(0)) {
+            return null;
+        }
+        int child = f == null ? 0 : childBefore(f, Predicate.Op.LESS_THAN_OR_EQ);
+        return new BTreePageId(pid.getTableId(), children[child], childCategory);
+    }
+
+    /**
+     * 二分查找最后一个小于等于f（inclusive为false时小于f）的key可能所在的子节点，用于降序扫描
+     * 重复值可能分布在分隔key两边，inclusive时f等于key进入右子节点
+     * @param f 为空时返回最右边的子节点
+     * @param inclusive
+     * @return 页面为空时返回null
+     */
+    public BTreePageId findLastChild(Field f, boolean inclusive) {
+        if (!isSlotUsed(0)) {
+            return null;
+        }
+        int child = f == null ? prevUsedSlot(numSlots - 1) : childBefore(f, inclusive ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ);
+        return new BTreePageId(pid.getTableId(), children[child], childCategory);
+    }
+
+    /**
+     * 第一个满足 f op key 的key左边的子节点，没有这样的key时为最右边的子节点
+     * @param f
+     * @param op LESS_THAN_OR_EQ时找第一个大于等于f的key，LESS_THAN时找第一个大于f的key
+     * @return 子节点所在插槽
+     */
+    private int childBefore(Field f, Predicate.Op op) {
+        //插槽中可能有空位
+        int lo = 1, hi = numSlots - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int slot = nextUsedSlot(mid, hi);
+            if (slot == -1) {
+                hi = mid - 1;
+            } else if (f.compare(op, keys[slot])) {
+                found = slot;
+                hi = mid - 1;
+            } else {
+                lo = slot + 1;
+            }
+        }
+        return prevUsedSlot(found == -1 ? numSlots - 1 : found - 1);
+    }
+
+    /**
+     * [from, to]中第一个已用插槽
+     * @return 没有时返回-1
+     */
+    private int nextUsedSlot(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            if (isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * from及之前最后一个已用插槽
+     * @return 没有时返回-1
+     */
+    int prevUsedSlot(int from) {
+        for (int i = from; i >= 0; i--) {
+            if (isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int getNumSlots() {
+        return numSlots;
+    }
+
     protected Field getKey(int i) throws NoSuchElementException {
 
         if (i <= 0 || i >= keys.length)
@@ -550,7 +583,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
     public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
         this.p = p;
-        this.curEntry = p.getMaxEntries();
+        this.curEntry = p.getNumSlots() - 1;
         while(!p.isSlotUsed(curEntry) && curEntry > 0) {
             --curEntry;
         }
@@ -570,7 +603,8 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
             while (true) {
                 int entry = curEntry--;
                 Field key = p.getKey(entry);
-                BTreePageId childId = p.getChildId(entry - 1);
+                //删除entry会留下空插槽，左孩子在前一个已用插槽中
+                BTreePageId childId = key == null ? null : p.getChildId(Math.max(p.prevUsedSlot(entry - 1), 0));
                 if(key != null && childId != null) {
                     nextToReturn = new BTreeEntry(key, childId, nextChildId);
                     nextToReturn.setRecordId(new RecordId(p.pid, entry));
@@ -10,11 +10,16 @@ import java.io.*;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+/**
+ * B+树叶节点，tuple使用紧凑格式保存，字符串字段只占实际长度，页面能容纳的tuple数取决于字段长度，空位数按最长的tuple换算
+ * 页面格式：父节点页号 + 左兄弟页号 + 右兄弟页号 + 插槽位图 + 按插槽顺序排列的已用tuple
+ */
 @Slf4j
 public class BTreeLeafPage extends BTreePage{
     private final byte[] header;  //记录slot的占用情况
     private final Tuple[] tuples;  //存储该page的所有tuple
-    private final int numSlots;  //叶节点中能存储的tuple数量（即n-1）
+    private final int numSlots;  //插槽数，按最短的tuple计算，不是实际能存储的tuple数
+    private int usedSpace;  //tuple已使用的字节数
 
     // 页节点的双向链表结构
     private int leftSibling; //左兄弟的pageNumber，用于获取左兄弟的BTreePageId，为0则没有左兄弟
@@ -22,7 +27,7 @@ public class BTreeLeafPage extends BTreePage{
 
     public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
         super(id, key);
-        this.numSlots = getMaxTuples();
+        this.numSlots = computeNumSlots();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 
@@ -55,8 +60,11 @@ public class BTreeLeafPage extends BTreePage{
         tuples = new Tuple[numSlots];
         try{
 
-            for (int i=0; i<tuples.length; i++)
+            for (int i=0; i<tuples.length; i++) {
                 tuples[i] = readNextTuple(dis,i);
+                if (tuples[i] != null)
+                    usedSpace += tupleSize(tuples[i]);
+            }
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
@@ -79,19 +87,55 @@ public class BTreeLeafPage extends BTreePage{
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        assert !checkoccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxTuples() - getMaxTuples() / 2);
     }
 
-    public int getMaxTuples() {
-        int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+    private int computeNumSlots() {
+        int bitsPerTupleIncludingHeader = minTupleSize() * 8 + 1;
         int extraBits = 3 * INDEX_SIZE * 8;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
     }
 
+    private int minTupleSize() {
+        int size = 0;
+        for (int i=0; i<td.numFields(); i++)
+            size += minCompactSize(td.getFieldType(i));
+        return size;
+    }
+
+    private int maxTupleSize() {
+        int size = 0;
+        for (int i=0; i<td.numFields(); i++)
+            size += maxCompactSize(td.getFieldType(i));
+        return size;
+    }
+
+    static int tupleSize(Tuple t) {
+        int size = 0;
+        for (int i=0; i<t.getTupleDesc().numFields(); i++)
+            size += compactSize(t.getField(i));
+        return size;
+    }
+
+    /**
+     * tuple可以使用的字节数
+     * @return
+     */
+    int getCapacity() {
+        return Math.min(BufferPool.getPageSize() - 3 * INDEX_SIZE - header.length, numSlots * minTupleSize());
+    }
+
+    /**
+     * 能存储的最长的tuple的数量，没有字符串字段时就是能存储的tuple数量
+     * @return
+     */
+    public int getMaxTuples() {
+        return getCapacity() / maxTupleSize();
+    }
+
     private int getHeaderSize() {
-        int tuplesPerPage = getMaxTuples();
-        int hb = (tuplesPerPage / 8);
-        if (hb * 8 < tuplesPerPage) hb++;
+        int hb = (numSlots / 8);
+        if (hb * 8 < numSlots) hb++;
 
         return hb;
     }
@@ -112,23 +156,9 @@ public class BTreeLeafPage extends BTreePage{
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized(this)
-        {
-            oldData = getPageData().clone();
-        }
-    }
-
     private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
 
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
@@ -138,10 +168,10 @@ public class BTreeLeafPage extends BTreePage{
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = readCompact(dis, td.getFieldType(j));
                 t.setField(j, f);
             }
-        } catch (java.text.ParseException e) {
+        } catch (IOException | java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
@@ -156,66 +186,18 @@ public class BTreeLeafPage extends BTreePage{
 
         try {
             dos.writeInt(parent);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
             dos.writeInt(leftSibling);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
             dos.writeInt(rightSibling);
+            dos.write(header);
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                e.printStackTrace();
+            for (int i=0; i<tuples.length; i++) {
+                if (!isSlotUsed(i))
+                    continue;
+                for (int j=0; j<td.numFields(); j++)
+                    writeCompact(dos, tuples[i].getField(j));
             }
-        }
-
-        for (int i=0; i<tuples.length; i++) {
-
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
 
-                }
-                continue;
-            }
-
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
+            dos.write(new byte[len - dos.size()]);
             dos.flush();
         } catch (IOException e) {
             e.printStackTrace();
@@ -233,6 +215,7 @@ public class BTreeLeafPage extends BTreePage{
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null tuple.");
         markSlotUsed(rid.getTupleNumber(), false);
+        usedSpace -= tupleSize(tuples[rid.getTupleNumber()]);
         t.setRecordId(null);
     }
 
@@ -240,28 +223,23 @@ public class BTreeLeafPage extends BTreePage{
         if (!t.getTupleDesc().equals(td))
             throw new DbException("type mismatch, in addTuple");
 
+        if (usedSpace + tupleSize(t) > getCapacity())
+            throw new DbException("called addTuple on page with not enough space.");
+
+        //二分查找最后一个key小于等于新key的tuple，再找离它最近的空插槽，减少移动的tuple
+        Field key = t.getField(keyField);
+        int lessOrEqKey = prevUsedSlot(firstSlot(Predicate.Op.GREATER_THAN, key) - 1);
         int emptySlot = -1;
-        for (int i=0; i<numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                emptySlot = i;
-                break;
-            }
+        for (int d=0; d<numSlots && emptySlot == -1; d++) {
+            if (lessOrEqKey + 1 + d < numSlots && !isSlotUsed(lessOrEqKey + 1 + d))
+                emptySlot = lessOrEqKey + 1 + d;
+            else if (lessOrEqKey - d >= 0 && !isSlotUsed(lessOrEqKey - d))
+                emptySlot = lessOrEqKey - d;
         }
 
         if (emptySlot == -1)
             throw new DbException("called addTuple on page with no empty slots.");
 
-        int lessOrEqKey = -1;
-        Field key = t.getField(keyField);
-        for (int i=0; i<numSlots; i++) {
-            if(isSlotUsed(i)) {
-                if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-                    lessOrEqKey = i;
-                else
-                    break;
-            }
-        }
-
         int goodSlot = -1;
         if(emptySlot < lessOrEqKey) {
             for(int i = emptySlot; i < lessOrEqKey; i++) {
@@ -282,6 +260,56 @@ public class BTreeLeafPage extends BTreePage{
         RecordId rid = new RecordId(pid, goodSlot);
         t.setRecordId(rid);
         tuples[goodSlot] = t;
+        usedSpace += tupleSize(t);
+    }
+
+    /**
+     * 二分查找第一个key满足条件的已用插槽，条件对按key排序的tuple单调，即前面的不满足、后面的满足
+     * @param op 大于或大于等于
+     * @param f
+     * @return 没有满足条件的tuple时返回插槽数
+     */
+    private int firstSlot(Predicate.Op op, Field f) {
+        int lo = 0, hi = numSlots - 1, found = numSlots;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int slot = nextUsedSlot(mid, hi);
+            if (slot == -1) {
+                hi = mid - 1;
+            } else if (tuples[slot].getField(keyField).compare(op, f)) {
+                found = slot;
+                hi = mid - 1;
+            } else {
+                lo = slot + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * [from, to]中第一个已用插槽
+     * @return 没有时返回-1
+     */
+    private int nextUsedSlot(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            if (isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * from及之前最后一个已用插槽
+     * @return 没有时返回-1
+     */
+    private int prevUsedSlot(int from) {
+        for (int i = from; i >= 0; i--) {
+            if (isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     private void moveRecord(int from, int to) {
@@ -339,17 +367,23 @@ public class BTreeLeafPage extends BTreePage{
     }
 
     public int getNumTuples() {
-        return numSlots - getNumEmptySlots();
-    }
-
-    public int getNumEmptySlots() {
         int cnt = 0;
         for(int i=0; i<numSlots; i++)
-            if(!isSlotUsed(i))
+            if(isSlotUsed(i))
                 cnt++;
         return cnt;
     }
 
+    @Override
+    public int getUsedSpace() {
+        return usedSpace;
+    }
+
+    public int getNumEmptySlots() {
+        int free = (getMaxTuples() * maxTupleSize() - usedSpace) / maxTupleSize();
+        return Math.max(0, Math.min(free, numSlots - getNumTuples()));
+    }
+
 
     public boolean isSlotUsed(int i) {
         int headerbit = i % 8;
@@ -375,8 +409,41 @@ public class BTreeLeafPage extends BTreePage{
     }
 
 
+    /**
+     * 从第一个key大于等于f的tuple开始遍历
+     * @param f
+     * @return
+     */
+    public Iterator<Tuple> iterator(Field f) {
+        return new BTreeLeafPageIterator(this, firstSlot(Predicate.Op.GREATER_THAN_OR_EQ, f));
+    }
+
+    /**
+     * 从第一个key大于等于f（inclusive为false时大于f）的tuple开始遍历
+     * @param f
+     * @param inclusive
+     * @return
+     */
+    public Iterator<Tuple> iterator(Field f, boolean inclusive) {
+        return new BTreeLeafPageIterator(this, firstSlot(inclusive ? Predicate.Op.GREATER_THAN_OR_EQ : Predicate.Op.GREATER_THAN, f));
+    }
+
     public Iterator<Tuple> reverseIterator() {
-        return new BTreeLeafPageReverseIterator(this);
+        return new BTreeLeafPageReverseIterator(this, numSlots - 1);
+    }
+
+    /**
+     * 从最后一个key小于等于f（inclusive为false时小于f）的tuple开始反向遍历
+     * @param f
+     * @param inclusive
+     * @return
+     */
+    public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+        return new BTreeLeafPageReverseIterator(this, firstSlot(inclusive ? Predicate.Op.GREATER_THAN : Predicate.Op.GREATER_THAN_OR_EQ, f) - 1);
+    }
+
+    int getNumSlots() {
+        return numSlots;
     }
 
     Tuple getTuple(int i) throws NoSuchElementException {
@@ -409,6 +476,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
         this.p = p;
     }
 
+    public BTreeLeafPageIterator(BTreeLeafPage p, int curTuple) {
+        this.p = p;
+        this.curTuple = curTuple;
+    }
+
     public boolean hasNext() {
         if (nextToReturn != null)
             return true;
@@ -451,9 +523,9 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
     Tuple nextToReturn = null;
     final BTreeLeafPage p;
 
-    public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
+    public BTreeLeafPageReverseIterator(BTreeLeafPage p, int start) {
         this.p = p;
-        this.curTuple = p.getMaxTuples() - 1;
+        this.curTuple = start;
     }
 
     public boolean hasNext() {
@@ -3,12 +3,14 @@ package index;
 import common.Database;
 import common.DbException;
 import common.Type;
-import storage.BufferPool;
-import storage.Page;
-import storage.PageId;
-import storage.TupleDesc;
+import storage.*;
 import transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
 public abstract class BTreePage implements Page {
     public static final int INDEX_SIZE = Type.INT_TYPE.getLen();//索引大小
 
@@ -19,6 +21,7 @@ public abstract class BTreePage implements Page {
     protected final TupleDesc td;  //tuple描述
     protected final int keyField;  //索引字段下标
     protected int parent; //当前page的父page，如果当前page是根节点那么parent就是0
+    protected byte[] oldData;//修改前镜像
 
 
     public BTreePage(BTreePageId id, int key) {
@@ -78,6 +81,73 @@ public abstract class BTreePage implements Page {
             this.dirtier = tid;
     }
 
+    @Override
+    public void setBeforeImage(byte[] data) {
+        synchronized(this)
+        {
+            oldData = data.clone();
+        }
+    }
+
+    /**
+     * 紧凑格式中字段占用的字节数，字符串只保存长度和实际内容，不补齐到STRING_LEN
+     * @param f
+     * @return
+     */
+    protected static int compactSize(Field f) {
+        if (f instanceof StringField) {
+            return 2 + ((StringField) f).getValue().length();
+        }
+        return f.getType().getLen();
+    }
+
+    /**
+     * 紧凑格式中该类型字段最多占用的字节数
+     * @param type
+     * @return
+     */
+    protected static int maxCompactSize(Type type) {
+        return type == Type.STRING_TYPE ? 2 + Type.STRING_LEN : type.getLen();
+    }
+
+    /**
+     * 紧凑格式中该类型字段最少占用的字节数
+     * @param type
+     * @return
+     */
+    protected static int minCompactSize(Type type) {
+        return type == Type.STRING_TYPE ? 2 : type.getLen();
+    }
+
+    protected static void writeCompact(DataOutputStream dos, Field f) throws IOException {
+        if (f instanceof StringField) {
+            String s = ((StringField) f).getValue();
+            dos.writeShort(s.length());
+            dos.writeBytes(s);
+        } else {
+            f.serialize(dos);
+        }
+    }
+
+    protected static Field readCompact(DataInputStream dis, Type type) throws IOException, ParseException {
+        if (type == Type.STRING_TYPE) {
+            byte[] bs = new byte[dis.readUnsignedShort()];
+            dis.readFully(bs);
+            return new StringField(new String(bs), Type.STRING_LEN);
+        }
+        return type.parse(dis);
+    }
+
+    /**
+     * 项或tuple已使用的字节数，不含页头和插槽位图
+     * @return
+     */
+    public abstract int getUsedSpace();
+
+    /**
+     * 空位数，key变长后按最大的项或tuple换算剩余空间，空位数大于0时一定能再放入一项
+     * @return
+     */
     public abstract int getNumEmptySlots();
 
 
@@ -0,0 +1,179 @@
+package index;
+
+import common.Database;
+import common.DbException;
+import common.TransactionAbortedException;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import storage.Page;
+import storage.PageId;
+import transaction.Transaction;
+import transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 在线整理B+树文件，分三步，每一步由很多个短事务完成，和普通的插入删除一样加锁、记录日志，整理期间可以并发读写：
+ * 1. 合并相邻的稀疏叶节点，释放出的页号记录在header page中
+ * 2. 逐个移动页面，header page和内部页面移到文件前部的空闲页号，叶节点按key顺序排列在递增的页号上，顺序扫描时按文件顺序读取
+ * 3. 截掉文件末尾的空闲页面
+ * 4. 使用了布隆过滤器且插入删除太多时重新建立过滤器
+ * 后台运行时使用最低优先级的线程，每个事务之间暂停，和用户事务冲突被回滚后等待一段时间重试
+ */
+@Slf4j
+public class BTreeReorganizer {
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    public static final long DEFAULT_PAUSE_MILLIS = 10;
+    public static final int DEFAULT_MAX_RETRIES = 100;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    private static final int MERGE_BATCH = 16;//每个事务最多检查的叶节点数
+
+    private final BTreeFile file;
+    private final double fillFactor;//合并后页面的最高填充比例
+    @Setter
+    private long pauseMillis = DEFAULT_PAUSE_MILLIS;//两个事务之间的暂停时间
+    @Setter
+    private int maxRetries = DEFAULT_MAX_RETRIES;//每个事务被回滚后的最多重试次数
+    private volatile boolean stopped = false;
+    @Getter
+    private volatile int mergedPages;
+    @Getter
+    private volatile int movedPages;
+    @Getter
+    private volatile int truncatedPages;
+
+    /**
+     * 整理中的一个事务要做的操作，返回的脏页由调用方登记到缓冲池
+     */
+    private interface Step<T> {
+        T run(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException;
+    }
+
+    public BTreeReorganizer(BTreeFile file) {
+        this(file, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @param file
+     * @param fillFactor 相邻叶节点的已用空间之和不超过容量的fillFactor时合并，在0.5到1之间
+     */
+    public BTreeReorganizer(BTreeFile file, double fillFactor) {
+        if (fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+        this.file = file;
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * 在最低优先级的后台线程中整理
+     * @return
+     */
+    public Thread start() {
+        //后台线程没有绑定数据库实例，使用启动时的实例
+        Database database = Database.current();
+        Thread thread = new Thread(() -> {
+            try {
+                database.execute(() -> {
+                    reorganize();
+                    return null;
+                });
+            } catch (DbException | IOException | TransactionAbortedException e) {
+                log.warn("reorganize btree file {} failed: {}", file.getId(), e.getMessage());
+            }
+        }, "btree-reorganizer-" + file.getId());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 停止后台整理，当前事务提交后结束
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * 在当前线程中整理
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException 一个事务重试maxRetries次后仍被回滚
+     */
+    public void reorganize() throws DbException, IOException, TransactionAbortedException {
+        //1. 合并稀疏叶节点
+        int from = 0;
+        while (!stopped && from >= 0) {
+            int start = from;
+            from = runStep((tid, dirtypages) -> {
+                int next = file.mergeSparseLeaves(tid, dirtypages, start, fillFactor, MERGE_BATCH);
+                //只有合并时才有脏页
+                if (!dirtypages.isEmpty()) {
+                    mergedPages++;
+                }
+                return next;
+            });
+        }
+        //2. 按key顺序排列页面，有并发修改时移动次数可能很多，限制在页面数的两倍以内
+        int maxMoves = 2 * file.numPages();
+        for (int i = 0; i < maxMoves && !stopped && runStep(file::relocateNextPage); i++) {
+            movedPages++;
+        }
+        //3. 截掉末尾的空闲页面
+        if (!stopped) {
+            truncatedPages += runStep(file::truncateFreePages);
+        }
+        //4. 重建布隆过滤器，扫描期间对所有叶节点加读锁
+        if (!stopped && file.isBloomFilterStale()) {
+            runStep((tid, dirtypages) -> {
+                file.rebuildBloomFilter(tid);
+                return null;
+            });
+        }
+        log.info("reorganized btree file {}: {} merges, {} moves, {} pages truncated", file.getId(), mergedPages, movedPages, truncatedPages);
+    }
+
+    /**
+     * 在一个事务中执行，被回滚时等待后重试
+     * @param step
+     * @return
+     */
+    private <T> T runStep(Step<T> step) throws DbException, IOException, TransactionAbortedException {
+        TransactionAbortedException last = new TransactionAbortedException();
+        for (int i = 0; i <= maxRetries; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            try {
+                Map<PageId, Page> dirtypages = new HashMap<>();
+                T result = step.run(t.getId(), dirtypages);
+                Database.getBufferPool().updatePages(t.getId(), new ArrayList<>(dirtypages.values()));
+                t.commit();
+                pause(pauseMillis);
+                return result;
+            } catch (TransactionAbortedException e) {
+                last = e;
+                t.abort();
+                //和用户事务冲突时让步，等待时间随失败次数增加
+                pause(Math.min(MAX_BACKOFF_MILLIS, (pauseMillis + 1) * (i + 1)));
+            } catch (DbException | IOException | RuntimeException e) {
+                t.abort();
+                throw e;
+            }
+        }
+        throw last;
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -17,6 +17,7 @@ public class BTreeRootPtrPage implements Page {
     private int root; //保存当前根节点的pageNumber
     private int rootCategory;  //保存当前根节点的类型，INTERNAL或LEAF，当只有一个节点时，就是LEAF
     private int header;  //保存当前header页的pageNumber
+    private byte[] oldData;//修改前镜像
 
 
 
@@ -27,6 +28,7 @@ public class BTreeRootPtrPage implements Page {
         rootCategory = dis.readByte();
         header = dis.readInt();
 
+        setBeforeImage();
     }
 
 
@@ -89,6 +91,29 @@ public class BTreeRootPtrPage implements Page {
         return new byte[PAGE_SIZE];
     }
 
+    public BTreeRootPtrPage getBeforeImage(){
+        try {
+            byte[] oldDataRef = null;
+            synchronized(this)
+            {
+                oldDataRef = oldData;
+            }
+            return new BTreeRootPtrPage(pid,oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage(byte[] data) {
+        synchronized(this)
+        {
+            oldData = data.clone();
+        }
+    }
+
     public BTreePageId getRootId() {
         if(root == 0) {
             return null;
@@ -130,7 +155,7 @@ public class BTreeRootPtrPage implements Page {
             if(id.getTableId() != pid.getTableId()) {
                 throw new DbException("table id mismatch in setHeaderId");
             }
-            if(id.getTableId() != BTreePageId.HEADER) {
+            if(id.getPageCategory() != BTreePageId.HEADER) {
                 throw new DbException("header must be of type BTreePageId.HEADER");
             }
             header = id.getPageNumber();
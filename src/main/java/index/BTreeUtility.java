@@ -1,4 +1,155 @@
 package index;
 
+import optimizer.TupleComparator;
+import storage.Tuple;
+import storage.TupleDesc;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 批量建立B+树用到的工具
+ */
 public class BTreeUtility {
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;//外部排序时每段在内存中排序的tuple数
+
+    /**
+     * 按key字段外部排序：tuple在内存中攒满一段后排序写入临时文件，读取时多路归并
+     * 只有一段时直接在内存中排序，不写临时文件
+     */
+    public static class ExternalSorter {
+        private final TupleDesc td;
+        private final Comparator<Tuple> comparator;
+        private final int runSize;
+        private final List<Tuple> buffer = new ArrayList<>();
+        private final List<File> runs = new ArrayList<>();//已写入临时文件的有序段
+        private final List<Integer> runCounts = new ArrayList<>();//每段的tuple数
+
+        public ExternalSorter(TupleDesc td, int keyField, int runSize) {
+            this.td = td;
+            this.comparator = new TupleComparator(keyField, true);
+            this.runSize = runSize;
+        }
+
+        public void add(Tuple t) throws IOException {
+            buffer.add(t);
+            if (buffer.size() >= runSize) {
+                spill();
+            }
+        }
+
+        /**
+         * 内存中的tuple排序后写入一个临时文件
+         * @throws IOException
+         */
+        private void spill() throws IOException {
+            buffer.sort(comparator);
+            File run = File.createTempFile("btree_run", ".dat");
+            run.deleteOnExit();
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+                for (Tuple t : buffer) {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        t.getField(i).serialize(dos);
+                    }
+                }
+            }
+            runs.add(run);
+            runCounts.add(buffer.size());
+            buffer.clear();
+        }
+
+        /**
+         * 按key升序读取所有tuple，只能调用一次，读完后删除临时文件
+         * @return
+         * @throws IOException
+         */
+        public Iterator<Tuple> iterator() throws IOException {
+            if (runs.isEmpty()) {
+                buffer.sort(comparator);
+                return buffer.iterator();
+            }
+            if (!buffer.isEmpty()) {
+                spill();
+            }
+            return new MergeIterator();
+        }
+
+        /**
+         * 多路归并，优先队列中是每段当前最小的tuple
+         */
+        private class MergeIterator implements Iterator<Tuple> {
+            private final PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> comparator.compare(a.head, b.head));
+
+            MergeIterator() throws IOException {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunReader reader = new RunReader(runs.get(i), runCounts.get(i));
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Tuple next() {
+                if (heads.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                RunReader reader = heads.poll();
+                Tuple t = reader.head;
+                try {
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return t;
+            }
+        }
+
+        /**
+         * 顺序读取一个有序段
+         */
+        private class RunReader {
+            private final File run;
+            private final DataInputStream dis;
+            private int remaining;
+            private Tuple head;//当前读到的tuple
+
+            RunReader(File run, int count) throws IOException {
+                this.run = run;
+                this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+                this.remaining = count;
+            }
+
+            /**
+             * 读取下一个tuple
+             * @return 段已读完时返回false并删除临时文件
+             * @throws IOException
+             */
+            boolean advance() throws IOException {
+                if (remaining == 0) {
+                    dis.close();
+                    run.delete();
+                    head = null;
+                    return false;
+                }
+                remaining--;
+                head = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        head.setField(i, td.getFieldType(i).parse(dis));
+                    }
+                } catch (java.text.ParseException e) {
+                    throw new IOException(e);
+                }
+                return true;
+            }
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package index;
+
+import storage.Field;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * B+树索引字段上的布隆过滤器，判断key一定不存在时等值查找不需要从根节点查找叶节点
+ * 删除key时不能清除对应的位，只记录删除次数，删除或插入太多后误判率升高，由BTreeFile重新建立
+ */
+class BloomFilter {
+    private static final int MAGIC = 0x424C4F4D;//保存的文件开头
+
+    private final AtomicLongArray bits;//并发插入时不加锁设置位
+    private final int numBits;
+    private final int numHashes;
+    private final int expectedKeys;//按这么多key计算位数和哈希函数个数
+    private final AtomicInteger added;//建立以来加入的key数
+    private final AtomicInteger deleted;//建立以来删除的key数
+
+    private BloomFilter(int numBits, int numHashes, int expectedKeys, int added, int deleted) {
+        this.bits = new AtomicLongArray((numBits + 63) / 64);
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.expectedKeys = expectedKeys;
+        this.added = new AtomicInteger(added);
+        this.deleted = new AtomicInteger(deleted);
+    }
+
+    /**
+     * 按key数和误判率计算位数和哈希函数个数
+     * @param expectedKeys
+     * @param falsePositiveRate
+     * @return
+     */
+    static BloomFilter create(int expectedKeys, double falsePositiveRate) {
+        int n = Math.max(1, expectedKeys);
+        double m = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int numBits = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(m)));
+        int numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        return new BloomFilter(numBits, numHashes, n, 0, 0);
+    }
+
+    /**
+     * key序列化后的64位哈希值，和Field.hashCode不同，重启后也不变，可以保存到文件中
+     * @param key
+     * @return
+     */
+    static long hash(Field key) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            key.serialize(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        //FNV-1a后再混合一次，使高低32位都均匀
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes.toByteArray()) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 第i个哈希函数的位置，由哈希值的高低32位组合得到
+     * @param hash
+     * @param i
+     * @return
+     */
+    private int position(long hash, int i) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        return (combined < 0 ? ~combined : combined) % numBits;
+    }
+
+    void add(Field key) {
+        add(hash(key));
+    }
+
+    void add(long hash) {
+        for (int i = 0; i < numHashes; i++) {
+            int pos = position(hash, i);
+            long mask = 1L << (pos & 63);
+            if ((bits.get(pos >>> 6) & mask) == 0) {
+                bits.getAndAccumulate(pos >>> 6, mask, (a, b) -> a | b);
+            }
+        }
+        added.incrementAndGet();
+    }
+
+    /**
+     * @param key
+     * @return false时key一定不存在，true时可能存在
+     */
+    boolean mightContain(Field key) {
+        long hash = hash(key);
+        for (int i = 0; i < numHashes; i++) {
+            int pos = position(hash, i);
+            if ((bits.get(pos >>> 6) & (1L << (pos & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void recordDelete() {
+        deleted.incrementAndGet();
+    }
+
+    /**
+     * 插入的key超过建立时计算的数量，或者一半以上已被删除时需要重新建立
+     * @return
+     */
+    boolean isStale() {
+        int a = added.get();
+        return a > expectedKeys || deleted.get() > a / 2;
+    }
+
+    void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(numBits);
+        dos.writeInt(numHashes);
+        dos.writeInt(expectedKeys);
+        dos.writeInt(added.get());
+        dos.writeInt(deleted.get());
+        for (int i = 0; i < bits.length(); i++) {
+            dos.writeLong(bits.get(i));
+        }
+    }
+
+    static BloomFilter readFrom(DataInputStream dis) throws IOException {
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("not a bloom filter file");
+        }
+        int numBits = dis.readInt();
+        int numHashes = dis.readInt();
+        int expectedKeys = dis.readInt();
+        BloomFilter filter = new BloomFilter(numBits, numHashes, expectedKeys, dis.readInt(), dis.readInt());
+        for (int i = 0; i < filter.bits.length(); i++) {
+            filter.bits.set(i, dis.readLong());
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,217 @@
+package index;
+
+import common.Database;
+import common.DbException;
+import storage.*;
+import transaction.TransactionId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 线性哈希文件的桶页面，桶的主页面和溢出页面格式相同，溢出页面由上一个页面的overflow链接
+ * 页面格式：溢出页面页号 + 插槽位图 + tuple，tuple在页面内不排序
+ */
+public class HashBucketPage implements Page {
+    private static final int INDEX_SIZE = 4;
+
+    private boolean dirty = false;//脏页标记
+    private TransactionId dirtier = null;//修改为脏页的事务id
+
+    private final HashPageId pid;
+    private final TupleDesc td;
+    private final byte[] header;//记录slot的占用情况
+    private final Tuple[] tuples;
+    private final int numSlots;
+    private int overflow;//下一个溢出页面的页号，为0则没有
+    private byte[] oldData;//修改前镜像
+
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getMaxTuples();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        overflow = dis.readInt();
+        header = new byte[getHeaderSize()];
+        dis.readFully(header);
+        tuples = new Tuple[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            tuples[i] = readNextTuple(dis, i);
+        }
+        dis.close();
+        setBeforeImage();
+    }
+
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public int getMaxTuples() {
+        return (BufferPool.getPageSize() * 8 - INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private int getHeaderSize() {
+        return (getMaxTuples() + 7) / 8;
+    }
+
+    private Tuple readNextTuple(DataInputStream dis, int slot) throws IOException {
+        if (!isSlotUsed(slot)) {
+            dis.skipBytes(td.getSize());
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException(e);
+        }
+        return t;
+    }
+
+    @Override
+    public byte[] getPageData() {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(overflow);
+            dos.write(header);
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(new byte[td.getSize()]);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++) {
+                    tuples[i].getField(j).serialize(dos);
+                }
+            }
+            dos.write(new byte[len - INDEX_SIZE - header.length - td.getSize() * numSlots]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * 插入到第一个空插槽
+     * @param t
+     * @throws DbException 页面已满或tuple结构不匹配
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("type mismatch, in insertTuple");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("called insertTuple on page with no empty slots.");
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid)) {
+            throw new DbException("tried to delete tuple on invalid page");
+        }
+        if (!isSlotUsed(rid.getTupleNumber())) {
+            throw new DbException("tried to delete null tuple.");
+        }
+        markSlotUsed(rid.getTupleNumber(), false);
+        tuples[rid.getTupleNumber()] = null;
+        t.setRecordId(null);
+    }
+
+    public HashPageId getOverflowId() {
+        if (overflow == 0) {
+            return null;
+        }
+        return new HashPageId(pid.getTableId(), overflow, HashPageId.BUCKET);
+    }
+
+    public void setOverflowId(HashPageId id) {
+        overflow = id == null ? 0 : id.getPageNumber();
+    }
+
+    public int getNumEmptySlots() {
+        int cnt = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    public boolean isSlotUsed(int i) {
+        return (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) {
+            header[i / 8] |= 1 << (i % 8);
+        } else {
+            header[i / 8] &= ~(1 << (i % 8));
+        }
+    }
+
+    public Iterator<Tuple> iterator() {
+        List<Tuple> res = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                res.add(tuples[i]);
+            }
+        }
+        return res.iterator();
+    }
+
+    @Override
+    public HashPageId getId() {
+        return pid;
+    }
+
+    @Override
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+
+    @Override
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    @Override
+    public HashBucketPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (this) {
+                oldDataRef = oldData;
+            }
+            return new HashBucketPage(pid, oldDataRef);
+        } catch (IOException e) {
+            //构造时已经解析成功过
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setBeforeImage(byte[] data) {
+        synchronized (this) {
+            oldData = data.clone();
+        }
+    }
+}
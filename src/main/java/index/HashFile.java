@@ -0,0 +1,379 @@
+package index;
+
+import common.Database;
+import common.DbException;
+import common.Permissions;
+import common.TransactionAbortedException;
+import execution.IndexPredicate;
+import execution.IndexRange;
+import execution.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import storage.*;
+import transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 线性哈希文件，按主键的哈希值把tuple分到桶中，等值查找只需读取一个桶
+ * 第0页是元数据页，其余是桶页面，桶满时链接溢出页面，每次新增溢出页面后分裂下一个桶
+ * 页面通过缓冲池加页锁读写，修改的页面由缓冲池写入日志；删除不合并桶，也不回收溢出页面
+ * 等值查找用页面latch读取元数据页，只对桶页面加锁，加锁后校验元数据页没有被修改（桶没有分裂），否则改为对元数据页加锁查找
+ */
+@Slf4j
+public class HashFile implements IndexFile {
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;//主键字段id
+
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    @Override
+    public Page readPage(PageId pid) {
+        byte[] pageBuf = new byte[BufferPool.getPageSize()];
+        try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+            rf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+            rf.readFully(pageBuf);
+            return createPage(pid, pageBuf);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Read past end of table");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        HashPageId id = (HashPageId) pid;
+        if (id.getPageCategory() == HashPageId.META) {
+            return new HashMetaPage(id, data);
+        }
+        return new HashBucketPage(id, data);
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        writePages(Collections.singletonList(page));
+    }
+
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+            for (Page page : pages) {
+                rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+                rf.write(page.getPageData());
+            }
+        }
+    }
+
+    @Override
+    public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> dirtypages = new HashMap<>();
+        HashBucketPage page = findBucketPage(tid, dirtypages, t.getField(keyField), Permissions.READ_WRITE);
+        //在桶的页面链中找空位，都满时链接新的溢出页面并分裂下一个桶
+        boolean overflowed = false;
+        while (page.getNumEmptySlots() == 0) {
+            HashPageId nextId = page.getOverflowId();
+            if (nextId == null) {
+                page = addOverflowPage(tid, dirtypages, page);
+                overflowed = true;
+                break;
+            }
+            page = (HashBucketPage) getPage(tid, dirtypages, nextId, Permissions.READ_ONLY);
+        }
+        page = (HashBucketPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+        page.insertTuple(t);
+        if (overflowed) {
+            splitBucket(tid, dirtypages);
+        }
+        return new ArrayList<>(dirtypages.values());
+    }
+
+    @Override
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> dirtypages = new HashMap<>();
+        HashPageId pageId = new HashPageId(tableid, t.getRecordId().getPageId().getPageNumber(), HashPageId.BUCKET);
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<>(dirtypages.values());
+    }
+
+    @Override
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(tid, null);
+    }
+
+    @Override
+    public DbFileIterator Iterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(tid, ipred);
+    }
+
+    @Override
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    @Override
+    public DbFileIterator rangeIterator(TransactionId tid, IndexRange range, boolean descending, int limit) {
+        throw new UnsupportedOperationException("hash file is not ordered by key");
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return false;
+    }
+
+    @Override
+    public int getId() {
+        return tableid;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    @Override
+    public int keyField() {
+        return keyField;
+    }
+
+    @Override
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * 文件为空时写入元数据页和初始的桶
+     * @throws IOException
+     */
+    private synchronized void createIfEmpty() throws IOException {
+        if (f.length() == 0) {
+            try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+                bw.write(HashMetaPage.createInitialPageData());
+                for (int i = 0; i < HashMetaPage.INITIAL_BUCKETS; i++) {
+                    bw.write(HashBucketPage.createEmptyPageData());
+                }
+            }
+        }
+    }
+
+    /**
+     * 寻找主键所在桶的主页面
+     * @param tid
+     * @param dirtypages
+     * @param key
+     * @param perm 桶页面的权限
+     * @return
+     */
+    private HashBucketPage findBucketPage(TransactionId tid, Map<PageId, Page> dirtypages, Field key, Permissions perm) throws DbException, TransactionAbortedException {
+        try {
+            createIfEmpty();
+        } catch (IOException e) {
+            throw new DbException("create hash file failed: " + e.getMessage());
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        HashPageId metaId = HashMetaPage.getId(tableid);
+        if (!dirtypages.containsKey(metaId)) {
+            long version = bufferPool.getPageVersion(metaId);
+            HashPageId bucketId = bufferPool.readLatched(tid, metaId, page -> ((HashMetaPage) page).bucketPageOf(key));
+            if (bucketId != null) {
+                HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, bucketId, perm);
+                //持有桶页面的锁之后，桶的分裂需要修改元数据页
+                if (bufferPool.isUnchanged(metaId, version)) {
+                    return page;
+                }
+            }
+        }
+        boolean held = dirtypages.containsKey(metaId) || bufferPool.holdsLock(tid, metaId);
+        HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, metaId, Permissions.READ_ONLY);
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, meta.bucketPageOf(key), perm);
+        //桶页面加锁后桶不会再分裂，这里加的元数据页的锁可以提前释放，不阻塞其他事务分裂别的桶
+        if (!held) {
+            bufferPool.unsafeReleasePage(tid, metaId);
+        }
+        return page;
+    }
+
+    /**
+     * 在页面链末尾链接新的溢出页面
+     * @param tid
+     * @param dirtypages
+     * @param last 页面链的最后一个页面
+     * @return 新的溢出页面
+     */
+    private HashBucketPage addOverflowPage(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage last)
+            throws DbException, IOException, TransactionAbortedException {
+        last = (HashBucketPage) getPage(tid, dirtypages, last.getId(), Permissions.READ_WRITE);
+        HashBucketPage page = getEmptyPage(tid, dirtypages);
+        last.setOverflowId(page.getId());
+        return page;
+    }
+
+    /**
+     * 分裂下一个桶，把桶中哈希到新桶的tuple移到新桶
+     * @param tid
+     * @param dirtypages
+     */
+    private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid), Permissions.READ_WRITE);
+        int bucket = meta.getSplitBucket();
+        if (bucket < 0) {
+            return;
+        }
+        HashPageId oldId = meta.getBucketPageId(bucket);
+        HashBucketPage newPage = getEmptyPage(tid, dirtypages);
+        int newBucket = meta.split(newPage.getId().getPageNumber());
+        log.info("HashFile.splitBucket: split bucket {} into {}", bucket, newBucket);
+        HashBucketPage target = newPage;
+        HashPageId cur = oldId;
+        while (cur != null) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, cur, Permissions.READ_WRITE);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (meta.bucketOf(t.getField(keyField)) != newBucket) {
+                    continue;
+                }
+                page.deleteTuple(t);
+                if (target.getNumEmptySlots() == 0) {
+                    target = addOverflowPage(tid, dirtypages, target);
+                }
+                target.insertTuple(t);
+            }
+            cur = page.getOverflowId();
+        }
+    }
+
+    /**
+     * 在文件末尾追加空页面
+     * @param tid
+     * @param dirtypages
+     * @return
+     */
+    private HashBucketPage getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        int emptyPageNo;
+        synchronized (this) {
+            try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+                bw.write(HashBucketPage.createEmptyPageData());
+            }
+            emptyPageNo = numPages() - 1;
+        }
+        HashPageId newPageId = new HashPageId(tableid, emptyPageNo, HashPageId.BUCKET);
+        Database.getBufferPool().discardPage(newPageId);
+        dirtypages.remove(newPageId);
+        return (HashBucketPage) getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+    }
+
+    /**
+     * 获取页面，修改的页面放入dirtypages
+     */
+    private Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        if (dirtypages.containsKey(pid)) {
+            return dirtypages.get(pid);
+        }
+        Page p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) {
+            dirtypages.put(pid, p);
+        }
+        return p;
+    }
+
+    /**
+     * 遍历哈希文件，有等值条件时只读取主键所在的桶，其他条件遍历所有桶并过滤
+     */
+    private class HashFileIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final Deque<HashPageId> buckets = new ArrayDeque<>();//还没有读取的桶的主页面
+        private HashBucketPage curp;
+        private Iterator<Tuple> it;
+        private Tuple next;
+
+        HashFileIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            Map<PageId, Page> pages = new HashMap<>();
+            if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS) {
+                curp = findBucketPage(tid, pages, ipred.getField(), Permissions.READ_ONLY);
+            } else {
+                try {
+                    createIfEmpty();
+                } catch (IOException e) {
+                    throw new DbException("create hash file failed: " + e.getMessage());
+                }
+                HashMetaPage meta = (HashMetaPage) getPage(tid, pages, HashMetaPage.getId(tableid), Permissions.READ_ONLY);
+                for (int i = 1; i < meta.getNumBuckets(); i++) {
+                    buckets.add(meta.getBucketPageId(i));
+                }
+                curp = (HashBucketPage) getPage(tid, pages, meta.getBucketPageId(0), Permissions.READ_ONLY);
+            }
+            it = curp.iterator();
+        }
+
+        private Tuple readNext() throws DbException, TransactionAbortedException {
+            while (it != null) {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (ipred == null || t.getField(keyField).compare(ipred.getOp(), ipred.getField())) {
+                        return t;
+                    }
+                }
+                HashPageId nextId = curp.getOverflowId();
+                if (nextId == null) {
+                    nextId = buckets.poll();
+                }
+                if (nextId == null) {
+                    it = null;
+                    return null;
+                }
+                curp = (HashBucketPage) Database.getBufferPool().getPage(tid, nextId, Permissions.READ_ONLY);
+                it = curp.iterator();
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next == null) {
+                next = readNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            buckets.clear();
+            curp = null;
+            it = null;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package index;
+
+import common.DbException;
+import storage.BufferPool;
+import storage.Field;
+import storage.Page;
+import transaction.TransactionId;
+
+import java.io.*;
+
+/**
+ * 线性哈希文件的元数据页，是文件的第0页
+ * 桶数 = INITIAL_BUCKETS * 2^level + next，桶号小于next的桶已经在本轮分裂过，按下一轮的桶数取模
+ * 记录每个桶的主页面页号，桶的溢出页面由主页面链接
+ */
+public class HashMetaPage implements Page {
+    public static final int INITIAL_BUCKETS = 4;//初始桶数，必须是2的幂
+    private static final int HEADER_SIZE = 12;
+
+    private boolean dirty = false;//脏页标记
+    private TransactionId dirtier = null;//修改为脏页的事务id
+
+    private final HashPageId pid;
+    private int level;//已完成分裂的轮数
+    private int next;//本轮下一个要分裂的桶
+    private int[] buckets;//key:桶号 value:桶主页面的页号
+    private byte[] oldData;//修改前镜像
+
+    public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        level = dis.readInt();
+        next = dis.readInt();
+        int numBuckets = dis.readInt();
+        buckets = new int[numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            buckets[i] = dis.readInt();
+        }
+        setBeforeImage();
+    }
+
+    public static HashPageId getId(int tableId) {
+        return new HashPageId(tableId, 0, HashPageId.META);
+    }
+
+    /**
+     * 初始元数据页，桶i的主页面为第i+1页
+     * @return
+     */
+    public static byte[] createInitialPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(0);
+            dos.writeInt(0);
+            dos.writeInt(INITIAL_BUCKETS);
+            for (int i = 0; i < INITIAL_BUCKETS; i++) {
+                dos.writeInt(i + 1);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - HEADER_SIZE - INITIAL_BUCKETS * 4]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * 元数据页最多能记录的桶数
+     * @return
+     */
+    public static int getMaxBuckets() {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / 4;
+    }
+
+    /**
+     * 计算主键所在的桶
+     * @param key
+     * @return
+     */
+    public int bucketOf(Field key) {
+        int h = key.hashCode();
+        h = (h ^ (h >>> 16)) * 0x9E3779B9;
+        h ^= h >>> 16;
+        int bucket = h & ((INITIAL_BUCKETS << level) - 1);
+        if (bucket < next) {
+            bucket = h & ((INITIAL_BUCKETS << (level + 1)) - 1);
+        }
+        return bucket;
+    }
+
+    /**
+     * 主键所在桶的主页面
+     * @param key
+     * @return
+     */
+    public HashPageId bucketPageOf(Field key) {
+        return getBucketPageId(bucketOf(key));
+    }
+
+    public HashPageId getBucketPageId(int bucket) {
+        return new HashPageId(pid.getTableId(), buckets[bucket], HashPageId.BUCKET);
+    }
+
+    public int getNumBuckets() {
+        return buckets.length;
+    }
+
+    /**
+     * 下一个要分裂的桶
+     * @return 桶数已达到元数据页的上限时返回-1
+     */
+    public int getSplitBucket() {
+        return buckets.length >= getMaxBuckets() ? -1 : next;
+    }
+
+    /**
+     * 分裂下一个桶，新桶的桶号为 被分裂的桶号 + INITIAL_BUCKETS * 2^level
+     * @param pageNo 新桶主页面的页号
+     * @return 新桶的桶号
+     * @throws DbException 桶数已达到上限
+     */
+    public int split(int pageNo) throws DbException {
+        if (getSplitBucket() < 0) {
+            throw new DbException("hash file has reached the maximum number of buckets");
+        }
+        int[] newBuckets = new int[buckets.length + 1];
+        System.arraycopy(buckets, 0, newBuckets, 0, buckets.length);
+        newBuckets[buckets.length] = pageNo;
+        buckets = newBuckets;
+        next++;
+        if (next == INITIAL_BUCKETS << level) {
+            level++;
+            next = 0;
+        }
+        return buckets.length - 1;
+    }
+
+    @Override
+    public HashPageId getId() {
+        return pid;
+    }
+
+    @Override
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+
+    @Override
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    @Override
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(level);
+            dos.writeInt(next);
+            dos.writeInt(buckets.length);
+            for (int bucket : buckets) {
+                dos.writeInt(bucket);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - HEADER_SIZE - buckets.length * 4]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public HashMetaPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (this) {
+                oldDataRef = oldData;
+            }
+            return new HashMetaPage(pid, oldDataRef);
+        } catch (IOException e) {
+            //构造时已经解析成功过
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setBeforeImage(byte[] data) {
+        synchronized (this) {
+            oldData = data.clone();
+        }
+    }
+}
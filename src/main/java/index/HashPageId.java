@@ -0,0 +1,23 @@
+package index;
+
+import lombok.Data;
+import storage.PageId;
+
+@Data
+public class HashPageId implements PageId {
+
+    public final static int META = 0;
+    public final static int BUCKET = 1;
+
+    private final int tableId;
+    private final int pageNumber;
+    private final int pageCategory;
+
+    public int[] serialize() {
+        int[] data = new int[3];
+        data[0] = tableId;
+        data[1] = pageNumber;
+        data[2] = pageCategory;
+        return data;
+    }
+}
@@ -0,0 +1,50 @@
+package index;
+
+import execution.IndexPredicate;
+import execution.IndexRange;
+import execution.Predicate;
+import storage.DbFile;
+import storage.DbFileIterator;
+import transaction.TransactionId;
+
+/**
+ * 按索引字段组织的文件，可以作为表的文件组织，也可以作为二级索引的索引文件
+ */
+public interface IndexFile extends DbFile {
+
+    /**
+     * 按索引字段查找满足条件的tuple
+     * @param tid
+     * @param ipred 作用于索引字段的条件
+     * @return
+     */
+    DbFileIterator Iterator(TransactionId tid, IndexPredicate ipred);
+
+    /**
+     * 是否能用索引完成该操作符的条件，不能完成时Iterator退化为全表扫描
+     * @param op
+     * @return
+     */
+    boolean supports(Predicate.Op op);
+
+    /**
+     * 按索引字段的顺序扫描范围内的tuple，越过范围或返回limit个tuple后不再读取之后的页面
+     * @param tid
+     * @param range
+     * @param descending 是否按索引字段降序
+     * @param limit 最多返回的tuple数，0表示不限制
+     * @return
+     * @throws UnsupportedOperationException 文件不按索引字段的顺序保存
+     */
+    DbFileIterator rangeIterator(TransactionId tid, IndexRange range, boolean descending, int limit);
+
+    /**
+     * 是否按索引字段的顺序保存，只有有序的文件支持rangeIterator
+     * @return
+     */
+    boolean isOrdered();
+
+    int keyField();
+
+    int numPages();
+}
@@ -0,0 +1,356 @@
+package index;
+
+import common.Database;
+import common.DbException;
+import common.Permissions;
+import common.TransactionAbortedException;
+import common.Type;
+import execution.IndexPredicate;
+import execution.IndexRange;
+import execution.Predicate;
+import heap.HeapFile;
+import heap.HeapPage;
+import heap.HeapPageId;
+import lombok.Getter;
+import storage.*;
+import transaction.Transaction;
+import transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 堆表上的非聚簇二级索引，用B+树或哈希文件保存 索引字段值 -> RecordId
+ * 索引项为(key, 页号, 插槽号, 包含字段...)，索引文件作为一张表加入目录，索引项通过缓冲池插入删除，
+ * 和基表的修改一起加锁、记录日志、回滚和恢复
+ * 查询只用到索引字段和包含字段时是覆盖索引，可以只读取索引项，不访问基表
+ */
+@Getter
+public class SecondaryIndex {
+
+    /**
+     * 索引文件的组织方式，哈希索引只支持等值查找
+     */
+    public enum Kind {
+        BTREE, HASH
+    }
+
+    private final String name;//索引名，也是索引文件在目录中的表名
+    private final int tableId;//基表id
+    private final int keyField;//基表中的索引字段
+    private final int[] includedFields;//索引项中额外保存的基表字段
+    private final IndexFile file;
+
+    public SecondaryIndex(String name, int tableId, int keyField, File f) {
+        this(name, tableId, keyField, f, Kind.BTREE);
+    }
+
+    public SecondaryIndex(String name, int tableId, int keyField, File f, Kind kind) {
+        this(name, tableId, keyField, f, kind, new int[0]);
+    }
+
+    /**
+     * @param name
+     * @param tableId
+     * @param keyField
+     * @param f
+     * @param kind
+     * @param includedFields 保存在索引项中的其他基表字段，用于只读取索引的查询
+     */
+    public SecondaryIndex(String name, int tableId, int keyField, File f, Kind kind, int[] includedFields) {
+        this.name = name;
+        this.tableId = tableId;
+        this.keyField = keyField;
+        this.includedFields = includedFields.clone();
+        TupleDesc entryDesc = entryDesc(Database.getCatalog().getTupleDesc(tableId), keyField, this.includedFields);
+        this.file = kind == Kind.HASH ? new HashFile(f, 0, entryDesc) : new BTreeFile(f, 0, entryDesc);
+    }
+
+    /**
+     * 索引项的结构
+     * @param td 基表的结构
+     * @param keyField
+     * @param includedFields
+     * @return
+     */
+    public static TupleDesc entryDesc(TupleDesc td, int keyField, int[] includedFields) {
+        Type[] types = new Type[3 + includedFields.length];
+        String[] names = new String[types.length];
+        types[0] = td.getFieldType(keyField);
+        names[0] = "key";
+        types[1] = types[2] = Type.INT_TYPE;
+        names[1] = "page";
+        names[2] = "slot";
+        for (int i = 0; i < includedFields.length; i++) {
+            types[3 + i] = td.getFieldType(includedFields[i]);
+            names[3 + i] = td.getFieldName(includedFields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * 只读取索引时输出的tuple结构：索引字段和包含字段，字段名和基表相同
+     * @return
+     */
+    public TupleDesc getCoveredDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[1 + includedFields.length];
+        String[] names = new String[types.length];
+        types[0] = td.getFieldType(keyField);
+        names[0] = td.getFieldName(keyField);
+        for (int i = 0; i < includedFields.length; i++) {
+            types[1 + i] = td.getFieldType(includedFields[i]);
+            names[1 + i] = td.getFieldName(includedFields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * 索引项是否包含这些基表字段
+     * @param fields
+     * @return
+     */
+    public boolean covers(Collection<Integer> fields) {
+        for (int field : fields) {
+            if (field != keyField && Arrays.stream(includedFields).noneMatch(i -> i == field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 基表tuple对应的索引项
+     * @param t 已插入基表的tuple
+     * @param rid tuple在基表中的位置
+     * @return
+     */
+    private Tuple entryOf(Tuple t, RecordId rid) {
+        Tuple entry = new Tuple(file.getTupleDesc());
+        entry.setField(0, t.getField(keyField));
+        entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(2, new IntField(rid.getTupleNumber()));
+        for (int i = 0; i < includedFields.length; i++) {
+            entry.setField(3 + i, t.getField(includedFields[i]));
+        }
+        return entry;
+    }
+
+    /**
+     * 索引项中索引字段和包含字段组成的tuple，RecordId为基表中的位置
+     * @param entry
+     * @param td getCoveredDesc()
+     * @return
+     */
+    private Tuple coveredOf(Tuple entry, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        t.setField(0, entry.getField(0));
+        for (int i = 0; i < includedFields.length; i++) {
+            t.setField(1 + i, entry.getField(3 + i));
+        }
+        t.setRecordId(recordIdOf(entry));
+        return t;
+    }
+
+    private RecordId recordIdOf(Tuple entry) {
+        int pageNo = ((IntField) entry.getField(1)).getValue();
+        int slot = ((IntField) entry.getField(2)).getValue();
+        return new RecordId(new HeapPageId(tableId, pageNo), slot);
+    }
+
+    /**
+     * 基表插入tuple后插入索引项
+     * @param tid
+     * @param t
+     */
+    public void insert(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entryOf(t, t.getRecordId()));
+    }
+
+    /**
+     * 基表删除tuple后删除索引项
+     * @param tid
+     * @param t
+     * @param rid tuple被删除前在基表中的位置
+     * @throws DbException 索引中没有该tuple的索引项
+     */
+    public void delete(TransactionId tid, Tuple t, RecordId rid) throws DbException, IOException, TransactionAbortedException {
+        Tuple entry = null;
+        DbFileIterator it = file.Iterator(tid, new IndexPredicate(Predicate.Op.EQUALS, t.getField(keyField)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple next = it.next();
+                if (recordIdOf(next).equals(rid)) {
+                    entry = next;
+                    break;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (entry == null) {
+            throw new DbException("index " + name + " has no entry for " + rid);
+        }
+        Database.getBufferPool().deleteTuple(tid, entry);
+    }
+
+    /**
+     * 用表中已有的数据建立索引，每个基表页面在单独的事务中处理，建立期间表上不能有并发修改
+     * 空的B+树索引把索引项外部排序后自底向上批量建立，其他情况逐项插入
+     */
+    public void build() throws DbException, IOException, TransactionAbortedException {
+        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        BTreeUtility.ExternalSorter sorter = null;
+        if (file instanceof BTreeFile && ((BTreeFile) file).getFile().length() == 0) {
+            sorter = new BTreeUtility.ExternalSorter(file.getTupleDesc(), file.keyField(), BTreeUtility.DEFAULT_RUN_SIZE);
+        }
+        for (int i = 0; i < heapFile.numPages(); i++) {
+            Transaction t = new Transaction();
+            t.start();
+            try {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), new HeapPageId(tableId, i), Permissions.READ_ONLY);
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    Tuple next = it.next();
+                    if (sorter != null) {
+                        sorter.add(entryOf(next, next.getRecordId()));
+                    } else {
+                        insert(t.getId(), next);
+                    }
+                }
+                t.commit();
+            } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+                t.abort();
+                throw e;
+            }
+        }
+        if (sorter != null) {
+            BTreeFileEncoder.bulkLoad((BTreeFile) file, sorter.iterator(), BTreeFileEncoder.DEFAULT_FILL_FACTOR);
+        }
+    }
+
+    /**
+     * 按索引查找基表中满足条件的tuple
+     * @param tid
+     * @param ipred 作用于索引字段的条件
+     * @return
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new SecondaryIndexIterator(tid, file.Iterator(tid, ipred), 0, false);
+    }
+
+    /**
+     * 按索引字段的顺序读取基表中索引字段在范围内的tuple
+     * @param tid
+     * @param range
+     * @param descending
+     * @param limit 最多返回的tuple数，0表示不限制
+     * @return
+     * @throws UnsupportedOperationException 哈希索引不保持key的顺序
+     */
+    public DbFileIterator rangeIterator(TransactionId tid, IndexRange range, boolean descending, int limit) {
+        //和基表不一致的索引项会被跳过，limit按返回的基表tuple计数
+        return new SecondaryIndexIterator(tid, file.rangeIterator(tid, range, descending, 0), limit, false);
+    }
+
+    /**
+     * 只读取索引项，按索引字段的顺序返回范围内的索引字段和包含字段，结构为getCoveredDesc()
+     * 不访问基表，快照读取时看到的是索引页面在快照中的版本
+     * @param tid
+     * @param range
+     * @param descending
+     * @param limit 最多返回的tuple数，0表示不限制
+     * @return
+     * @throws UnsupportedOperationException 哈希索引不保持key的顺序
+     */
+    public DbFileIterator coveredIterator(TransactionId tid, IndexRange range, boolean descending, int limit) {
+        return new SecondaryIndexIterator(tid, file.rangeIterator(tid, range, descending, limit), 0, true);
+    }
+
+    /**
+     * 读取满足条件的索引项，再按RecordId对基表的行加锁读取tuple；只读取索引时直接由索引项生成tuple
+     */
+    private class SecondaryIndexIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private final DbFileIterator entries;
+        private final int limit;//0表示不限制
+        private final TupleDesc coveredDesc;//只读取索引时输出的结构，否则为null
+        private boolean open;
+        private int returned;//已返回的tuple数
+        private Tuple next;
+
+        SecondaryIndexIterator(TransactionId tid, DbFileIterator entries, int limit, boolean indexOnly) {
+            this.tid = tid;
+            this.entries = entries;
+            this.limit = limit;
+            this.coveredDesc = indexOnly ? getCoveredDesc() : null;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            entries.open();
+            open = true;
+            returned = 0;
+        }
+
+        private Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!open || (limit > 0 && returned >= limit)) {
+                return null;
+            }
+            while (entries.hasNext()) {
+                Tuple entry = entries.next();
+                if (coveredDesc != null) {
+                    returned++;
+                    return coveredOf(entry, coveredDesc);
+                }
+                RecordId rid = recordIdOf(entry);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid, Permissions.READ_ONLY);
+                Tuple t = page.getTuple(rid.getTupleNumber());
+                //快照读取时索引和基表的版本可能不一致，以基表为准
+                if (t != null && t.getField(keyField).equals(entry.getField(0))) {
+                    returned++;
+                    return t;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next == null) {
+                next = readNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                entries.close();
+                open = false;
+            }
+            next = null;
+        }
+    }
+}
@@ -16,9 +16,34 @@ import java.util.*;
 
 @AllArgsConstructor
 public class JoinOptimizer {
+    private static final int NO_STATS_CARDINALITY = 100;//没有统计信息的表估计的行数
+
     private LogicalPlan p;
     private List<LogicalJoinNode> joins;
 
+    /**
+     * 系统表等没有统计信息的表没有数据页，扫描代价按0估计
+     * @param stats
+     * @param tableName
+     * @return
+     */
+    private static double scanCost(Map<String, TableStats> stats, String tableName) {
+        TableStats s = stats.get(tableName);
+        return s == null ? 0 : s.estimateScanCost();
+    }
+
+    /**
+     * 没有统计信息的表按NO_STATS_CARDINALITY行估计，和过滤条件的选择性按1估计一致
+     * @param stats
+     * @param tableName
+     * @param selectivity
+     * @return
+     */
+    private static int cardinality(Map<String, TableStats> stats, String tableName, double selectivity) {
+        TableStats s = stats.get(tableName);
+        return s == null ? (int) (NO_STATS_CARDINALITY * selectivity) : s.estimateTableCardinality(selectivity);
+    }
+
     public static OpIterator instantiateJoin(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2) throws ParseException {
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -118,6 +143,10 @@ public class JoinOptimizer {
 
     public List<LogicalJoinNode> orderJoins(Map<String, TableStats> stats, Map<String, Double> filterSelectivityMap, boolean explain) throws ParseException {
         int size = joins.size();
+        //单表查询没有join需要排序
+        if (size == 0) {
+            return joins;
+        }
         //记录最优查询计划
         PlanCache planCache = new PlanCache();
         CostCard bestCostCard = null;
@@ -220,12 +249,12 @@ public class JoinOptimizer {
             //2.1 当只有一个joinToRemove节点时，就利用该节点来计算cost和card
             prevBest = new ArrayList<>();
 
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(filterSelectivityMap.get(j.t1Alias));
+            t1cost = scanCost(stats, table1Name);
+            t1card = cardinality(stats, table1Name, filterSelectivityMap.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name).estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name).estimateTableCardinality(filterSelectivityMap.get(j.t2Alias));
+            t2cost = table2Alias == null ? 0 : scanCost(stats, table2Name);
+            t2card = table2Alias == null ? 0 : cardinality(stats, table2Name, filterSelectivityMap.get(j.t2Alias));
             rightPkey = table2Alias != null && isPkey(table2Alias, j.f2PureName);
 
         } else {
@@ -246,8 +275,8 @@ public class JoinOptimizer {
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name).estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name).estimateTableCardinality(filterSelectivityMap.get(j.t2Alias));
+                t2cost = j.t2Alias == null ? 0 : scanCost(stats, table2Name);
+                t2card = j.t2Alias == null ? 0 : cardinality(stats, table2Name, filterSelectivityMap.get(j.t2Alias));
                 rightPkey = j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName);
 
             } else if (doesJoin(prevBest, j.t2Alias)) {
@@ -256,8 +285,8 @@ public class JoinOptimizer {
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
 
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(filterSelectivityMap.get(j.t1Alias));
+                t1cost = scanCost(stats, table1Name);
+                t1card = cardinality(stats, table1Name, filterSelectivityMap.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
             } else {
@@ -362,10 +391,9 @@ public class JoinOptimizer {
             if (n == null) {
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + scanCost(stats, table1Name)
                         + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                        selectivities.get(j.t1Alias)) + ")");
+                        + cardinality(stats, table1Name, selectivities.get(j.t1Alias)) + ")");
                 root.add(n);
             } else {
                 root.add(n);
@@ -379,13 +407,9 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                 + " (Cost = "
-                                + stats.get(table2Name)
-                                .estimateScanCost()
+                                + scanCost(stats, table2Name)
                                 + ", card = "
-                                + stats.get(table2Name)
-                                .estimateTableCardinality(
-                                        selectivities
-                                                .get(j.t2Alias)) + ")"));
+                                + cardinality(stats, table2Name, selectivities.get(j.t2Alias)) + ")"));
                 root.add(n);
             } else {
                 root.add(n);
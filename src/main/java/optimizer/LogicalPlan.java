@@ -5,8 +5,12 @@ import common.Database;
 import common.ParseException;
 import common.Type;
 import execution.*;
+import index.HashFile;
+import index.IndexFile;
+import index.SecondaryIndex;
 import lombok.Getter;
 import lombok.Setter;
+import storage.DbFile;
 import storage.Field;
 import storage.IntField;
 import storage.StringField;
@@ -35,6 +39,11 @@ public class LogicalPlan {
     private boolean hasOrderBy = false;//是否排序
     private boolean oderByAscent=false;//排序是否上升
     private String oderByField;//排序字段
+    private boolean orderedByIndex = false;//是否已按排序字段上的索引顺序扫描，不需要再排序
+
+    @Getter
+    @Setter
+    private int limit = 0;//最多输出的行数，0表示不限制
 
     @Getter
     @Setter
@@ -50,11 +59,272 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /**
+     * 查找表上某个字段能完成该条件的二级索引
+     * @param tableId
+     * @param field
+     * @param op
+     * @return 没有索引时返回null
+     */
+    private SecondaryIndex findIndex(int tableId, int field, Predicate.Op op) {
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            if (index.getKeyField() == field && index.getFile().supports(op)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 估算用索引扫描完成条件的代价，表是B+树或哈希文件且条件作用于它的索引字段时按文件组织查找，否则查找二级索引
+     * 没有统计信息时按文件组织查找总是优于全表扫描，二级索引只用于等值条件
+     * @param s 表的统计信息，可以为null
+     * @param tableId
+     * @param predicate
+     * @return 没有可用的索引时返回Double.MAX_VALUE
+     */
+    private double estimateIndexScanCost(TableStats s, int tableId, Predicate predicate) {
+        Predicate.Op op = predicate.getOp();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        SecondaryIndex index = findIndex(tableId, predicate.getField(), op);
+        boolean clustered = index == null && dbFile instanceof IndexFile
+                && ((IndexFile) dbFile).keyField() == predicate.getField() && ((IndexFile) dbFile).supports(op);
+        if (index == null && !clustered) {
+            return Double.MAX_VALUE;
+        }
+        if (s == null) {
+            return clustered ? 0 : op == Predicate.Op.EQUALS ? 1 : Double.MAX_VALUE;
+        }
+        double sel = s.estimateSelectivity(predicate.getField(), op, predicate.getOperand());
+        if (clustered) {
+            return s.estimateClusteredIndexScanCost(sel, dbFile instanceof HashFile);
+        }
+        return s.estimateSecondaryIndexScanCost(sel, index.getFile().numPages(), index.getFile() instanceof HashFile);
+    }
+
+    /**
+     * 合并字段上能表示为范围的条件
+     * @param field
+     * @param predicates
+     * @param residual 输出参数，不能由范围完成的条件
+     * @return
+     */
+    private static IndexRange rangeOf(int field, List<Predicate> predicates, List<Predicate> residual) {
+        IndexRange range = IndexRange.all();
+        for (Predicate predicate : predicates) {
+            IndexRange r = predicate.getField() == field ? range.intersect(new IndexPredicate(predicate.getOp(), predicate.getOperand())) : null;
+            if (r == null) {
+                residual.add(predicate);
+            } else {
+                range = r;
+            }
+        }
+        return range;
+    }
+
+    /**
+     * 由范围完成的条件的选择性
+     * @param s 表的统计信息，可以为null
+     * @param predicates
+     * @param residual rangeOf得到的剩余条件
+     * @return
+     */
+    private static double rangeSelectivity(TableStats s, List<Predicate> predicates, List<Predicate> residual) {
+        double sel = 1.0;
+        for (Predicate predicate : predicates) {
+            if (s != null && !residual.contains(predicate)) {
+                sel *= s.estimateSelectivity(predicate.getField(), predicate.getOp(), predicate.getOperand());
+            }
+        }
+        return sel;
+    }
+
+    /**
+     * 不按索引顺序、不只读取索引时代价最小的访问路径的代价
+     * @param s 表的统计信息，可以为null
+     * @param tableId
+     * @param predicates
+     * @return
+     */
+    private double estimateAccessCost(TableStats s, int tableId, List<Predicate> predicates) {
+        double cost = s == null ? Double.MAX_VALUE : s.estimateScanCost();
+        for (Predicate predicate : predicates) {
+            cost = Math.min(cost, estimateIndexScanCost(s, tableId, predicate));
+        }
+        return cost;
+    }
+
+    /**
+     * 单表查询用到的基表字段：select列表、聚合、分组、排序和过滤条件中的字段
+     * @param tableId
+     * @return 有select *等不能确定的字段时返回null
+     */
+    private Set<Integer> referencedFields(int tableId) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            names.add(si.fieldName);
+        }
+        if (hasAggregate) {
+            names.add(aggregateField);
+            if (groupByField != null) {
+                names.add(groupByField);
+            }
+        }
+        if (hasOrderBy) {
+            names.add(oderByField);
+        }
+        for (LogicalFilterNode filter : filters) {
+            names.add(filter.fieldQuantifiedName);
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Set<Integer> fields = new HashSet<>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*")) {
+                return null;
+            }
+            try {
+                fields.add(td.fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * 查找包含所有字段的B+树二级索引，有多个时选择页面最少的
+     * @param tableId
+     * @param fields
+     * @return 没有时返回null
+     */
+    private SecondaryIndex findCoveringIndex(int tableId, Set<Integer> fields) {
+        SecondaryIndex best = null;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            if (index.getFile().isOrdered() && index.covers(fields)
+                    && (best == null || index.getFile().numPages() < best.getFile().numPages())) {
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 在扫描之上加上剩余的过滤条件，条件中的字段按字段名对应到扫描输出的结构
+     * @param iterator
+     * @param residual 作用于全表扫描输出结构的条件
+     * @param from 全表扫描输出的结构
+     * @return
+     */
+    private static OpIterator withFilters(OpIterator iterator, List<Predicate> residual, TupleDesc from) {
+        TupleDesc to = iterator.getTupleDesc();
+        for (Predicate predicate : residual) {
+            int field = to.fieldNameToIndex(from.getFieldName(predicate.getField()));
+            iterator = new Filter(new Predicate(field, predicate.getOp(), predicate.getOperand()), iterator);
+        }
+        return iterator;
+    }
+
+    /**
+     * 单表排序查询按排序字段上的B+树索引的顺序扫描，代替全部读取后排序
+     * 排序字段上的范围条件由索引扫描完成，其他条件加在扫描之上；没有其他条件时limit下推到扫描，读够之后不再读取之后的页面
+     * 二级索引覆盖查询用到的字段时只读取索引，否则需要逐行读取基表，只在能下推limit或代价低于其他访问路径时使用
+     * @param t
+     * @param alias
+     * @param predicates 表上的过滤条件
+     * @param s 表的统计信息，可以为null
+     * @param explain
+     * @return 不能或不值得按索引顺序扫描时返回null
+     */
+    private OpIterator orderedScan(TransactionId t, String alias, List<Predicate> predicates, TableStats s, boolean explain) {
+        int tableId = this.getTableId(alias);
+        TupleDesc scanDesc = tableIteratorMap.get(alias).getTupleDesc();
+        int field;
+        try {
+            field = scanDesc.fieldNameToIndex(oderByField);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        boolean clustered = dbFile instanceof IndexFile && ((IndexFile) dbFile).isOrdered() && ((IndexFile) dbFile).keyField() == field;
+        SecondaryIndex index = null;
+        boolean indexOnly = false;
+        if (!clustered) {
+            Set<Integer> fields = referencedFields(tableId);
+            for (SecondaryIndex i : Database.getCatalog().getIndexes(tableId)) {
+                if (i.getKeyField() == field && i.getFile().isOrdered() && (index == null || !indexOnly)) {
+                    index = i;
+                    indexOnly = fields != null && i.covers(fields);
+                }
+            }
+            if (index == null) {
+                return null;
+            }
+        }
+
+        //排序字段上能表示为范围的条件合并成一个范围
+        List<Predicate> residual = new ArrayList<>();
+        IndexRange range = rangeOf(field, predicates, residual);
+        int scanLimit = residual.isEmpty() ? limit : 0;
+        if (scanLimit == 0) {
+            //读取整个范围时和其他访问路径比较代价，其他路径之后还需要排序
+            double sel = rangeSelectivity(s, predicates, residual);
+            double cost = s == null ? (clustered || indexOnly ? 0 : Double.MAX_VALUE)
+                    : clustered ? s.estimateClusteredIndexScanCost(sel, false)
+                    : indexOnly ? s.estimateIndexOnlyScanCost(sel, index.getFile().numPages())
+                    : s.estimateSecondaryIndexScanCost(sel, index.getFile().numPages(), false);
+            if (cost >= estimateAccessCost(s, tableId, residual)) {
+                return null;
+            }
+        }
+
+        OpIterator iterator = index != null ? new IndexScan(t, index, range, !oderByAscent, scanLimit, indexOnly, alias)
+                : new IndexScan(t, tableId, range, !oderByAscent, scanLimit, alias);
+        if (explain) {
+            System.out.println("Using " + (index != null ? (indexOnly ? "covering index " : "index ") + index.getName() : "file organization")
+                    + " for ORDER BY " + oderByField + (oderByAscent ? " ASC" : " DESC") + " in range " + range
+                    + (scanLimit > 0 ? " LIMIT " + scanLimit : ""));
+        }
+        return withFilters(iterator, residual, scanDesc);
+    }
+
+    /**
+     * 单表查询用到的字段都在某个B+树二级索引中时，只读取索引完成扫描和过滤，不访问基表
+     * 索引字段上的范围条件由索引扫描完成，其他条件作用于索引输出的tuple
+     * @param t
+     * @param alias
+     * @param predicates 表上的过滤条件
+     * @param s 表的统计信息，可以为null
+     * @param explain
+     * @return 没有覆盖索引或代价不低于其他访问路径时返回null
+     */
+    private OpIterator indexOnlyScan(TransactionId t, String alias, List<Predicate> predicates, TableStats s, boolean explain) {
+        int tableId = this.getTableId(alias);
+        Set<Integer> fields = referencedFields(tableId);
+        SecondaryIndex index = fields == null ? null : findCoveringIndex(tableId, fields);
+        if (index == null) {
+            return null;
+        }
+        List<Predicate> residual = new ArrayList<>();
+        IndexRange range = rangeOf(index.getKeyField(), predicates, residual);
+        double sel = rangeSelectivity(s, predicates, residual);
+        double cost = s == null ? 0 : s.estimateIndexOnlyScanCost(sel, index.getFile().numPages());
+        if (cost >= estimateAccessCost(s, tableId, predicates)) {
+            return null;
+        }
+        OpIterator iterator = new IndexScan(t, index, range, false, 0, true, alias);
+        if (explain) {
+            System.out.println("Using covering index " + index.getName() + " in range " + range);
+        }
+        return withFilters(iterator, residual, tableIteratorMap.get(alias).getTupleDesc());
+    }
+
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParseException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         Map<String,TableStats> statsMap = new HashMap<>();//key:表名 value:表数据统计
         Map<String,Double> selectivityMap = new HashMap<>();//key:表名 value:表选择性
         Map<String,String> equivMap = new HashMap<>();//key:旧表名 value:join的新表名
+        Map<String,List<Predicate>> predicateMap = new LinkedHashMap<>();//key:表名 value:表上的过滤条件
 
         //遍历表集合
         while (tableIt.hasNext()) {
@@ -99,12 +369,65 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParseException("Unknown field " + logicalFilterNode.fieldQuantifiedName);
             }
-            tableIteratorMap.put(logicalFilterNode.table, new Filter(predicate, tableIterator));
 
-            //计算表选择性
+            //计算表选择性，系统表等没有统计信息的表按1估计
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(logicalFilterNode.table)));
-            double sel = s.estimateSelectivity(tableIterator.getTupleDesc().fieldNameToIndex(logicalFilterNode.fieldQuantifiedName), logicalFilterNode.operator, f);
+            double sel = s == null ? 1.0 : s.estimateSelectivity(predicate.getField(), logicalFilterNode.operator, f);
             selectivityMap.put(logicalFilterNode.table, selectivityMap.get(logicalFilterNode.table) * sel);
+            predicateMap.computeIfAbsent(logicalFilterNode.table, k -> new ArrayList<>()).add(predicate);
+        }
+
+        //单表查询优先考虑按排序字段上的索引顺序扫描，其次考虑只读取覆盖索引
+        orderedByIndex = false;
+        if (tables.size() == 1 && joins.isEmpty()) {
+            String alias = tables.get(0).name;
+            int tableId = this.getTableId(alias);
+            List<Predicate> predicates = predicateMap.getOrDefault(alias, Collections.emptyList());
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            OpIterator iterator = null;
+            if (hasOrderBy && !hasAggregate) {
+                iterator = orderedScan(t, alias, predicates, s, explain);
+                orderedByIndex = iterator != null;
+            }
+            if (iterator == null) {
+                iterator = indexOnlyScan(t, alias, predicates, s, explain);
+            }
+            if (iterator != null) {
+                tableIteratorMap.put(alias, iterator);
+                predicateMap.remove(alias);
+            }
+        }
+
+        //为每个表选择代价最小的访问路径，索引扫描完成的条件不再需要Filter
+        for (Map.Entry<String, List<Predicate>> entry : predicateMap.entrySet()) {
+            String alias = entry.getKey();
+            int tableId = this.getTableId(alias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            double bestCost = s == null ? Double.MAX_VALUE : s.estimateScanCost();
+            Predicate chosen = null;
+            for (Predicate predicate : entry.getValue()) {
+                double cost = estimateIndexScanCost(s, tableId, predicate);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    chosen = predicate;
+                }
+            }
+            OpIterator iterator = tableIteratorMap.get(alias);
+            if (chosen != null) {
+                IndexPredicate ipred = new IndexPredicate(chosen.getOp(), chosen.getOperand());
+                SecondaryIndex index = findIndex(tableId, chosen.getField(), chosen.getOp());
+                iterator = index != null ? new IndexScan(t, index, ipred, alias) : new IndexScan(t, tableId, ipred, alias);
+                if (explain) {
+                    System.out.println("Using " + (index != null ? "index " + index.getName() : "file organization")
+                            + " for " + iterator.getTupleDesc().getFieldName(chosen.getField()) + " " + chosen.getOp() + " " + chosen.getOperand());
+                }
+            }
+            for (Predicate predicate : entry.getValue()) {
+                if (predicate != chosen) {
+                    iterator = new Filter(predicate, iterator);
+                }
+            }
+            tableIteratorMap.put(alias, iterator);
         }
 
         //join优化
@@ -232,10 +555,15 @@ public class LogicalPlan {
         }
 
         //分组操作
-        if (hasOrderBy) {
+        if (hasOrderBy && !orderedByIndex) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oderByField), oderByAscent, node);
         }
 
+        //只输出前limit行
+        if (limit > 0) {
+            node = new Limit(limit, node);
+        }
+
         return new Project(outFields, outTypes, node);
     }
 
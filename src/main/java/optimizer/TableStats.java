@@ -3,6 +3,7 @@ package optimizer;
 import common.*;
 import execution.Predicate;
 import heap.HeapFile;
+import index.IndexFile;
 import lombok.Getter;
 import storage.*;
 import transaction.TransactionId;
@@ -34,10 +35,11 @@ public class TableStats {
     public TableStats(int tableId, int ioCostPerPage) {
         this.tableId = tableId;
         this.ioCostPerPage = ioCostPerPage;
-        HeapFile heapFile = (HeapFile) catalog.getDatabaseFile(tableId);
-        this.tupleDesc  = heapFile.getTupleDesc();
-        this.pageNum = heapFile.numPages();
-        this.dbFileIterator = heapFile.iterator(new TransactionId());
+        DbFile dbFile = catalog.getDatabaseFile(tableId);
+        this.tupleDesc  = dbFile.getTupleDesc();
+        this.pageNum = dbFile instanceof IndexFile ? ((IndexFile) dbFile).numPages() : ((HeapFile) dbFile).numPages();
+        TransactionId tid = new TransactionId();
+        this.dbFileIterator = dbFile.iterator(tid);
         this.max  = new int[tupleDesc.numFields()];
         this.min = new int[tupleDesc.numFields()];
         this.intHistograms = new IntHistogram[tupleDesc.numFields()];
@@ -85,6 +87,8 @@ public class TableStats {
         }
 
         this.dbFileIterator.close();
+        //释放扫描时加的读锁
+        bufferPool.transactionComplete(tid);
     }
 
     public static TableStats getTableStats(String tableName) {
@@ -100,6 +104,11 @@ public class TableStats {
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableId = tableIt.next();
+            //系统表没有数据页，二级索引的统计不用于选择访问路径，都不统计
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+            if (!(dbFile instanceof HeapFile || dbFile instanceof IndexFile) || Database.getCatalog().isIndex(tableId)) {
+                continue;
+            }
             TableStats s = new TableStats(tableId, IO_COST_PER_PAGE);
             setTableStats(Database.getCatalog().getTableName(tableId), s);
         }
@@ -114,6 +123,51 @@ public class TableStats {
         return this.pageNum*ioCostPerPage;
     }
 
+    /**
+     * 估算按表的文件组织查找的代价，B+树从根节点查找到叶节点，哈希文件直接读取桶，再顺序读取满足条件的页面
+     * @param selectivity 索引条件的选择性
+     * @param hash 是否是哈希文件
+     * @return
+     */
+    public double estimateClusteredIndexScanCost(double selectivity, boolean hash) {
+        return (probeCost(pageNum, hash) + Math.ceil(pageNum * selectivity)) * ioCostPerPage;
+    }
+
+    /**
+     * 估算二级索引扫描代价，读取满足条件的索引项后，每个tuple按RecordId随机读取一次基表页面
+     * @param selectivity 索引条件的选择性
+     * @param indexPages 索引文件的页面数
+     * @param hash 是否是哈希索引
+     * @return
+     */
+    public double estimateSecondaryIndexScanCost(double selectivity, int indexPages, boolean hash) {
+        return (probeCost(indexPages, hash) + Math.ceil(indexPages * selectivity) + selectivity * total) * ioCostPerPage;
+    }
+
+    /**
+     * 估算只读取覆盖索引的代价，读取满足条件的索引页面，不访问基表
+     * @param selectivity 索引条件的选择性
+     * @param indexPages 索引文件的页面数
+     * @return
+     */
+    public double estimateIndexOnlyScanCost(double selectivity, int indexPages) {
+        return (probeCost(indexPages, false) + Math.ceil(indexPages * selectivity)) * ioCostPerPage;
+    }
+
+    /**
+     * 估算找到第一个满足条件的页面前需要读取的页面数
+     * 哈希文件的元数据页总在缓冲池中，按1估计；B+树为树的高度，内部节点按每页100个子节点估计
+     * @param pages
+     * @param hash
+     * @return
+     */
+    private static int probeCost(int pages, boolean hash) {
+        if (hash || pages <= 1) {
+            return 1;
+        }
+        return (int) Math.ceil(Math.log(pages) / Math.log(100)) + 1;
+    }
+
     /**
      * 估算基数，tuple数*选择因子
      * @param selectivityFactor
@@ -4,12 +4,17 @@ import common.Database;
 import common.DbException;
 import common.Permissions;
 import common.TransactionAbortedException;
+import index.SecondaryIndex;
 import transaction.LockManager;
 import transaction.TransactionId;
+import transaction.TransactionMonitor;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Random;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class BufferPool {
 
@@ -20,6 +25,14 @@ public class BufferPool {
     private int numPages;
     private LRUCache<PageId,Page> buffer;
     private LockManager lockManager;
+    private final Map<PageId, PageImage> committedImages = new ConcurrentHashMap<>();//异步提交后等待日志刷盘的页面镜像
+    private final Map<Long, Integer> unflushedCounts = new HashMap<>();//key:事务id value:未写入磁盘的页面镜像数
+    private final VersionStore versionStore = new VersionStore();//只读事务的快照版本
+    private final RowChanges rowChanges = new RowChanges();//按行加锁的页面上未提交的修改
+    private final Map<Long, Workspace> workspaces = new ConcurrentHashMap<>();//key:乐观事务id value:事务的私有工作区
+    private final Map<PageId, Long> pageVersions = new ConcurrentHashMap<>();//key:页面 value:版本号，修改页面的事务结束后递增
+    private final Map<PageId, StampedLock> latches = new ConcurrentHashMap<>();//key:页面 value:页面latch，写事务登记修改时加写latch
+    private final Map<Long, List<Savepoint>> savepoints = new ConcurrentHashMap<>();//key:事务id value:按建立顺序排列的保存点
 
     public BufferPool(int numPages) {
         this.numPages = numPages;
@@ -27,6 +40,10 @@ public class BufferPool {
         this.lockManager = new LockManager();
     }
 
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
     public static int getPageSize() {
         return pageSize;
     }
@@ -41,20 +58,151 @@ public class BufferPool {
 
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
 
-        //自旋获取锁，超时抛出异常
-        boolean lockAcquired = false;
+        //只读事务读取快照版本，不加锁
+        Long snapshot = versionStore.getSnapshot(tid);
+        if (snapshot != null) {
+            return getSnapshotPage(tid, pid, snapshot, perm);
+        }
+        //乐观事务读写私有副本，不加锁
+        Workspace workspace = workspaces.get(tid.getId());
+        if (workspace != null) {
+            return getPrivatePage(workspace, pid);
+        }
+        acquire(tid, pid, perm, () -> lockManager.acquireLock(tid, pid, perm));
+        return beginWrite(tid, fetchPage(pid), perm);
+    }
+
+    /**
+     * 加锁获取页面但不登记为写事务，用于B+树加锁查找时经过的页面，确定要修改时再用getPage获取
+     * 持有写锁期间其他事务仍可以用readLatched读取页面
+     * @param tid
+     * @param pid
+     * @param perm
+     * @return
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page lockPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        if (versionStore.getSnapshot(tid) != null || workspaces.containsKey(tid.getId())) {
+            return getPage(tid, pid, perm);
+        }
+        acquire(tid, pid, perm, () -> lockManager.acquireLock(tid, pid, perm));
+        return fetchPage(pid);
+    }
+
+    /**
+     * 获取行锁和行所在的页面，页面上只加意向锁，其他事务可以同时修改同一页面的其他行
+     * @param tid
+     * @param rid
+     * @param perm
+     * @return
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page getPage(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException, DbException {
+        Long snapshot = versionStore.getSnapshot(tid);
+        if (snapshot != null) {
+            return getSnapshotPage(tid, rid.getPageId(), snapshot, perm);
+        }
+        Workspace workspace = workspaces.get(tid.getId());
+        if (workspace != null) {
+            return getPrivatePage(workspace, rid.getPageId());
+        }
+        acquire(tid, rid, perm, () -> lockManager.acquireRowLock(tid, rid, perm));
+        return fetchPage(rid.getPageId());
+    }
+
+    /**
+     * 只加意向锁获取页面，修改页面中的行之前需要用tryLockRow锁定该行
+     * @param tid
+     * @param pid
+     * @param perm
+     * @return
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page getIntentionPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        Long snapshot = versionStore.getSnapshot(tid);
+        if (snapshot != null) {
+            return getSnapshotPage(tid, pid, snapshot, perm);
+        }
+        Workspace workspace = workspaces.get(tid.getId());
+        if (workspace != null) {
+            return getPrivatePage(workspace, pid);
+        }
+        acquire(tid, pid, perm, () -> lockManager.acquireIntentionLock(tid, pid, perm));
+        return fetchPage(pid);
+    }
+
+    /**
+     * 尝试获取行锁，不等待
+     * @param tid
+     * @param rid
+     * @param perm
+     * @return 其他事务持有冲突的锁时返回false
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid, Permissions perm) {
+        if (workspaces.containsKey(tid.getId())) {
+            return true;
+        }
+        return lockManager.acquireRowLock(tid, rid, perm);
+    }
+
+    /**
+     * 自旋获取锁，超时抛出异常
+     * 第一次加锁失败后在锁管理器中记录等待，超时时根据等待图区分死锁和普通超时
+     * @param tid
+     * @param key 等待的加锁对象
+     * @param perm
+     * @param request
+     * @throws TransactionAbortedException
+     */
+    private void acquire(TransactionId tid, Object key, Permissions perm, Supplier<Boolean> request) throws TransactionAbortedException {
+        if (request.get()) {
+            return;
+        }
         long start = System.currentTimeMillis();
         long timeout = new Random().nextInt(2000);
-        while(!lockAcquired){
-            long now = System.currentTimeMillis();
-            if(now - start> timeout){
-                throw new TransactionAbortedException();
+        lockManager.beginWait(tid, key, perm);
+        try {
+            while (!request.get()) {
+                if (System.currentTimeMillis() - start > timeout) {
+                    TransactionMonitor.AbortCause cause = lockManager.isDeadlocked(tid)
+                            ? TransactionMonitor.AbortCause.DEADLOCK : TransactionMonitor.AbortCause.TIMEOUT;
+                    Database.getTransactionMonitor().abortCause(tid, cause);
+                    throw new TransactionAbortedException();
+                }
             }
-            lockAcquired = lockManager.acquireLock(tid,pid,perm);
+        } finally {
+            Database.getTransactionMonitor().lockWaited(lockManager.endWait(tid));
         }
+    }
 
-        //从缓存中读取page，没有则从磁盘中读取
-        if (this.buffer.get(pid)==null) {
+    /**
+     * 从缓存中读取page，没有则从磁盘中读取
+     * @param pid
+     * @return
+     * @throws DbException
+     */
+    private Page fetchPage(PageId pid) throws DbException {
+        Page cached = this.buffer.get(pid);
+        if (cached != null) {
+            return cached;
+        }
+        //不加锁的latch读取也会载入页面，同一页面只能载入一次，否则后载入的页面会替换掉其他事务正在修改的页面
+        synchronized (this) {
+            cached = this.buffer.get(pid);
+            if (cached != null) {
+                return cached;
+            }
+            //磁盘上的页面可能落后于异步提交的镜像，先把镜像写入磁盘
+            if (committedImages.containsKey(pid)) {
+                try {
+                    flushCommittedPage(pid);
+                } catch (IOException e) {
+                    throw new DbException("flush committed page failed: " + e.getMessage());
+                }
+            }
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
             Page page = dbFile.readPage(pid);
             //超出容量
@@ -64,7 +212,358 @@ public class BufferPool {
             buffer.put(pid, page);
             return page;
         }
-        return this.buffer.get(pid);
+    }
+
+    /**
+     * 写事务修改页面前登记到版本存储，有只读事务时保存修改前的数据
+     */
+    private Page beginWrite(TransactionId tid, Page page, Permissions perm) {
+        if (perm == Permissions.READ_WRITE && page != null) {
+            registerWriter(tid, page);
+        }
+        return page;
+    }
+
+    /**
+     * 在页面的写latch下登记写事务，使不加锁读取页面的线程重新读取或改为加锁读取
+     * 同时保存页面的修改前镜像，事务回滚时在内存中恢复
+     * @param tid
+     * @param page
+     */
+    private void registerWriter(TransactionId tid, Page page) {
+        if (versionStore.isWriter(page.getId(), tid)) {
+            return;
+        }
+        StampedLock latch = latch(page.getId());
+        long stamp = latch.writeLock();
+        try {
+            versionStore.beginWrite(tid, page);
+            page.setBeforeImage();
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    private StampedLock latch(PageId pid) {
+        return latches.computeIfAbsent(pid, k -> new StampedLock());
+    }
+
+    /**
+     * 不加事务锁读取页面，用于B+树查找时经过的内部页面，先乐观读取，读取期间页面被登记修改时加读latch重新读取
+     * @param tid
+     * @param pid
+     * @param reader 从页面中读取需要的内容，不能修改页面
+     * @return 页面正在被加页锁的写事务修改，或者是只读、乐观事务时返回null，调用方需要用getPage加锁读取
+     * @throws DbException
+     */
+    public <T> T readLatched(TransactionId tid, PageId pid, Function<Page, T> reader) throws DbException {
+        if (versionStore.getSnapshot(tid) != null || workspaces.containsKey(tid.getId())) {
+            return null;
+        }
+        StampedLock latch = latch(pid);
+        long stamp = latch.tryOptimisticRead();
+        if (stamp != 0 && !versionStore.hasWriter(pid)) {
+            try {
+                T result = reader.apply(fetchPage(pid));
+                if (latch.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                //读到了正在修改的页面，加读latch重新读取
+            }
+        }
+        stamp = latch.readLock();
+        try {
+            if (versionStore.hasWriter(pid)) {
+                return null;
+            }
+            return reader.apply(fetchPage(pid));
+        } finally {
+            latch.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 获取页面的版本号，修改页面的事务结束后递增
+     * @param pid
+     * @return
+     */
+    public long getPageVersion(PageId pid) {
+        return pageVersions.getOrDefault(pid, 0L);
+    }
+
+    /**
+     * 页面在读取版本号之后没有被修改，也没有正在修改的写事务
+     * @param pid
+     * @param version
+     * @return
+     */
+    public boolean isUnchanged(PageId pid, long version) {
+        return !versionStore.hasWriter(pid) && getPageVersion(pid) == version;
+    }
+
+    /**
+     * 读取快照可见的页面，返回的页面不放入缓冲池，不访问锁管理器
+     * @param tid
+     * @param pid
+     * @param snapshot
+     * @param perm
+     * @return
+     * @throws DbException
+     * @throws TransactionAbortedException 快照已过期
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, long snapshot, Permissions perm) throws DbException, TransactionAbortedException {
+        if (perm == Permissions.READ_WRITE) {
+            throw new DbException("read-only transaction can't modify page " + pid);
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            byte[] data = versionStore.read(pid, snapshot, this::currentCommitted);
+            if (data == null) {
+                data = readCommitted(pid);
+                if (data == null) {
+                    return null;
+                }
+                //读取期间写事务可能已提交并写回磁盘，提交时会保留快照可见的版本
+                byte[] version = versionStore.read(pid, snapshot, k -> null);
+                if (version != null) {
+                    data = version;
+                }
+            }
+            return dbFile.createPage(pid, data);
+        } catch (IOException e) {
+            throw new DbException("read snapshot page failed: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            Database.getTransactionMonitor().abortCause(tid, TransactionMonitor.AbortCause.SNAPSHOT_TOO_OLD);
+            throw e;
+        }
+    }
+
+    /**
+     * 缓冲池中页面的已提交数据
+     * @param pid
+     * @return 页面不在缓冲池中时返回null
+     * @throws IOException
+     */
+    private byte[] currentCommitted(PageId pid) throws IOException {
+        Page page = buffer.get(pid);
+        return page == null ? null : committedData(page, null);
+    }
+
+    /**
+     * 页面去掉未提交的行修改后的数据，按行加锁的页面上可能同时有多个事务的未提交修改
+     * @param page
+     * @param include 保留该事务的修改，为null时去掉全部未提交修改
+     * @return
+     * @throws IOException
+     */
+    private byte[] committedData(Page page, TransactionId include) throws IOException {
+        synchronized (page) {
+            byte[] data = page.getPageData();
+            List<TupleChange> changes = rowChanges.changesOf(page.getId());
+            if (changes.isEmpty()) {
+                return data;
+            }
+            //在副本上按修改逆序撤销，不影响缓冲池中的页面
+            RowPage copy = (RowPage) Database.getCatalog().getDatabaseFile(page.getId().getTableId()).createPage(page.getId(), data);
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                TupleChange change = changes.get(i);
+                if (include == null || change.getTransactionId() != include.getId()) {
+                    copy.undo(change.getOp(), change.getTuple());
+                }
+            }
+            return copy.getPageData();
+        }
+    }
+
+    /**
+     * 读取页面最新的已提交数据，异步提交的镜像比磁盘更新
+     * @param pid
+     * @return 页面不存在时返回null
+     */
+    private byte[] readCommitted(PageId pid) {
+        PageImage image = committedImages.get(pid);
+        if (image != null) {
+            return image.getPageData();
+        }
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return page == null ? null : page.getPageData();
+    }
+
+    /**
+     * 开启只读事务的快照
+     * @param tid
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versionStore.beginSnapshot(tid);
+    }
+
+    /**
+     * 设置为只读事务保留的页面版本数上限，超出时最早的快照过期
+     * @param maxVersions
+     */
+    public void setMaxVersions(int maxVersions) {
+        versionStore.setMaxVersions(maxVersions);
+    }
+
+    /**
+     * 结束只读事务的快照，回收不再需要的页面版本
+     * @param tid
+     */
+    public void endSnapshot(TransactionId tid) {
+        versionStore.endSnapshot(tid);
+    }
+
+    /**
+     * 是否有只读事务正在使用快照，快照可能还会读取已被释放的页面
+     * @return
+     */
+    public boolean hasSnapshots() {
+        return versionStore.hasSnapshots();
+    }
+
+    /**
+     * 事务是否加锁读取缓冲池中的最新页面，快照事务读取旧版本，乐观事务读取私有副本
+     * @param tid
+     * @return
+     */
+    public boolean readsLatest(TransactionId tid) {
+        return versionStore.getSnapshot(tid) == null && !workspaces.containsKey(tid.getId());
+    }
+
+    /**
+     * 开启乐观事务，之后读写的页面都是私有副本，提交时校验
+     * @param tid
+     */
+    public void beginOptimistic(TransactionId tid) {
+        workspaces.put(tid.getId(), new Workspace());
+    }
+
+    /**
+     * 获取乐观事务的私有页面，第一次读取时复制页面的已提交数据并记录版本号
+     * @param workspace
+     * @param pid
+     * @return
+     * @throws DbException
+     */
+    private Page getPrivatePage(Workspace workspace, PageId pid) throws DbException {
+        Page page = workspace.getPage(pid);
+        if (page != null) {
+            return page;
+        }
+        //先取版本号再读数据，读取期间有事务结束时提交校验会失败
+        long version = getPageVersion(pid);
+        try {
+            byte[] data = currentCommittedOrStored(pid);
+            if (data == null) {
+                return null;
+            }
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).createPage(pid, data);
+        } catch (IOException e) {
+            throw new DbException("read private page failed: " + e.getMessage());
+        }
+        workspace.read(page, version);
+        return page;
+    }
+
+    /**
+     * 页面最新的已提交数据，加页锁修改中的页面读取磁盘或异步提交的镜像
+     * @param pid
+     * @return 页面不存在时返回null
+     * @throws IOException
+     */
+    private byte[] currentCommittedOrStored(PageId pid) throws IOException {
+        Page page = buffer.get(pid);
+        if (page == null || versionStore.hasWriter(pid) || dirtiedBy(page, page.isDirty())) {
+            return readCommitted(pid);
+        }
+        return committedData(page, null);
+    }
+
+    /**
+     * 校验乐观事务读取过的页面没有被其他事务修改，通过后把私有副本写入缓冲池并记录日志
+     * 校验前不等待地获取页锁，修改过的页面加写锁，只读的页面加读锁，之后按普通事务提交
+     * @param tid
+     * @throws TransactionAbortedException 页面被其他事务锁定或版本号变化，事务需要回滚后重试
+     * @throws IOException
+     */
+    public void validateOptimistic(TransactionId tid) throws TransactionAbortedException, IOException {
+        Workspace workspace = workspaces.remove(tid.getId());
+        if (workspace == null) {
+            return;
+        }
+        Map<PageId, Long> readVersions = workspace.getReadVersions();
+        for (PageId pid : readVersions.keySet()) {
+            Permissions perm = workspace.isDirty(pid) ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+            if (!lockManager.acquireLock(tid, pid, perm)) {
+                throw new TransactionAbortedException();
+            }
+        }
+        //持有锁后其他事务不会再修改这些页面，修改过这些页面的事务都已结束并递增了版本号
+        for (Map.Entry<PageId, Long> entry : readVersions.entrySet()) {
+            if (entry.getValue() != getPageVersion(entry.getKey())) {
+                throw new TransactionAbortedException();
+            }
+        }
+        synchronized (this) {
+            for (Page page : workspace.getDirtyPages()) {
+                installPage(tid, page, workspace.changesOf(page.getId()));
+            }
+        }
+    }
+
+    /**
+     * 私有副本替换缓冲池中的页面，和普通事务修改页面一样写入日志
+     * @param tid
+     * @param page
+     * @param changes 对页面的行修改
+     * @throws IOException
+     */
+    private void installPage(TransactionId tid, Page page, List<TupleChange> changes) throws IOException {
+        PageId pid = page.getId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page current = buffer.get(pid);
+        if (current == null) {
+            byte[] data = readCommitted(pid);
+            current = data == null ? page : dbFile.createPage(pid, data);
+        }
+        registerWriter(tid, current);
+        if (changes.isEmpty()) {
+            Database.getLogFile().logWrite(tid, page);
+        }
+        for (TupleChange change : changes) {
+            Database.getLogFile().logWrite(tid, page, change.getOp(), change.getTuple().getRecordId(), change.getTuple());
+        }
+        page.markDirty(true, tid);
+        if (buffer.get(pid) == null && buffer.getSize() >= numPages) {
+            try {
+                evictPage();
+            } catch (DbException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        buffer.put(pid, page);
+    }
+
+    /**
+     * 事务修改过的页面，事务结束后递增这些页面的版本号，使读取过旧数据的乐观事务校验失败
+     * @param tid
+     * @return
+     */
+    private List<PageId> touchedPages(TransactionId tid) {
+        List<PageId> pages = new ArrayList<>(rowChanges.pagesOf(tid));
+        for (Page page : buffer.values()) {
+            if (dirtiedBy(page, tid)) {
+                pages.add(page.getId());
+            }
+        }
+        return pages;
+    }
+
+    private void advanceVersions(List<PageId> pages) {
+        for (PageId pid : pages) {
+            pageVersions.merge(pid, 1L, Long::sum);
+        }
     }
 
     /**
@@ -111,32 +610,134 @@ public class BufferPool {
      * @param pid
      */
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
+        if (versionStore.getSnapshot(tid) != null || workspaces.containsKey(tid.getId())) {
+            return;
+        }
         lockManager.releaseLock(tid,pid);
     }
 
+    /**
+     * 判断事务是否持有页面的锁
+     * @param tid
+     * @param pid
+     * @return
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Workspace workspace = workspaces.get(tid.getId());
+        if (workspace != null) {
+            return workspace.getPage(pid) != null;
+        }
+        return lockManager.holdsLock(tid, pid);
+    }
+
+    /**
+     * 记录按行加锁的页面修改，调用方修改页面时持有页面的monitor直到本方法返回，
+     * 保证页面修改、日志中的页面镜像和撤销信息的顺序一致
+     * @param tid
+     * @param page
+     * @param op
+     * @param tuple 插入或删除的tuple
+     * @throws IOException
+     */
+    public void rowChanged(TransactionId tid, Page page, TupleChange.Op op, Tuple tuple) throws IOException {
+        //乐观事务的修改在提交时写入日志
+        Workspace workspace = workspaces.get(tid.getId());
+        if (workspace != null) {
+            workspace.addChange(tid, page.getId(), op, tuple);
+            page.markDirty(true, tid);
+            return;
+        }
+        Database.getLogFile().logWrite(tid, page, op, tuple.getRecordId(), tuple);
+        rowChanges.add(tid, page.getId(), op, tuple);
+        page.markDirty(true, tid);
+    }
+
 
     public void insertTuple(TransactionId tid, int tableId, Tuple t) throws DbException, IOException, TransactionAbortedException {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = dbFile.insertTuple(tid, t);
         for(Page page : pages){
-            Database.getLogFile().logWrite(tid,page);
-            Database.getLogFile().force();
+            //按行修改的页面已经在rowChanged中记录
+            if (page instanceof RowPage) {
+                continue;
+            }
+            //乐观事务修改的是私有副本，提交时写入日志和缓冲池
+            if (workspaces.containsKey(tid.getId())) {
+                page.markDirty(true, tid);
+                continue;
+            }
+            //脏页只在日志刷盘后写入磁盘，这里不需要force
+            //tuple所在页面的日志附带插入的tuple，供增量同步读取
+            if (t.getRecordId() != null && page.getId().equals(t.getRecordId().getPageId())) {
+                Database.getLogFile().logWrite(tid, page, TupleChange.Op.INSERT, t.getRecordId(), t);
+            } else {
+                Database.getLogFile().logWrite(tid, page);
+            }
             page.markDirty(true,tid);
-            buffer.put(page.getId(),page);
+            cachePage(page);
+        }
+        //维护基表上的二级索引
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insert(tid, t);
         }
     }
 
 
     public  void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        //删除后B+树页面会清空tuple的RecordId，先记录下来
+        RecordId rid = t.getRecordId();
         List<Page> pages = dbFile.deleteTuple(tid,t);
         for(Page page: pages){
-            Database.getLogFile().logWrite(tid,page);
-            Database.getLogFile().force();
+            if (page instanceof RowPage) {
+                continue;
+            }
+            if (workspaces.containsKey(tid.getId())) {
+                page.markDirty(true, tid);
+                continue;
+            }
+            if (page.getId().equals(rid.getPageId())) {
+                Database.getLogFile().logWrite(tid, page, TupleChange.Op.DELETE, rid, t);
+            } else {
+                Database.getLogFile().logWrite(tid, page);
+            }
             page.markDirty(true,tid);
+            cachePage(page);
+        }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(rid.getPageId().getTableId())) {
+            index.delete(tid, t, rid);
         }
     }
 
+    /**
+     * 登记文件直接修改的页面，用于不经过insertTuple、deleteTuple的结构修改，如B+树的整理
+     * 和插入删除一样写日志、标记为脏页并放回缓冲池，提交时写入磁盘
+     * @param tid
+     * @param pages 文件返回的脏页
+     * @throws DbException
+     * @throws IOException
+     */
+    public void updatePages(TransactionId tid, List<Page> pages) throws DbException, IOException {
+        for (Page page : pages) {
+            Database.getLogFile().logWrite(tid, page);
+            page.markDirty(true, tid);
+            cachePage(page);
+        }
+    }
+
+    /**
+     * 修改后的页面放回缓冲池，修改过程中读取其他页面时它可能还不是脏页而被淘汰
+     * 页面已不在缓冲池中时先淘汰一个非脏页，不能让LRUCache按容量直接移除最久未使用的脏页
+     * @param page
+     * @throws DbException 没有可以淘汰的非脏页
+     */
+    private synchronized void cachePage(Page page) throws DbException {
+        if (buffer.get(page.getId()) == null && buffer.getSize() >= numPages) {
+            evictPage();
+        }
+        buffer.put(page.getId(), page);
+    }
+
     /**
      * 提交或回滚事务
      * @param tid
@@ -151,64 +752,452 @@ public class BufferPool {
      * @param commit
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
+        List<PageId> touched = touchedPages(tid);
         if(commit){
+            savepoints.remove(tid.getId());
             try {
+                List<PageId> rowPages = commitVersions(tid);
+                flushRowPages(rowPages);
                 flushPages(tid);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }else{
+            //乐观事务丢弃私有副本即可
+            workspaces.remove(tid.getId());
+            savepoints.remove(tid.getId());
             rollback(tid);
+            versionStore.abort(tid);
+            //回滚后的页面镜像已写入日志，之后才记录abort，恢复时不会再撤销已回滚的修改
+            try {
+                Database.getLogFile().logAbort(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        //脏页已刷盘或丢弃，事务日志可以被checkpoint回收
+        Database.getLogFile().transactionFlushed(tid);
+        //回滚也递增版本号，乐观事务可能读到了页面被回滚前的中间状态
+        advanceVersions(touched);
         lockManager.releaseAllLock(tid);
     }
 
+    /**
+     * 异步提交事务：提交记录还未刷盘，脏页保存为镜像，由日志后台线程刷盘后写入磁盘
+     * @param tid
+     * @param commitLsn 提交记录的结束位置
+     */
+    public void transactionCommitAsync(TransactionId tid, long commitLsn) {
+        //和回滚时写回页面互斥，避免提交记录刷盘前页面被写入磁盘
+        savepoints.remove(tid.getId());
+        synchronized (this) {
+            List<PageId> touched = touchedPages(tid);
+            try {
+                List<PageId> rowPages = commitVersions(tid);
+                deferPages(tid, commitLsn, rowPages);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            advanceVersions(touched);
+        }
+        lockManager.releaseAllLock(tid);
+    }
+
+    /**
+     * 页面被事务按页修改，按行修改的页面上可能还有其他事务的修改，单独处理
+     * @param page
+     * @param tid
+     * @return
+     */
+    private boolean dirtiedBy(Page page, TransactionId tid) {
+        if (page == null) {
+            return false;
+        }
+        //其他事务可能同时提交并清除页面的脏标记，只读取一次
+        TransactionId dirtier = page.isDirty();
+        return dirtier != null && dirtier.equals(tid) && !rowChanges.hasChanges(page.getId());
+    }
+
+    /**
+     * 提交事务修改的页面版本，有只读事务时保留快照可见的旧版本
+     * @param tid
+     * @return 事务按行修改的页面
+     * @throws IOException
+     */
+    private List<PageId> commitVersions(TransactionId tid) throws IOException {
+        List<PageId> rowPages = rowChanges.pagesOf(tid);
+        List<PageId> pages = new ArrayList<>(rowPages);
+        for (Page page : buffer.values()) {
+            if (dirtiedBy(page, tid)) {
+                pages.add(page.getId());
+            }
+        }
+        //提交前的版本去掉全部未提交修改，提交后的版本只保留本事务的修改，提交后本事务的修改不再需要撤销
+        versionStore.commit(tid, pages, pid -> {
+            Page page = buffer.get(pid);
+            return page != null && rowChanges.hasChanges(pid) ? committedData(page, null) : readCommitted(pid);
+        }, pid -> {
+            Page page = buffer.get(pid);
+            return page == null ? readCommitted(pid) : committedData(page, tid);
+        }, () -> rowChanges.removeAll(tid));
+        return rowPages;
+    }
+
+    private synchronized void deferPages(TransactionId tid, long commitLsn, List<PageId> rowPages) throws IOException {
+        synchronized (committedImages) {
+            int count = 0;
+            for (Page page : buffer.values()) {
+                if (dirtiedBy(page, tid)) {
+                    deferImage(new PageImage(page, commitLsn), tid);
+                    page.markDirty(false, null);
+                    count++;
+                }
+            }
+            //按行修改的页面只保存已提交的数据，其他事务还有未提交修改时页面仍是脏页
+            for (PageId pid : rowPages) {
+                Page page = buffer.get(pid);
+                if (page == null) {
+                    continue;
+                }
+                synchronized (page) {
+                    deferImage(new PageImage(pid, committedData(page, null), commitLsn), tid);
+                    if (!rowChanges.hasChanges(pid)) {
+                        page.markDirty(false, null);
+                    }
+                }
+                count++;
+            }
+            if (count > 0) {
+                unflushedCounts.put(tid.getId(), count);
+            } else {
+                Database.getLogFile().transactionFlushed(tid);
+            }
+        }
+    }
+
+    private void deferImage(PageImage image, TransactionId tid) {
+        //新镜像包含旧镜像中已提交事务的修改，旧镜像不再需要写入
+        PageImage old = committedImages.put(image.getId(), image);
+        if (old != null) {
+            image.getTransactions().addAll(old.getTransactions());
+        }
+        image.getTransactions().add(tid);
+    }
+
+    /**
+     * 写回事务按行修改的页面，页面上其他事务未提交的修改不写入磁盘
+     * @param pids
+     * @throws IOException
+     */
+    private void flushRowPages(List<PageId> pids) throws IOException {
+        for (PageId pid : pids) {
+            Page page = buffer.get(pid);
+            if (page == null) {
+                continue;
+            }
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            synchronized (committedImages) {
+                writeCommitted(dbFile, page);
+                PageImage image = committedImages.remove(pid);
+                if (image != null) {
+                    imageWritten(image);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把页面的已提交数据写入磁盘，没有未提交的行修改时页面变为非脏页
+     * @param dbFile
+     * @param page
+     * @throws IOException
+     */
+    private void writeCommitted(DbFile dbFile, Page page) throws IOException {
+        synchronized (page) {
+            if (rowChanges.hasChanges(page.getId())) {
+                dbFile.writePage(new PageImage(page.getId(), committedData(page, null), 0));
+            } else {
+                page.markDirty(false, null);
+                dbFile.writePage(page);
+            }
+        }
+    }
+
+    /**
+     * 写入日志已刷盘的异步提交页面镜像
+     * @param flushedLsn 日志已刷盘的位置
+     * @throws IOException
+     */
+    public void flushCommittedPages(long flushedLsn) throws IOException {
+        synchronized (committedImages) {
+            Map<Integer, List<Page>> tablePages = new HashMap<>();
+            List<PageImage> written = new ArrayList<>();
+            for (PageImage image : committedImages.values()) {
+                if (image.getCommitLsn() <= flushedLsn) {
+                    tablePages.computeIfAbsent(image.getId().getTableId(), k -> new ArrayList<>()).add(image);
+                    written.add(image);
+                }
+            }
+            for (Map.Entry<Integer, List<Page>> entry : tablePages.entrySet()) {
+                Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(entry.getValue());
+            }
+            for (PageImage image : written) {
+                committedImages.remove(image.getId());
+                imageWritten(image);
+            }
+        }
+    }
+
+    /**
+     * 日志刷盘后写入单个页面的异步提交镜像
+     * @param pid
+     * @throws IOException
+     */
+    private void flushCommittedPage(PageId pid) throws IOException {
+        synchronized (committedImages) {
+            PageImage image = committedImages.get(pid);
+            if (image == null) {
+                return;
+            }
+            Database.getLogFile().force(image.getCommitLsn());
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            committedImages.remove(pid);
+            imageWritten(image);
+        }
+    }
+
+    /**
+     * 页面镜像已写入或被更新的页面覆盖，镜像中的事务全部写入后日志可以被checkpoint回收
+     * @param image
+     */
+    private void imageWritten(PageImage image) {
+        for (TransactionId tid : image.getTransactions()) {
+            int count = unflushedCounts.get(tid.getId()) - 1;
+            if (count == 0) {
+                unflushedCounts.remove(tid.getId());
+                Database.getLogFile().transactionFlushed(tid);
+            } else {
+                unflushedCounts.put(tid.getId(), count);
+            }
+        }
+    }
+
     /**
      * 将事务更新的脏页刷盘
      * @param tid
      * @throws IOException
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        LRUCache<PageId, Page>.Node head = buffer.getHead();
-        LRUCache<PageId, Page>.Node tail = buffer.getTail();
-        while(head!=tail){
-            Page page = head.value;
-            if(page!=null && page.isDirty()!=null&&page.isDirty().equals(tid) ){
+        for (Page page : buffer.values()) {
+            if(dirtiedBy(page, tid)){
                 DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                try{
-                    page.markDirty(false,null);
-                    dbFile.writePage(page);
-                }catch (IOException e){
-                    e.printStackTrace();
+                //提交记录已刷盘，之前异步提交的镜像被新页面覆盖，和后台写镜像互斥避免旧镜像覆盖新页面
+                synchronized (committedImages) {
+                    try{
+                        page.markDirty(false,null);
+                        dbFile.writePage(page);
+                    }catch (IOException e){
+                        e.printStackTrace();
+                    }
+                    PageImage image = committedImages.remove(page.getId());
+                    if (image != null) {
+                        imageWritten(image);
+                    }
                 }
             }
-            head = head.next;
         }
     }
 
     /**
-     * 回滚
+     * 回滚，加页锁修改的页面替换为修改前镜像，按行修改的页面逆序撤销本事务的修改，都不需要重新读取磁盘
      * @param tid
      */
     private void rollback(TransactionId tid) {
-        LRUCache<PageId, Page>.Node head = buffer.getHead();
-        LRUCache<PageId, Page>.Node tail = buffer.getTail();
-        while(head!=tail){
-            Page page = head.value;
-            LRUCache<PageId, Page>.Node next = head.next;
-            if(page!=null && page.isDirty()!=null && page.isDirty().equals(tid)){
-                buffer.remove(head);
-                //从磁盘中重新读取页面
-                Page page1 = null;
-                try {
-                    page1 = Database.getBufferPool().getPage(tid, page.getId(), Permissions.READ_ONLY);
-                    page1.markDirty(false,null);
-                } catch (TransactionAbortedException | DbException e) {
-                    e.printStackTrace();
+        //先恢复整页，页面上本事务登记写之前按行做的修改随后逆序撤销
+        synchronized (this) {
+            for (Page page : buffer.values()) {
+                if (pageLockedBy(page, tid)) {
+                    restorePage(tid, page, page.getBeforeImage());
                 }
+            }
+        }
+        for (PageId pid : rowChanges.pagesOf(tid)) {
+            undoRows(tid, pid, 0);
+        }
+        rowChanges.removeAll(tid);
+    }
 
+    /**
+     * 建立保存点，同名的保存点被替换
+     * 复制事务已加页锁修改过的页面，之后才修改的页面回滚时使用修改前镜像；按行修改的页面只记录修改数量
+     * @param tid
+     * @param name
+     * @throws DbException 乐观事务不支持保存点
+     */
+    public synchronized void savepoint(TransactionId tid, String name) throws DbException {
+        if (workspaces.containsKey(tid.getId())) {
+            throw new DbException("savepoints are not supported in optimistic transactions");
+        }
+        Map<PageId, byte[]> pages = new HashMap<>();
+        for (Page page : buffer.values()) {
+            if (pageLockedBy(page, tid)) {
+                pages.put(page.getId(), page.getPageData());
+            }
+        }
+        List<Savepoint> list = savepoints.computeIfAbsent(tid.getId(), k -> new ArrayList<>());
+        int index = indexOf(list, name);
+        if (index >= 0) {
+            list.remove(index);
+        }
+        list.add(new Savepoint(name, pages, rowChanges.countsOf(tid)));
+    }
+
+    /**
+     * 回滚到保存点，保存点本身保留，之后建立的保存点被删除，事务持有的锁不释放
+     * 回滚后的页面写入日志，事务之后提交时按最新的页面镜像重做
+     * @param tid
+     * @param name
+     * @throws DbException 保存点不存在
+     */
+    public void rollbackTo(TransactionId tid, String name) throws DbException {
+        List<Savepoint> list = savepoints.get(tid.getId());
+        int index = indexOf(list, name);
+        if (index < 0) {
+            throw new DbException("savepoint " + name + " does not exist");
+        }
+        Savepoint savepoint = list.get(index);
+        list.subList(index + 1, list.size()).clear();
+        try {
+            synchronized (this) {
+                for (Page page : buffer.values()) {
+                    if (!pageLockedBy(page, tid)) {
+                        continue;
+                    }
+                    byte[] data = savepoint.getPages().get(page.getId());
+                    Page restored = page.getBeforeImage();
+                    if (data != null) {
+                        //恢复为保存点时的数据，修改前镜像沿用原页面的，之后整个事务回滚时仍能恢复
+                        Page before = restored;
+                        restored = Database.getCatalog().getDatabaseFile(page.getId().getTableId()).createPage(page.getId(), data);
+                        if (before != null) {
+                            restored.setBeforeImage(before.getPageData());
+                        }
+                    }
+                    restorePage(tid, page, restored);
+                    if (data != null) {
+                        restored.markDirty(true, tid);
+                    }
+                    if (restored != null) {
+                        Database.getLogFile().logWrite(tid, restored);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("rollback to savepoint " + name + " failed: " + e.getMessage());
+        }
+        for (PageId pid : rowChanges.pagesOf(tid)) {
+            undoRows(tid, pid, savepoint.getRowCounts().getOrDefault(pid, 0));
+        }
+    }
+
+    /**
+     * 删除保存点及之后建立的保存点，已做的修改保留
+     * @param tid
+     * @param name
+     * @throws DbException 保存点不存在
+     */
+    public void releaseSavepoint(TransactionId tid, String name) throws DbException {
+        List<Savepoint> list = savepoints.get(tid.getId());
+        int index = indexOf(list, name);
+        if (index < 0) {
+            throw new DbException("savepoint " + name + " does not exist");
+        }
+        list.subList(index, list.size()).clear();
+    }
+
+    private int indexOf(List<Savepoint> list, String name) {
+        if (list == null) {
+            return -1;
+        }
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 事务加页锁修改的页面，回滚时整页替换；只有行修改的页面上可能有其他事务的修改，不能整页替换
+     * 文件在一次操作结束后才把修改的页面标记为脏页，操作中途被回滚时已登记写但还不是脏页的页面也要替换
+     * @param page
+     * @param tid
+     * @return
+     */
+    private boolean pageLockedBy(Page page, TransactionId tid) {
+        if (page == null) {
+            return false;
+        }
+        if (versionStore.isWriter(page.getId(), tid)) {
+            return true;
+        }
+        return tid.equals(page.isDirty()) && !rowChanges.hasChanges(page.getId());
+    }
+
+    /**
+     * 用restored替换缓冲池中的页面，页面上还有本事务的行修改时保持为脏页，由调用方撤销
+     * @param tid
+     * @param page
+     * @param restored 为null时丢弃页面，之后从磁盘重新读取
+     */
+    private void restorePage(TransactionId tid, Page page, Page restored) {
+        if (restored == null) {
+            discardPage(page.getId());
+            return;
+        }
+        if (rowChanges.hasChanges(page.getId())) {
+            restored.markDirty(true, tid);
+        } else {
+            restored.markDirty(false, null);
+        }
+        buffer.put(page.getId(), restored);
+    }
+
+    /**
+     * 逆序撤销事务在页面上前keep个之后的行修改，撤销后的页面写入日志
+     * 页面上没有其他未提交修改时就是最新的已提交数据，写回磁盘或去掉脏页标记
+     * @param tid
+     * @param pid
+     * @param keep 保留的修改数量
+     */
+    private void undoRows(TransactionId tid, PageId pid, int keep) {
+        Page page = buffer.get(pid);
+        if (page == null) {
+            return;
+        }
+        synchronized (this) {
+            synchronized (committedImages) {
+                synchronized (page) {
+                    List<TupleChange> changes = rowChanges.removeAfter(tid, pid, keep);
+                    if (changes.isEmpty()) {
+                        return;
+                    }
+                    for (int i = changes.size() - 1; i >= 0; i--) {
+                        ((RowPage) page).undo(changes.get(i).getOp(), changes.get(i).getTuple());
+                    }
+                    try {
+                        Database.getLogFile().logWrite(tid, page);
+                        //没有其他未提交修改时页面就是最新的已提交数据，等待写入的异步提交镜像和它相同
+                        if (!rowChanges.hasChanges(pid) && !committedImages.containsKey(pid)) {
+                            writeCommitted(Database.getCatalog().getDatabaseFile(pid.getTableId()), page);
+                        } else if (!rowChanges.hasChanges(pid)) {
+                            page.markDirty(false, null);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
             }
-            head = next;
         }
     }
 
@@ -217,20 +1206,17 @@ public class BufferPool {
      * @throws IOException
      */
     public synchronized void flushAllPages() throws IOException {
-        LRUCache<PageId, Page>.Node head = buffer.getHead();
-        LRUCache<PageId, Page>.Node tail = buffer.getTail();
-        while(head!=tail){
-            Page page = head.value;
+        Database.getLogFile().force();
+        flushCommittedPages(Long.MAX_VALUE);
+        for (Page page : buffer.values()) {
             if(page!=null && page.isDirty()!=null){
                 DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
                 try{
-                    page.markDirty(false,null);
-                    dbFile.writePage(page);
+                    writeCommitted(dbFile, page);
                 }catch (IOException e){
                     e.printStackTrace();
                 }
             }
-            head = head.next;
         }
     }
 
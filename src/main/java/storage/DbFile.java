@@ -13,6 +13,26 @@ public interface DbFile {
 
     void writePage(Page page) throws IOException;
 
+    /**
+     * 用页面数据构造一个不在缓冲池中的页面，用于快照读取历史版本
+     * @param pageId
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    Page createPage(PageId pageId, byte[] data) throws IOException;
+
+    /**
+     * 批量写回页面，实现类可以复用同一个文件句柄
+     * @param pages
+     * @throws IOException
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page page : pages) {
+            writePage(page);
+        }
+    }
+
     List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException;
 
     List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException;
@@ -4,6 +4,8 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -54,6 +56,18 @@ public class LRUCache <K,V>{
         return cache;
     }
 
+    /**
+     * 按最近使用顺序返回全部value的副本，遍历期间其他线程访问缓存不会打乱遍历
+     * @return
+     */
+    public synchronized List<V> values(){
+        List<V> values = new ArrayList<>(size);
+        for (Node node = head.next; node != tail; node = node.next) {
+            values.add(node.value);
+        }
+        return values;
+    }
+
     public synchronized V get(K key){
         Node node = cache.get(key);
         if(node==null){
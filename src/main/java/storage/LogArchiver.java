@@ -0,0 +1,16 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+
+public interface LogArchiver {
+
+    /**
+     * 日志段被回收前调用，用于保存日志段以支持按时间点恢复
+     * 调用返回后日志段文件会被重命名复用或删除，需要在调用期间完成复制
+     * @param segmentNo 日志段序号
+     * @param segment 日志段文件
+     * @throws IOException
+     */
+    void archive(long segmentNo, File segment) throws IOException;
+}
@@ -1,63 +1,147 @@
 package storage;
 
-import com.sun.org.slf4j.internal.Logger;
-import com.sun.org.slf4j.internal.LoggerFactory;
 import common.Database;
+import common.DbException;
+import common.TransactionAbortedException;
 import lombok.extern.slf4j.Slf4j;
 import transaction.TransactionId;
 
-import java.io.EOFException;
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 预写日志，按固定大小切分为多个日志段（log目录下的*.seg文件）
+ * LSN为日志的全局偏移量：日志段序号*日志段大小+段内偏移
+ * MANIFEST记录最早的未回收日志段、最新写入的日志段和恢复起点（checkpoint）
+ * 追加日志不加锁：CAS推进日志尾部预留空间，各线程并行写入自己的区间，写完后发布，
+ * 只有已发布的连续前缀才会刷盘，打开新日志段时才需要加锁
+ */
 @Slf4j
 public class LogFile {
 
-    private final File logFile;
-    private RandomAccessFile randomAccessFile;
-    private Boolean recoveryUndecided;
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;//默认日志段大小
+    public static final long DEFAULT_COMMIT_DELAY = 10;//异步提交默认的最长刷盘间隔(ms)
+
+    private static final String MANIFEST_NAME = "MANIFEST";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LEGACY_SUFFIX = ".v1";//升级前的单文件日志转换前改成的文件名后缀
+    private static final int SPARE_SEGMENTS = 2;//最多保留的预分配空闲日志段数量
+    private static final int ZERO_BUFFER_SIZE = 64 * 1024;
+    private static final int PUBLISH_SPINS = 64;//等待前面的记录写完时先让出CPU的次数，之后阻塞等待
+    private static final long PUBLISH_WAIT_MILLIS = 10;//阻塞等待的最长时间，之后重新检查
+
+    private final File logDir;
+    private final long segmentSize;
+    private final Object segmentLock = new Object();//打开日志段、checkpoint和恢复时加锁
+    private final Object flushLock = new Object();
+    private final Object publishLock = new Object();//等待日志写完的线程在上面阻塞，发布时唤醒
+    private final AtomicInteger publishWaiters = new AtomicInteger();
+    private final Map<Long, FileChannel> channels = new ConcurrentHashMap<>();//key:日志段序号 value:还未写满刷盘的日志段
+    private final ExecutorService preallocator;//在后台预分配下一个日志段
+    private volatile boolean recoveryUndecided;
+    private volatile LogArchiver archiver;//日志段回收前的归档回调
+
+    //MANIFEST内容
+    private volatile long firstSegment = 0;//最早的未回收日志段
+    private volatile long lastSegment = -1;//最新写入的日志段
+    private volatile long checkpointLsn = 0;//恢复起点
 
     private static final int ABORT_RECORD = 1;
     private static final int COMMIT_RECORD = 2;
     private static final int UPDATE_RECORD = 3;
     private static final int BEGIN_RECORD = 4;
+    private static final int PREPARE_RECORD = 5;//两阶段提交的准备记录，附带全局事务id
+    private static final int SEGMENT_END_RECORD = -1;//日志段剩余空间放不下下一条记录，读取时跳到下一个日志段
+
+    //update记录附带的tuple修改类型
+    private static final int TUPLE_INSERT = 1;
+    private static final int TUPLE_DELETE = 2;
+
+    private static final int REDO_THREADS = Runtime.getRuntime().availableProcessors();//redo线程数
+    private static final int REDO_FLUSH_PAGES = 1024;//redo线程暂存的页面镜像超过该数量时先写回一批
 
     private static final int INT_SIZE = 4;
     private static final int LONG_SIZE = 8;
 
-    private long currentOffset = -1;
-    private int totalRecords = 0;
+    private final AtomicLong tail = new AtomicLong();//下一条日志的LSN
+    private final AtomicLong published = new AtomicLong();//该位置之前的日志都已写完
+    private final ConcurrentSkipListMap<Long, Long> completed = new ConcurrentSkipListMap<>();//已写完但前面还有未写完的区间 key:起始LSN value:结束LSN
+    private volatile long flushedLsn = 0;//已刷盘的日志位置
+    private volatile IOException writeError;//有记录写入失败，之后的日志不可靠
+    private final AtomicInteger totalRecords = new AtomicInteger();
+    private volatile long commitDelay = DEFAULT_COMMIT_DELAY;
+    private volatile Thread commitFlusher;//异步提交的后台刷盘线程
 
-    private final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();//key:事务id value:事务开始日志位置
+    private final Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<>();//key:事务id value:事务开始日志位置
+    private final Set<ChangeReader> changeReaders = ConcurrentHashMap.newKeySet();//打开的逻辑日志读取器，阻止回收未读取的日志
 
-    public LogFile(File file) throws IOException {
-        this.logFile = file;
-        randomAccessFile = new RandomAccessFile(file, "rw");
+    /**
+     * 裁决崩溃时处于准备状态的事务，由两阶段提交的协调者提供
+     */
+    public interface InDoubtResolver {
+        /**
+         * @param gtid 全局事务id
+         * @return 协调者是否决定提交
+         * @throws IOException
+         */
+        boolean isCommitted(long gtid) throws IOException;
+    }
+
+    public LogFile(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public LogFile(File dir, long segmentSize) throws IOException {
+        this.logDir = dir;
+        this.segmentSize = segmentSize;
+        this.preallocator = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "log-segment-preallocator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        File legacy = new File(dir.getPath() + LEGACY_SUFFIX);
+        if (dir.isFile()) {
+            //升级前的日志是单个文件，先改名再建目录，转换完成前崩溃时下次打开重新转换
+            Files.move(dir.toPath(), legacy.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create log directory " + dir);
+        }
+        if (legacy.isFile()) {
+            migrate(legacy);
+        }
+        readManifest();
         recoveryUndecided = true;//true:不需要恢复数据库 false:需要
     }
 
+    public void setArchiver(LogArchiver archiver) {
+        this.archiver = archiver;
+    }
+
     /**
      * 记录事务开启
      * @param tid
      * @throws IOException
      */
-    public synchronized void logTractionBegin(TransactionId tid) throws IOException {
+    public void logTractionBegin(TransactionId tid) throws IOException {
         log.info("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
+        start();
+        //先用当前日志尾部占位，BEGIN记录写完前checkpoint也不会越过它
+        if(tidToFirstLogRecord.putIfAbsent(tid.getId(), tail.get()) != null){
             log.error("logTractionBegin: already began this tid\n");
             throw new IOException("double logTractionBegin()");
         }
-        preAppend();
-        randomAccessFile.writeInt(BEGIN_RECORD);
-        randomAccessFile.writeLong(tid.getId());
-        randomAccessFile.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = randomAccessFile.getFilePointer();
-        log.info("BEGIN OFFSET = " + currentOffset);
+        long end = append(BEGIN_RECORD, tid.getId(), null);
+        log.info("BEGIN OFFSET = " + end);
     }
 
     /**
@@ -66,33 +150,115 @@ public class LogFile {
      * @throws IOException
      */
     public void logAbort(TransactionId tid) throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                randomAccessFile.writeInt(ABORT_RECORD);
-                randomAccessFile.writeLong(tid.getId());
-                randomAccessFile.writeLong(currentOffset);
-                currentOffset = randomAccessFile.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
-        }
+        long end = append(ABORT_RECORD, tid.getId(), null);
+        force(end);
+        tidToFirstLogRecord.remove(tid.getId());
     }
 
 
     /**
-     * 记录事务提交
+     * 记录事务提交，事务的日志要保留到脏页刷盘后才能回收
+     * @param tid
+     * @throws IOException
+     */
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
+
+    /**
+     * 记录事务提交，异步提交时不等待刷盘，由后台线程在commitDelay内刷盘
      * @param tid
+     * @param synchronous 是否同步刷盘
+     * @return 提交记录的结束位置，日志刷盘到该位置后事务才持久化
      * @throws IOException
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public long logCommit(TransactionId tid, boolean synchronous) throws IOException {
         log.info("COMMIT " + tid.getId());
-        randomAccessFile.writeInt(COMMIT_RECORD);
-        randomAccessFile.writeLong(tid.getId());
-        randomAccessFile.writeLong(currentOffset);
-        currentOffset = randomAccessFile.getFilePointer();
-        force();
+        long end = append(COMMIT_RECORD, tid.getId(), null);
+        if (synchronous) {
+            force(end);
+        } else {
+            startCommitFlusher();
+        }
+        return end;
+    }
+
+    /**
+     * 记录事务已准备好提交（两阶段提交的第一阶段）并刷盘
+     * 之后事务的结果由协调者决定，崩溃恢复时没有提交或回滚记录的准备事务通过InDoubtResolver裁决
+     * @param tid
+     * @param gtid 全局事务id
+     * @throws IOException
+     */
+    public void logPrepare(TransactionId tid, long gtid) throws IOException {
+        log.info("PREPARE " + tid.getId() + " GLOBAL " + gtid);
+        long end = append(PREPARE_RECORD, tid.getId(), out -> out.writeLong(gtid));
+        force(end);
+    }
+
+    /**
+     * 设置异步提交的最长刷盘间隔，即崩溃时最多丢失多久的已提交事务
+     * @param millis
+     */
+    public void setCommitDelay(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("commit delay must be positive");
+        }
+        commitDelay = millis;
+    }
+
+    public long getCommitDelay() {
+        return commitDelay;
+    }
+
+    private void startCommitFlusher() {
+        if (commitFlusher != null) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (commitFlusher == null) {
+                //后台线程没有绑定数据库实例，在启动时的实例上运行，目录、缓冲池和日志都访问这个实例
+                Database database = Database.current();
+                Thread flusher = new Thread(() -> {
+                    try {
+                        database.execute(() -> {
+                            flushCommits();
+                            return null;
+                        });
+                    } catch (DbException | IOException | TransactionAbortedException e) {
+                        log.error("LOG: async commit flusher stopped", e);
+                    }
+                }, "log-commit-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+                commitFlusher = flusher;
+            }
+        }
+    }
+
+    /**
+     * 后台刷盘：每隔commitDelay刷一次日志，再把日志已持久化的异步提交页面写入磁盘
+     * 出错时记录日志后继续，线程退出后异步提交的页面不再写入磁盘
+     */
+    private void flushCommits() {
+        while (true) {
+            try {
+                Thread.sleep(commitDelay);
+                force(published.get());
+                Database.getBufferPool().flushCommittedPages(flushedLsn);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.error("LOG: async commit flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * 事务已结束且脏页已刷盘或丢弃，其日志不再参与恢复
+     * @param tid
+     */
+    public void transactionFlushed(TransactionId tid) {
         tidToFirstLogRecord.remove(tid.getId());
     }
 
@@ -102,218 +268,1337 @@ public class LogFile {
      * @param page
      * @throws IOException
      */
-    public synchronized void logWrite(TransactionId tid, Page page) throws IOException  {
-        log.info("WRITE, offset = " + randomAccessFile.getFilePointer());
-        preAppend();
-        randomAccessFile.writeInt(UPDATE_RECORD);
-        randomAccessFile.writeLong(tid.getId());
-        writePageData(randomAccessFile,page);
-        randomAccessFile.writeLong(currentOffset);
-        currentOffset = randomAccessFile.getFilePointer();
-        log.info("WRITE OFFSET = " + currentOffset);
+    public void logWrite(TransactionId tid, Page page) throws IOException  {
+        logWrite(tid, page, null, null, null);
+    }
+
+    /**
+     * 记录事务更新页面，同时记录产生这次更新的tuple修改，供增量同步读取
+     * @param tid
+     * @param page
+     * @param op 修改类型，为null时只记录页面
+     * @param rid 修改的tuple在页面中的位置
+     * @param tuple
+     * @throws IOException
+     */
+    public void logWrite(TransactionId tid, Page page, TupleChange.Op op, RecordId rid, Tuple tuple) throws IOException  {
+        long end = append(UPDATE_RECORD, tid.getId(), out -> {
+            writePageData(out, page);
+            writeTupleChange(out, op, rid, tuple);
+        });
+        log.info("WRITE OFFSET = " + end);
+    }
+
+    /**
+     * 写入日志记录类型特有的内容
+     */
+    private interface RecordBody {
+        void write(DataOutput out) throws IOException;
+    }
+
+    /**
+     * 追加一条日志记录：类型、事务id、记录内容（update为页面数据和tuple修改，prepare为全局事务id）、记录起始LSN
+     * 记录在预留空间之前序列化好，预留只是一次CAS，写入和其他线程并行
+     * @param type
+     * @param tid
+     * @param body 为null时没有记录内容
+     * @return 记录结束LSN
+     * @throws IOException
+     */
+    private long append(int type, long tid, RecordBody body) throws IOException {
+        start();
+        totalRecords.incrementAndGet();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(type == UPDATE_RECORD ? BufferPool.getPageSize() + 256 : 64);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(type);
+        dos.writeLong(tid);
+        if (body != null) {
+            body.write(dos);
+        }
+        dos.writeLong(0);//记录起始LSN，预留空间后填入
+        dos.flush();
+        byte[] record = baos.toByteArray();
+        if (record.length > segmentSize) {
+            throw new IOException("log record of " + record.length + " bytes exceeds segment size");
+        }
+
+        //预留空间，当前日志段放不下时从下一个日志段开头写入
+        long prev;
+        long lsn;
+        do {
+            prev = tail.get();
+            long offset = prev % segmentSize;
+            lsn = offset + record.length > segmentSize ? prev - offset + segmentSize : prev;
+        } while (!tail.compareAndSet(prev, lsn + record.length));
+
+        long end = lsn + record.length;
+        try {
+            ByteBuffer.wrap(record).putLong(record.length - LONG_SIZE, lsn);
+            if (lsn != prev && segmentSize - prev % segmentSize >= INT_SIZE) {
+                ByteBuffer marker = ByteBuffer.allocate(INT_SIZE);
+                marker.putInt(0, SEGMENT_END_RECORD);
+                writeFully(channel(prev / segmentSize), marker, prev % segmentSize);
+            }
+            writeFully(channel(lsn / segmentSize), ByteBuffer.wrap(record), lsn % segmentSize);
+        } catch (IOException e) {
+            writeError = e;
+            throw e;
+        } finally {
+            //写入失败也要发布，否则等待刷盘的线程会一直阻塞，刷盘时再报告错误
+            publish(prev, end);
+        }
+        return end;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 发布写完的区间，推进连续写完的前缀
+     * @param from
+     * @param to
+     */
+    private void publish(long from, long to) {
+        completed.put(from, to);
+        while (true) {
+            long lsn = published.get();
+            Long end = completed.get(lsn);
+            if (end == null) {
+                return;
+            }
+            if (published.compareAndSet(lsn, end)) {
+                completed.remove(lsn);
+                wakePublishWaiters();
+            }
+        }
+    }
+
+    private void wakePublishWaiters() {
+        if (publishWaiters.get() > 0) {
+            synchronized (publishLock) {
+                publishLock.notifyAll();
+            }
+        }
     }
 
     /**
-     * 添加日志前预操作
+     * 等待该位置之前预留的记录全部写完，写得慢的记录通常很快写完，先短暂让出CPU，仍未写完时阻塞等待发布
+     * 被中断时继续等待，返回前恢复中断标记，和之前让出CPU等待时一样不影响提交
+     * @param lsn
+     */
+    private void awaitPublished(long lsn) {
+        for (int i = 0; i < PUBLISH_SPINS; i++) {
+            if (published.get() >= lsn) {
+                return;
+            }
+            Thread.yield();
+        }
+        //先登记再检查，发布线程推进后看到登记就会唤醒，不会错过
+        boolean interrupted = false;
+        publishWaiters.incrementAndGet();
+        try {
+            synchronized (publishLock) {
+                while (published.get() < lsn) {
+                    try {
+                        publishLock.wait(PUBLISH_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            publishWaiters.decrementAndGet();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 第一次写日志前决定起点，不恢复时旧日志作废，从新的日志段开始写入并回收旧日志段
      * @throws IOException
      */
-    private void preAppend() throws IOException {
-        totalRecords++;
-        if(recoveryUndecided){
-            //清空日志文件
-            recoveryUndecided = false;
-            randomAccessFile.seek(0);
-            randomAccessFile.setLength(0);
-            currentOffset = randomAccessFile.getFilePointer();
+    private void start() throws IOException {
+        if (!recoveryUndecided) {
+            return;
+        }
+        synchronized (segmentLock) {
+            if (recoveryUndecided) {
+                startAt((lastSegment + 1) * segmentSize);
+                recoveryUndecided = false;
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    private void startAt(long lsn) throws IOException {
+        tail.set(lsn);
+        published.set(lsn);
+        flushedLsn = lsn;
+        channel(lsn / segmentSize);
     }
 
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
 
-    private void writePageData(RandomAccessFile randomAccessFile, Page p) throws IOException{
+    /**
+     * 获取日志段的写入通道，日志段还没打开时加锁打开
+     * @param segmentNo
+     * @return
+     * @throws IOException
+     */
+    private FileChannel channel(long segmentNo) throws IOException {
+        FileChannel channel = channels.get(segmentNo);
+        if (channel == null) {
+            synchronized (segmentLock) {
+                channel = channels.get(segmentNo);
+                if (channel == null) {
+                    channel = openSegment(segmentNo);
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * 打开新的日志段，先更新MANIFEST再允许写入，并做一次checkpoint回收不再需要的日志段
+     * 日志段通常已由后台预分配或由回收的日志段重命名得到，还没准备好时才在这里预分配
+     * @param segmentNo
+     * @return
+     * @throws IOException
+     */
+    private FileChannel openSegment(long segmentNo) throws IOException {
+        File file = segmentFile(segmentNo);
+        if (!file.exists()) {
+            preallocate(file);
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        lastSegment = Math.max(lastSegment, segmentNo);
+        checkpoint();
+        channels.put(segmentNo, channel);
+        //提前准备下一个日志段，切换时不需要在提交路径上扩展文件
+        prepareSegment(segmentNo + 1);
+        return channel;
+    }
+
+    /**
+     * 在后台把日志段预分配到临时文件，完成后加锁重命名，追加日志的线程不用等待写满文件和刷盘
+     * 准备期间日志已经切换到这个日志段，或者已有回收的空闲日志段时丢弃临时文件
+     * @param segmentNo
+     */
+    private void prepareSegment(long segmentNo) {
+        if (segmentFile(segmentNo).exists()) {
+            return;
+        }
+        preallocator.execute(() -> {
+            File tmp = new File(segmentFile(segmentNo).getPath() + ".tmp");
+            try {
+                preallocate(tmp);
+                synchronized (segmentLock) {
+                    File target = segmentFile(segmentNo);
+                    if (segmentNo > lastSegment && !target.exists()) {
+                        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                        return;
+                    }
+                }
+                Files.deleteIfExists(tmp.toPath());
+            } catch (IOException e) {
+                log.warn("LOG: preallocate segment " + segmentNo + " failed", e);
+                tmp.delete();
+            }
+        });
+    }
+
+    /**
+     * 手动checkpoint，回收恢复起点之前的日志段
+     * @throws IOException
+     */
+    public void logCheckpoint() throws IOException {
+        if (recoveryUndecided) {
+            return;
+        }
+        force();
+        synchronized (segmentLock) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * 事务提交时脏页已刷盘，恢复起点为活跃事务最早的日志位置，且不超过已刷盘的位置
+     * 逻辑日志读取器还没读取的日志段也要保留
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException {
+        long lsn = flushedLsn;
+        for (Long first : tidToFirstLogRecord.values()) {
+            lsn = Math.min(lsn, first);
+        }
+        long oldFirst = firstSegment;
+        checkpointLsn = Math.max(checkpointLsn, lsn);
+        long retainLsn = checkpointLsn;
+        for (ChangeReader reader : changeReaders) {
+            retainLsn = Math.min(retainLsn, reader.getRestartLsn());
+        }
+        firstSegment = Math.max(firstSegment, retainLsn / segmentSize);
+        writeManifest();
+        for (long segmentNo = oldFirst; segmentNo < firstSegment; segmentNo++) {
+            recycleSegment(segmentNo);
+        }
+    }
+
+    /**
+     * 回收日志段：先归档，再重命名为空闲日志段复用，空闲段足够时直接删除
+     * @param segmentNo
+     * @throws IOException
+     */
+    private void recycleSegment(long segmentNo) throws IOException {
+        File file = segmentFile(segmentNo);
+        FileChannel channel = channels.remove(segmentNo);
+        if (channel != null) {
+            channel.close();
+        }
+        if (!file.exists()) {
+            return;
+        }
+        if (archiver != null) {
+            archiver.archive(segmentNo, file);
+        }
+        for (long spare = lastSegment + 1; spare <= lastSegment + SPARE_SEGMENTS; spare++) {
+            File spareFile = segmentFile(spare);
+            if (!spareFile.exists()) {
+                Files.move(file.toPath(), spareFile.toPath());
+                //清除段首记录，旧记录不会被当作新日志读取
+                try (RandomAccessFile raf = new RandomAccessFile(spareFile, "rw")) {
+                    raf.writeInt(0);
+                }
+                log.info("LOG: recycle segment " + segmentNo + " as " + spare);
+                return;
+            }
+        }
+        Files.delete(file.toPath());
+        log.info("LOG: delete segment " + segmentNo);
+    }
+
+    /**
+     * 预分配日志段，写满0并刷盘，追加日志时不会再改变文件大小
+     * @param file
+     * @throws IOException
+     */
+    private void preallocate(File file) throws IOException {
+        byte[] zeroes = new byte[ZERO_BUFFER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < segmentSize; written += zeroes.length) {
+                raf.write(zeroes, 0, (int) Math.min(zeroes.length, segmentSize - written));
+            }
+            raf.getChannel().force(true);
+        }
+    }
+
+    /**
+     * 读取升级前日志的一条记录
+     */
+    private interface LegacyRecordHandler {
+        void handle(int type, long tid, byte[] pageData) throws IOException;
+    }
+
+    /**
+     * 把升级前的单文件日志转换为从0开始的日志段，update记录不附带tuple修改
+     * 旧日志的页面镜像无法按行撤销，和升级前的恢复一样只保留已提交事务的记录，未提交和已回滚的事务丢弃
+     * 之后调用recover()时重做这些事务，不恢复时第一次写日志就作废
+     * 转换完成并刷盘后删除旧文件
+     * @param legacy
+     * @throws IOException
+     */
+    private void migrate(File legacy) throws IOException {
+        //上次转换没有完成，清空重新转换
+        File[] stale = logDir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                Files.delete(file.toPath());
+            }
+        }
+        Set<Long> committed = new HashSet<>();
+        readLegacy(legacy, (type, tid, pageData) -> {
+            if (type == COMMIT_RECORD) {
+                committed.add(tid);
+            }
+        });
+        startAt(0);
+        readLegacy(legacy, (type, tid, pageData) -> {
+            if (committed.contains(tid)) {
+                append(type, tid, pageData == null ? null : out -> {
+                    out.write(pageData);
+                    writeTupleChange(out, null, null, null);
+                });
+            }
+        });
+        force();
+        int records = totalRecords.getAndSet(0);
+        Files.delete(legacy.toPath());
+        log.info("LOG: migrated " + records + " records of " + committed.size() + " committed transactions from legacy log " + legacy);
+    }
+
+    /**
+     * 按顺序读取升级前的日志：类型、事务id、update记录的页面数据、记录起始偏移，末尾没写完的记录丢弃
+     * @param legacy
+     * @param handler
+     * @throws IOException
+     */
+    private void readLegacy(File legacy, LegacyRecordHandler handler) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(legacy)))) {
+            while (true) {
+                int type;
+                long tid;
+                byte[] pageData = null;
+                try {
+                    type = in.readInt();
+                    if (type < ABORT_RECORD || type > BEGIN_RECORD) {
+                        throw new IOException("bad record type " + type);
+                    }
+                    tid = in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        pageData = copyPageData(in);
+                    }
+                    in.readLong();
+                } catch (EOFException e) {
+                    return;
+                } catch (IOException e) {
+                    log.warn("LOG: legacy log " + legacy + " ends with a torn record");
+                    return;
+                }
+                handler.handle(type, tid, pageData);
+            }
+        }
+    }
+
+    /**
+     * 原样复制一个页面数据（writePageData的格式），不需要加载页面类
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private byte[] copyPageData(DataInput in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize() + 256);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(in.readUTF());
+        out.writeUTF(in.readUTF());
+        int numIdArgs = in.readInt();
+        if (numIdArgs < 0 || numIdArgs > 16) {
+            throw new IOException("bad page id in log record");
+        }
+        out.writeInt(numIdArgs);
+        for (int i = 0; i < numIdArgs; i++) {
+            out.writeInt(in.readInt());
+        }
+        byte[] data = readBytes(in);
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private File segmentFile(long segmentNo) {
+        return new File(logDir, String.format("%016x", segmentNo) + SEGMENT_SUFFIX);
+    }
+
+    private void readManifest() throws IOException {
+        File manifest = new File(logDir, MANIFEST_NAME);
+        if (!manifest.exists()) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(manifest))) {
+            firstSegment = dis.readLong();
+            lastSegment = dis.readLong();
+            checkpointLsn = dis.readLong();
+        }
+    }
+
+    /**
+     * 先写临时文件再原子重命名，MANIFEST不会出现写了一半的情况
+     * @throws IOException
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(logDir, MANIFEST_NAME + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream dos = new DataOutputStream(fos)) {
+            dos.writeLong(firstSegment);
+            dos.writeLong(lastSegment);
+            dos.writeLong(checkpointLsn);
+            dos.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), new File(logDir, MANIFEST_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    private void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        randomAccessFile.writeUTF(pageClassName);
-        randomAccessFile.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        randomAccessFile.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int j : pageInfo) {
-            randomAccessFile.writeInt(j);
+            out.writeInt(j);
         }
         byte[] pageData = p.getPageData();
-        randomAccessFile.writeInt(pageData.length);
-        randomAccessFile.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
     }
 
-    private Page readPageData(RandomAccessFile randomAccessFile) throws IOException {
-        PageId pid;
-        Page newPage;
+    private Page readPageData(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+        byte[] pageData = readBytes(in);
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+
+            Object[] pageArgs = new Object[2];
+            pageArgs[0] = pid;
+            pageArgs[1] = pageData;
 
-        String pageClassName = randomAccessFile.readUTF();
-        String idClassName = randomAccessFile.readUTF();
+            return (Page)pageConsts[0].newInstance(pageArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException
+                | IllegalArgumentException | ClassCastException e){
+            //日志末尾没写完的记录也会走到这里，由调用方决定是否报错
+            throw new IOException(e);
+        }
+    }
 
+    private PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = randomAccessFile.readInt();
+            int numIdArgs = in.readInt();
+            if (numIdArgs < 0 || numIdArgs > idConsts[0].getParameterCount()) {
+                throw new IOException("bad page id in log record");
+            }
             Object[] idArgs = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = randomAccessFile.readInt();
+                idArgs[i] = in.readInt();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException
+                | IllegalArgumentException | ClassCastException e){
+            throw new IOException(e);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = randomAccessFile.readInt();
+    /**
+     * 读取长度+数据，长度不合法时说明不是完整的日志记录
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > segmentSize) {
+            throw new IOException("bad length in log record");
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
 
-            byte[] pageData = new byte[pageSize];
-            randomAccessFile.read(pageData);
+    /**
+     * 写入update记录附带的tuple修改：修改类型，为0时没有后续数据；否则为长度+tuple序号和字段
+     * @param out
+     * @param op
+     * @param rid
+     * @param tuple
+     * @throws IOException
+     */
+    private void writeTupleChange(DataOutput out, TupleChange.Op op, RecordId rid, Tuple tuple) throws IOException {
+        if (op == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(op == TupleChange.Op.INSERT ? TUPLE_INSERT : TUPLE_DELETE);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(rid.getTupleNumber());
+        for (int i = 0; i < tuple.getTupleDesc().numFields(); i++) {
+            tuple.getField(i).serialize(dos);
+        }
+        dos.flush();
+        out.writeInt(baos.size());
+        out.write(baos.toByteArray());
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /**
+     * 读取update记录附带的tuple修改，没有修改时返回null
+     * @param in
+     * @param tid
+     * @param pid 修改所在的页面
+     * @return 未提交时commitLsn为-1
+     * @throws IOException
+     */
+    private TupleChange readTupleChange(DataInput in, long tid, PageId pid) throws IOException {
+        int op = in.readInt();
+        if (op == 0) {
+            return null;
+        }
+        return decodeTupleChange(op, readBytes(in), tid, pid);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * 解析tuple修改的内容
+     * @param op 修改类型
+     * @param data tuple序号和字段
+     * @param tid
+     * @param pid 修改所在的页面
+     * @return 未提交时commitLsn为-1
+     * @throws IOException
+     */
+    private static TupleChange decodeTupleChange(int op, byte[] data, long tid, PageId pid) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        Tuple tuple = new Tuple(td);
+        tuple.setRecordId(new RecordId(pid, dis.readInt()));
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                tuple.setField(i, td.getFieldType(i).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException(e);
         }
-        return newPage;
+        return new TupleChange(-1, tid, pid.getTableId(), op == TUPLE_INSERT ? TupleChange.Op.INSERT : TupleChange.Op.DELETE, tuple);
+    }
 
+    private void skipTupleChange(DataInput in) throws IOException {
+        if (in.readInt() != 0) {
+            readBytes(in);
+        }
     }
 
 
     /**
      * 恢复数据库
+     * 扫描线程只读出记录的事务id、页id和页面镜像的原始字节，已提交事务的镜像按PageId哈希分发给redo线程，
+     * 同一页面始终由同一线程按日志顺序处理，redo线程构造页面，只保留页面的最终镜像，攒够一批按页号顺序写回
+     * 按行加锁的页面上同时有多个事务的修改，按日志顺序重做全部镜像，再撤销未结束事务的行修改
+     * 处于准备状态的事务按回滚处理，参与两阶段提交的数据库应由协调者提供裁决
      * @throws IOException
      */
     public void recover() throws IOException {
+        recover(gtid -> false);
+    }
+
+    /**
+     * 恢复数据库，崩溃时处于准备状态的事务由resolver裁决提交或回滚，裁决结果写入日志，之后再恢复时不再裁决
+     * @param resolver
+     * @throws IOException
+     */
+    public void recover(InDoubtResolver resolver) throws IOException {
         synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                Map<Long, Map<PageId,Page>> redoMap = new HashMap<>();//key:事务id  value:事务对应页面
-                randomAccessFile.seek(0);
-                print();
-                recoverSearch(randomAccessFile, redoMap);
-                //写入页面，恢复数据库
-                for(Long tid:redoMap.keySet()){
-                    for(PageId pid:redoMap.get(tid).keySet()){
-                        Page page = redoMap.get(tid).get(pid);
-                        DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                        databaseFile.writePage(page);
+            synchronized (segmentLock) {
+                ExecutorService executor = Executors.newFixedThreadPool(REDO_THREADS);
+                List<RedoWorker> workers = new ArrayList<>();
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int i = 0; i < REDO_THREADS; i++) {
+                    RedoWorker worker = new RedoWorker(Database.current());
+                    workers.add(worker);
+                    futures.add(executor.submit(worker));
+                }
+                long endLsn;
+                Map<Long, List<RowChange>> losers = new HashMap<>();
+                Map<Long, Boolean> decisions = new LinkedHashMap<>();
+                boolean scanned = false;
+                try {
+                    try (LogReader reader = new LogReader(checkpointLsn)) {
+                        endLsn = recoverSearch(reader, workers, losers, resolver, decisions);
+                    }
+                    scanned = true;
+                } finally {
+                    if (!scanned) {
+                        cancelRedo(executor, workers);
                     }
                 }
-                redoMap.clear();
+                //通知redo线程日志已扫描完毕
+                for (RedoWorker worker : workers) {
+                    worker.queue.add(Collections.emptyList());
+                }
+                executor.shutdown();
+                int redoPages = 0;
+                for (Future<Integer> future : futures) {
+                    try {
+                        redoPages += future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause());
+                    }
+                }
+                log.info("RECOVER: redo " + redoPages + " pages");
+                undoRows(losers);
+                truncate(endLsn);
+                recoveryUndecided = false;
+                for (Map.Entry<Long, Boolean> decision : decisions.entrySet()) {
+                    append(decision.getValue() ? COMMIT_RECORD : ABORT_RECORD, decision.getKey(), null);
+                }
+                force();
+                if (!decisions.isEmpty()) {
+                    log.info("RECOVER: resolve " + decisions.size() + " in-doubt transactions");
+                }
             }
         }
     }
 
     /**
-     * 将需要恢复的事务和关联页面放入redoMap中
-     * @param redoMap
+     * 日志扫描失败时取消redo线程，丢弃还没写回的镜像，等待正在写回的批次结束，
+     * 恢复抛出异常后不会再有redo线程在后台写数据文件
+     * @param executor
+     * @param workers
+     */
+    private void cancelRedo(ExecutorService executor, List<RedoWorker> workers) {
+        for (RedoWorker worker : workers) {
+            worker.cancelled = true;
+        }
+        executor.shutdownNow();
+        //被中断时继续等待，返回前恢复中断标记
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 在日志末尾截断，之后从新的日志段继续写入
+     * 末尾之后可能残留崩溃前并行写入但未发布的记录，末尾写入日志段结束标记，并删除之后的日志段
+     * @param endLsn
      * @throws IOException
      */
-    private void recoverSearch(RandomAccessFile randomAccessFile,Map<Long, Map<PageId,Page>> redoMap) throws IOException {
-        Set<Long> commitTransaction=new HashSet<>();
+    private void truncate(long endLsn) throws IOException {
+        long segmentNo = endLsn / segmentSize;
+        long offset = endLsn % segmentSize;
+        if (offset != 0) {
+            if (offset + INT_SIZE <= segmentSize) {
+                try (RandomAccessFile raf = new RandomAccessFile(segmentFile(segmentNo), "rw")) {
+                    raf.seek(offset);
+                    raf.writeInt(SEGMENT_END_RECORD);
+                    raf.getChannel().force(false);
+                }
+            }
+            segmentNo++;
+        }
+        for (long stale = segmentNo; stale <= lastSegment; stale++) {
+            Files.deleteIfExists(segmentFile(stale).toPath());
+        }
+        startAt(segmentNo * segmentSize);
+    }
+
+    /**
+     * 从恢复起点扫描日志，事务提交时将其更新页面分发给redo线程，按行加锁的页面立即分发
+     * 扫描结束后裁决准备状态的事务，决定提交的事务同样分发页面且不撤销行修改
+     * @param reader
+     * @param workers
+     * @param losers 扫描结束时未提交也未回滚的事务在按行加锁页面上的修改
+     * @param resolver
+     * @param decisions 准备状态事务的裁决结果 key:事务id value:是否提交
+     * @return 日志末尾LSN
+     * @throws IOException
+     */
+    private long recoverSearch(LogReader reader, List<RedoWorker> workers, Map<Long, List<RowChange>> losers,
+                               InDoubtResolver resolver, Map<Long, Boolean> decisions) throws IOException {
+        Map<Long, Map<PageId, RedoImage>> pendingMap = new HashMap<>();//key:未提交事务id value:事务更新的页面，只保留最新镜像
+        Map<Long, Long> prepared = new LinkedHashMap<>();//key:准备状态的事务id value:全局事务id
+        long endLsn = scanLog(reader, workers, losers, pendingMap, prepared);
+        for (Map.Entry<Long, Long> entry : prepared.entrySet()) {
+            long tid = entry.getKey();
+            boolean commit = resolver.isCommitted(entry.getValue());
+            if (commit) {
+                Map<PageId, RedoImage> pages = pendingMap.remove(tid);
+                if (pages != null) {
+                    dispatch(pages.values(), workers);
+                }
+                losers.remove(tid);
+            }
+            decisions.put(tid, commit);
+        }
+        return endLsn;
+    }
+
+    /**
+     * 顺序扫描日志，只划分记录、读出原始字节并校验记录末尾的起始LSN，页面和tuple修改不在这里解析
+     * @param reader
+     * @param workers
+     * @param losers
+     * @param pendingMap
+     * @param prepared
+     * @return 日志末尾LSN
+     * @throws IOException
+     */
+    private long scanLog(LogReader reader, List<RedoWorker> workers, Map<Long, List<RowChange>> losers,
+                         Map<Long, Map<PageId, RedoImage>> pendingMap, Map<Long, Long> prepared) throws IOException {
+        Map<String, Boolean> rowPageClasses = new HashMap<>();//key:页面类名 value:是否按行加锁
         while(true){
+            int type = reader.nextRecord();
+            if(type==0){
+                return reader.getEndLsn();
+            }
+            DataInput in = reader.getInput();
             try{
-                int type = randomAccessFile.readInt();
-                long curTid = randomAccessFile.readLong();
-                if(type==UPDATE_RECORD){
-                    //update，将更新记录添加到redoMap
-                    if(!redoMap.containsKey(curTid)){
-                        redoMap.put(curTid,new HashMap<>());
+                long curTid = in.readLong();
+                RedoImage image = null;
+                boolean rowPage = false;
+                RowChange change = null;
+                long gtid = 0;
+                if (type == UPDATE_RECORD) {
+                    String pageClassName = in.readUTF();
+                    PageId pid = readPageId(in);
+                    image = new RedoImage(pid, readBytes(in));
+                    Boolean known = rowPageClasses.get(pageClassName);
+                    rowPage = known != null ? known : isRowPageClass(pageClassName);
+                    rowPageClasses.put(pageClassName, rowPage);
+                    int op = in.readInt();
+                    if (op != 0) {
+                        byte[] data = readBytes(in);
+                        change = rowPage ? new RowChange(pid, op, data) : null;
                     }
-                    Page page = readPageData(randomAccessFile);
-                    redoMap.get(curTid).put(page.getId(),page);
-                }else if(type==COMMIT_RECORD && redoMap.containsKey(curTid)){
-                    //commit，需要恢复的事务
-                    commitTransaction.add(curTid);
+                } else if (type == PREPARE_RECORD) {
+                    gtid = in.readLong();
+                }
+                //记录末尾的起始LSN不一致，说明是没写完的记录或回收日志段中的旧记录，日志到此为止
+                if(in.readLong() != reader.getRecordLsn()){
+                    log.info("RECOVER: log ends at lsn " + reader.getRecordLsn());
+                    return reader.getRecordLsn();
                 }
-                //跳过currentOffset
-                randomAccessFile.seek(randomAccessFile.getFilePointer()+8);
-            }catch (EOFException e){
-                break;
+                if(type==UPDATE_RECORD && rowPage){
+                    //按行加锁的页面，镜像中可能包含其他事务的修改，按日志顺序全部重做，记录行修改用于撤销
+                    dispatch(Collections.singletonList(image), workers);
+                    if (change != null) {
+                        losers.computeIfAbsent(curTid, k -> new ArrayList<>()).add(change);
+                    }
+                }else if(type==UPDATE_RECORD){
+                    //update，暂存到pendingMap，等待事务提交
+                    pendingMap.computeIfAbsent(curTid, k -> new LinkedHashMap<>()).put(image.pid, image);
+                }else if(type==PREPARE_RECORD){
+                    //prepare，等待提交或回滚记录，扫描结束时仍未结束则由协调者裁决
+                    prepared.put(curTid, gtid);
+                }else if(type==COMMIT_RECORD){
+                    //commit，按PageId分区分发给redo线程
+                    Map<PageId, RedoImage> pages = pendingMap.remove(curTid);
+                    if(pages!=null){
+                        dispatch(pages.values(), workers);
+                    }
+                    losers.remove(curTid);
+                    prepared.remove(curTid);
+                }else if(type==ABORT_RECORD){
+                    //回滚后的页面镜像在abort之前已写入日志
+                    pendingMap.remove(curTid);
+                    losers.remove(curTid);
+                    prepared.remove(curTid);
+                }
+            }catch (IOException e){
+                //崩溃时写了一半的记录，日志到此为止
+                log.warn("RECOVER: torn log record at lsn " + reader.getRecordLsn());
+                return reader.getRecordLsn();
             }
         }
-        redoMap.entrySet().removeIf(longMapEntry -> !commitTransaction.contains(longMapEntry.getKey()));
     }
 
     /**
-     * 打印日志
+     * 页面类是否按行加锁，类名不存在时说明是没写完的记录
+     * @param pageClassName
+     * @return
      * @throws IOException
      */
-    private void print() throws IOException {
-        long curOffset = randomAccessFile.getFilePointer();
+    private static boolean isRowPageClass(String pageClassName) throws IOException {
+        try {
+            return RowPage.class.isAssignableFrom(Class.forName(pageClassName));
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
 
-        randomAccessFile.seek(0);
+    /**
+     * 撤销崩溃时未结束事务的行修改，行锁保证不同事务不会修改同一个插槽，每个事务按日志逆序撤销即可
+     * @param losers
+     * @throws IOException
+     */
+    private void undoRows(Map<Long, List<RowChange>> losers) throws IOException {
+        Map<PageId, RowPage> pages = new HashMap<>();
+        int count = 0;
+        for (Map.Entry<Long, List<RowChange>> entry : losers.entrySet()) {
+            List<RowChange> changes = entry.getValue();
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                RowChange change = changes.get(i);
+                TupleChange tupleChange = decodeTupleChange(change.op, change.data, entry.getKey(), change.pid);
+                RowPage page = pages.get(change.pid);
+                if (page == null) {
+                    page = (RowPage) Database.getCatalog().getDatabaseFile(change.pid.getTableId()).readPage(change.pid);
+                    pages.put(change.pid, page);
+                }
+                page.undo(tupleChange.getOp(), tupleChange.getTuple());
+                count++;
+            }
+        }
+        for (RowPage page : pages.values()) {
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        }
+        log.info("RECOVER: undo " + count + " row changes of " + losers.size() + " transactions");
+    }
 
-        System.out.println("0: checkpoint record at offset " + randomAccessFile.readLong());
+    /**
+     * 将页面镜像按PageId哈希分区，每个分区一个批次放入对应redo线程的队列
+     * @param images
+     * @param workers
+     */
+    private void dispatch(Collection<RedoImage> images, List<RedoWorker> workers) {
+        List<List<RedoImage>> batches = new ArrayList<>();
+        for (int i = 0; i < workers.size(); i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (RedoImage image : images) {
+            batches.get(Math.floorMod(image.pid.hashCode(), workers.size())).add(image);
+        }
+        for (int i = 0; i < workers.size(); i++) {
+            if (!batches.get(i).isEmpty()) {
+                workers.get(i).queue.add(batches.get(i));
+            }
+        }
+    }
 
-        while (true) {
-            try {
-                int cpType = randomAccessFile.readInt();
-                long cpTid = randomAccessFile.readLong();
+    /**
+     * update记录中的页面镜像，恢复时扫描线程只读出原始字节，由redo线程通过表文件构造页面
+     */
+    private static class RedoImage {
+        private final PageId pid;
+        private final byte[] data;
+
+        RedoImage(PageId pid, byte[] data) {
+            this.pid = pid;
+            this.data = data;
+        }
+    }
+
+    /**
+     * update记录附带的行修改的原始字节，只有撤销未结束事务时才解析
+     */
+    private static class RowChange {
+        private final PageId pid;
+        private final int op;
+        private final byte[] data;
+
+        RowChange(PageId pid, int op, byte[] data) {
+            this.pid = pid;
+            this.op = op;
+            this.data = data;
+        }
+    }
+
+    /**
+     * redo线程，负责一个PageId分区
+     */
+    private static class RedoWorker implements Callable<Integer> {
+
+        private final BlockingQueue<List<RedoImage>> queue = new LinkedBlockingQueue<>();//空批次表示日志扫描结束
+        private final Map<PageId, RedoImage> latestImages = new HashMap<>();//key:页id value:还没写回的最终镜像
+        private final Database database;//redo线程没有绑定数据库实例，在恢复时的实例上构造和写回页面
+        private volatile boolean cancelled;//日志扫描失败，不再写回
+
+        RedoWorker(Database database) {
+            this.database = database;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            int written = 0;
+            while (true) {
+                List<RedoImage> batch = queue.take();
+                if (cancelled) {
+                    return written;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                for (RedoImage image : batch) {
+                    latestImages.put(image.pid, image);
+                }
+                //暂存的镜像太多时先写回一批，之后同一页面的新镜像会再次写回
+                if (latestImages.size() >= REDO_FLUSH_PAGES && !cancelled) {
+                    written += database.execute(this::flush);
+                }
+            }
+            return written + database.execute(this::flush);
+        }
+
+        /**
+         * 构造暂存的页面，按表分组，页号升序批量写回
+         * @return 写回的页面数
+         * @throws IOException
+         */
+        private int flush() throws IOException {
+            Map<Integer, List<Page>> tablePages = new HashMap<>();
+            for (RedoImage image : latestImages.values()) {
+                Page page = Database.getCatalog().getDatabaseFile(image.pid.getTableId()).createPage(image.pid, image.data);
+                tablePages.computeIfAbsent(image.pid.getTableId(), k -> new ArrayList<>()).add(page);
+            }
+            for (Map.Entry<Integer, List<Page>> entry : tablePages.entrySet()) {
+                List<Page> pages = entry.getValue();
+                pages.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+                DbFile databaseFile = Database.getCatalog().getDatabaseFile(entry.getKey());
+                databaseFile.writePages(pages);
+            }
+            int count = latestImages.size();
+            latestImages.clear();
+            return count;
+        }
+    }
+
+    /**
+     * 从指定LSN开始顺序读取日志记录，遇到日志段结束标记时进入下一个日志段，遇到0说明日志已经读完
+     * 设置了读取上限时不会读取上限之后的记录，上限推进后可以继续读取
+     */
+    private class LogReader implements Closeable {
+        private long segmentNo;
+        private long offset;//下一条记录的段内偏移
+        private RandomAccessFile in;
+        private long limit = Long.MAX_VALUE;
+        private long recordLsn;
+        private long endLsn;
+
+        LogReader(long lsn) {
+            segmentNo = lsn / segmentSize;
+            offset = lsn % segmentSize;
+            endLsn = lsn;
+        }
+
+        /**
+         * 读取下一条记录的类型
+         * @return 记录类型，0表示日志结束
+         * @throws IOException
+         */
+        int nextRecord() throws IOException {
+            while (true) {
+                if (in != null) {
+                    offset = in.getFilePointer();
+                }
+                endLsn = segmentNo * segmentSize + offset;
+                if (endLsn >= limit) {
+                    return 0;
+                }
+                if (offset + INT_SIZE > segmentSize) {
+                    nextSegment();
+                    continue;
+                }
+                if (in == null) {
+                    in = openSegment(segmentNo);
+                    if (in == null) {
+                        return 0;
+                    }
+                    in.seek(offset);
+                }
+                int type = in.readInt();
+                if (type == SEGMENT_END_RECORD) {
+                    nextSegment();
+                    continue;
+                }
+                if (type == 0) {
+                    in.seek(offset);
+                    return 0;
+                }
+                recordLsn = endLsn;
+                return type;
+            }
+        }
+
+        private void nextSegment() throws IOException {
+            close();
+            segmentNo++;
+            offset = 0;
+        }
+
+        private RandomAccessFile openSegment(long segmentNo) throws IOException {
+            File file = segmentFile(segmentNo);
+            if (segmentNo < firstSegment || !file.exists()) {
+                return null;
+            }
+            return new RandomAccessFile(file, "r");
+        }
 
-                System.out.println((randomAccessFile.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((randomAccessFile.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+        void setLimit(long limit) {
+            this.limit = limit;
+        }
+
+        DataInput getInput() {
+            return in;
+        }
+
+        long getRecordLsn() {
+            return recordLsn;
+        }
+
+        long getEndLsn() {
+            return endLsn;
+        }
 
-                switch (cpType) {
+        /**
+         * 已读取部分的结束位置
+         * @return
+         * @throws IOException
+         */
+        long getPosition() throws IOException {
+            return segmentNo * segmentSize + (in != null ? in.getFilePointer() : offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * 打开逻辑日志读取器，返回提交记录位于fromCommitLsn及之后的事务的tuple修改
+     * startLsn不能晚于这些事务的开始位置，首次读取可以用getOldestActiveLsn()，
+     * 之后用读取器的getRestartLsn()和最后处理的提交LSN+1继续
+     * @param startLsn 开始扫描的位置
+     * @param fromCommitLsn
+     * @return
+     * @throws IOException startLsn所在的日志段已被回收
+     */
+    public ChangeReader openChangeReader(long startLsn, long fromCommitLsn) throws IOException {
+        start();
+        synchronized (segmentLock) {
+            if (startLsn / segmentSize < firstSegment) {
+                throw new IOException("log before lsn " + startLsn + " has been recycled");
+            }
+            ChangeReader reader = new ChangeReader(startLsn, fromCommitLsn);
+            changeReaders.add(reader);
+            return reader;
+        }
+    }
+
+    public ChangeReader openChangeReader(long lsn) throws IOException {
+        return openChangeReader(lsn, lsn);
+    }
+
+    /**
+     * 最早的活跃事务的开始位置，没有活跃事务时为日志尾部，之后提交的事务的日志都在该位置之后
+     * @return
+     * @throws IOException
+     */
+    public long getOldestActiveLsn() throws IOException {
+        start();
+        long lsn = tail.get();
+        for (Long first : tidToFirstLogRecord.values()) {
+            lsn = Math.min(lsn, first);
+        }
+        return lsn;
+    }
+
+    /**
+     * 逻辑日志读取器，按提交顺序返回已提交事务的tuple级修改，用于增量同步（CDC）
+     * 只读取已刷盘的日志，读到末尾时返回null，之后可以再次调用next读取新提交的事务
+     * 读取器关闭前，getRestartLsn()之后的日志段不会被回收
+     */
+    public class ChangeReader implements Closeable {
+        private final LogReader reader;
+        private final long fromCommitLsn;
+        private final Map<Long, Long> firstLsns = new HashMap<>();//key:未提交事务id value:事务开始位置
+        private final Map<Long, List<TupleChange>> pending = new HashMap<>();//key:未提交事务id value:事务的修改
+        private final Set<Long> unknown = new HashSet<>();//开始于startLsn之前的事务
+        private final Deque<TupleChange> ready = new ArrayDeque<>();
+        private volatile long restartLsn;
+
+        private ChangeReader(long startLsn, long fromCommitLsn) {
+            this.reader = new LogReader(startLsn);
+            this.fromCommitLsn = fromCommitLsn;
+            this.restartLsn = startLsn;
+        }
+
+        /**
+         * 读取下一条修改
+         * @return 已读到刷盘的日志末尾时返回null
+         * @throws IOException 日志损坏，或有在startLsn之前开始的事务修改了数据并在fromCommitLsn之后提交
+         */
+        public TupleChange next() throws IOException {
+            while (ready.isEmpty()) {
+                reader.setLimit(flushedLsn);
+                int type = reader.nextRecord();
+                if (type == 0) {
+                    return null;
+                }
+                DataInput in = reader.getInput();
+                long lsn = reader.getRecordLsn();
+                long tid = in.readLong();
+                TupleChange change = null;
+                if (type == UPDATE_RECORD) {
+                    in.readUTF();
+                    PageId pid = readPageId(in);
+                    readBytes(in);
+                    change = readTupleChange(in, tid, pid);
+                } else if (type == PREPARE_RECORD) {
+                    in.readLong();
+                }
+                if (in.readLong() != lsn) {
+                    throw new IOException("corrupt log record at lsn " + lsn);
+                }
+                switch (type) {
+                    case BEGIN_RECORD:
+                        firstLsns.put(tid, lsn);
+                        pending.put(tid, new ArrayList<>());
+                        break;
+                    case UPDATE_RECORD:
+                        if (pending.containsKey(tid)) {
+                            if (change != null) {
+                                pending.get(tid).add(change);
+                            }
+                        } else {
+                            unknown.add(tid);
+                        }
+                        break;
+                    case COMMIT_RECORD:
+                        if (unknown.remove(tid) && lsn >= fromCommitLsn) {
+                            throw new IOException("transaction " + tid + " began before the start lsn of change reader");
+                        }
+                        List<TupleChange> changes = pending.remove(tid);
+                        firstLsns.remove(tid);
+                        if (changes != null && lsn >= fromCommitLsn) {
+                            for (TupleChange c : changes) {
+                                ready.add(new TupleChange(lsn, tid, c.getTableId(), c.getOp(), c.getTuple()));
+                            }
+                        }
+                        break;
+                    case ABORT_RECORD:
+                        pending.remove(tid);
+                        firstLsns.remove(tid);
+                        unknown.remove(tid);
+                        break;
+                }
+                long restart = reader.getPosition();
+                for (Long first : firstLsns.values()) {
+                    restart = Math.min(restart, first);
+                }
+                restartLsn = restart;
+            }
+            return ready.poll();
+        }
+
+        /**
+         * 重新打开读取器时的startLsn，未提交事务的日志都在该位置之后
+         * @return
+         */
+        public long getRestartLsn() {
+            return restartLsn;
+        }
+
+        @Override
+        public void close() throws IOException {
+            changeReaders.remove(this);
+            reader.close();
+        }
+    }
+
+    /**
+     * 打印恢复起点之后的日志
+     * @throws IOException
+     */
+    public void print() throws IOException {
+        force();
+        synchronized (segmentLock) {
+            printLog();
+        }
+    }
+
+    private void printLog() throws IOException {
+        System.out.println("checkpoint at lsn " + checkpointLsn + ", segments " + firstSegment + " TO " + lastSegment);
+        try (LogReader reader = new LogReader(checkpointLsn)) {
+            int type;
+            while ((type = reader.nextRecord()) != 0) {
+                DataInput in = reader.getInput();
+                System.out.println(reader.getRecordLsn() + ": RECORD TYPE " + type);
+                System.out.println((reader.getRecordLsn() + INT_SIZE) + ": TID " + in.readLong());
+                switch (type) {
                     case BEGIN_RECORD:
                         System.out.println(" (BEGIN)");
-                        System.out.println(randomAccessFile.getFilePointer() + ": RECORD START OFFSET: " + randomAccessFile.readLong());
                         break;
                     case ABORT_RECORD:
                         System.out.println(" (ABORT)");
-                        System.out.println(randomAccessFile.getFilePointer() + ": RECORD START OFFSET: " + randomAccessFile.readLong());
                         break;
                     case COMMIT_RECORD:
                         System.out.println(" (COMMIT)");
-                        System.out.println(randomAccessFile.getFilePointer() + ": RECORD START OFFSET: " + randomAccessFile.readLong());
                         break;
-
+                    case PREPARE_RECORD:
+                        System.out.println(" (PREPARE) global tid " + in.readLong());
+                        break;
                     case UPDATE_RECORD:
                         System.out.println(" (UPDATE)");
-
-                        long start = randomAccessFile.getFilePointer();
-                        Page before = readPageData(randomAccessFile);
-
-                        long middle = randomAccessFile.getFilePointer();
-                        Page after = readPageData(randomAccessFile);
-
-                        System.out.println(start + ": before image table id " + before.getId().getTableId());
-                        System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                        System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                        System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                        System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (randomAccessFile.getFilePointer()) + ": page data");
-
-                        System.out.println(randomAccessFile.getFilePointer() + ": RECORD START OFFSET: " + randomAccessFile.readLong());
-
+                        Page page = readPageData(in);
+                        skipTupleChange(in);
+                        System.out.println(" page image table id " + page.getId().getTableId() + " page number " + page.getId().getPageNumber());
                         break;
                 }
-
-            } catch (EOFException e) {
-                e.printStackTrace();
-                break;
+                long start = in.readLong();
+                if (start != reader.getRecordLsn()) {
+                    break;
+                }
+                System.out.println(" RECORD START OFFSET: " + start);
             }
         }
-
-        randomAccessFile.seek(curOffset);
     }
 
 
 
-    public synchronized void force() throws IOException {
-        //刷盘
-        randomAccessFile.getChannel().force(true);
+    /**
+     * 刷盘到当前日志尾部
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        force(tail.get());
+    }
+
+    /**
+     * 保证日志已刷盘到指定位置，先等待之前预留的记录全部写完，
+     * 同一时刻只有一个线程刷盘，等待的线程通常会被前一次刷盘一并覆盖
+     * @param lsn
+     * @throws IOException
+     */
+    public void force(long lsn) throws IOException {
+        if (flushedLsn >= lsn) {
+            return;
+        }
+        awaitPublished(lsn);
+        synchronized (flushLock) {
+            if (writeError != null) {
+                throw new IOException("log write failed", writeError);
+            }
+            long target = published.get();
+            if (flushedLsn >= target) {
+                return;
+            }
+            //日志段已预分配，只需要刷数据；已写满的日志段刷盘后关闭
+            for (long segmentNo = flushedLsn / segmentSize; segmentNo <= (target - 1) / segmentSize; segmentNo++) {
+                FileChannel channel = channels.get(segmentNo);
+                if (channel != null) {
+                    channel.force(false);
+                    if (segmentNo < target / segmentSize) {
+                        channels.remove(segmentNo);
+                        channel.close();
+                    }
+                }
+            }
+            flushedLsn = target;
+        }
     }
 }
@@ -20,5 +20,23 @@ public interface Page {
      */
     byte[] getPageData();
 
+    /**
+     * 修改前镜像，加页锁的写事务回滚时用它在内存中替换当前页面，不需要重新读取磁盘
+     * @return 没有保存修改前镜像时返回null
+     */
+    Page getBeforeImage();
+
+    /**
+     * 保存修改前镜像
+     * @param data 页面数据
+     */
+    void setBeforeImage(byte[] data);
+
+    /**
+     * 把当前数据保存为修改前镜像，页面载入时和写事务第一次修改页面前调用
+     */
+    default void setBeforeImage() {
+        setBeforeImage(getPageData());
+    }
 
 }
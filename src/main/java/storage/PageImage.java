@@ -0,0 +1,51 @@
+package storage;
+
+import lombok.Getter;
+import transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 页面已提交数据的镜像，异步提交时日志刷盘到commitLsn之后才能写入磁盘
+ */
+@Getter
+public class PageImage implements Page {
+
+    private final PageId id;
+    private final byte[] pageData;
+    private final long commitLsn;//日志需要刷盘到的位置
+    private final List<TransactionId> transactions = new ArrayList<>();//镜像包含的已提交事务
+
+    public PageImage(Page page, long commitLsn) {
+        this(page.getId(), page.getPageData(), commitLsn);
+    }
+
+    public PageImage(PageId id, byte[] pageData, long commitLsn) {
+        this.id = id;
+        this.pageData = pageData;
+        this.commitLsn = commitLsn;
+    }
+
+    @Override
+    public TransactionId isDirty() {
+        return null;
+    }
+
+    @Override
+    public void markDirty(boolean dirty, TransactionId tid) {
+    }
+
+    /**
+     * 镜像本身就是已提交数据，不会被修改
+     * @return
+     */
+    @Override
+    public Page getBeforeImage() {
+        return null;
+    }
+
+    @Override
+    public void setBeforeImage(byte[] data) {
+    }
+}
@@ -0,0 +1,135 @@
+package storage;
+
+import transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * 按行加锁修改的页面上未提交的行修改，按修改顺序记录
+ * 用于回滚单个事务，以及计算页面去掉未提交修改后的已提交状态
+ */
+public class RowChanges {
+
+    private final Map<PageId, List<TupleChange>> changes = new HashMap<>();//key:页面 value:页面上未提交的修改
+    private final Map<Long, Set<PageId>> pages = new HashMap<>();//key:事务id value:事务修改过的页面
+
+    public synchronized void add(TransactionId tid, PageId pid, TupleChange.Op op, Tuple tuple) {
+        changes.computeIfAbsent(pid, k -> new ArrayList<>()).add(new TupleChange(-1, tid.getId(), pid.getTableId(), op, tuple));
+        pages.computeIfAbsent(tid.getId(), k -> new LinkedHashSet<>()).add(pid);
+    }
+
+    /**
+     * 事务按行修改过的页面
+     * @param tid
+     * @return
+     */
+    public synchronized List<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> pids = pages.get(tid.getId());
+        return pids == null ? Collections.emptyList() : new ArrayList<>(pids);
+    }
+
+    /**
+     * 页面上未提交的修改
+     * @param pid
+     * @return 按修改顺序排列的副本
+     */
+    public synchronized List<TupleChange> changesOf(PageId pid) {
+        List<TupleChange> list = changes.get(pid);
+        return list == null ? Collections.emptyList() : new ArrayList<>(list);
+    }
+
+    public synchronized boolean hasChanges(PageId pid) {
+        return changes.containsKey(pid);
+    }
+
+    /**
+     * 移除事务在页面上的修改
+     * @param tid
+     * @param pid
+     * @return 按修改顺序排列的修改
+     */
+    public synchronized List<TupleChange> remove(TransactionId tid, PageId pid) {
+        List<TupleChange> removed = new ArrayList<>();
+        List<TupleChange> list = changes.get(pid);
+        if (list == null) {
+            return removed;
+        }
+        Iterator<TupleChange> it = list.iterator();
+        while (it.hasNext()) {
+            TupleChange change = it.next();
+            if (change.getTransactionId() == tid.getId()) {
+                removed.add(change);
+                it.remove();
+            }
+        }
+        if (list.isEmpty()) {
+            changes.remove(pid);
+        }
+        return removed;
+    }
+
+    /**
+     * 事务在各页面上已有的修改数量，用于建立保存点
+     * @param tid
+     * @return key:页面 value:修改数量
+     */
+    public synchronized Map<PageId, Integer> countsOf(TransactionId tid) {
+        Map<PageId, Integer> counts = new HashMap<>();
+        Set<PageId> pids = pages.get(tid.getId());
+        if (pids == null) {
+            return counts;
+        }
+        for (PageId pid : pids) {
+            int count = 0;
+            for (TupleChange change : changes.getOrDefault(pid, Collections.emptyList())) {
+                if (change.getTransactionId() == tid.getId()) {
+                    count++;
+                }
+            }
+            counts.put(pid, count);
+        }
+        return counts;
+    }
+
+    /**
+     * 移除事务在页面上前keep个之后的修改，用于回滚到保存点
+     * @param tid
+     * @param pid
+     * @param keep 保留的修改数量
+     * @return 按修改顺序排列的被移除的修改
+     */
+    public synchronized List<TupleChange> removeAfter(TransactionId tid, PageId pid, int keep) {
+        List<TupleChange> removed = new ArrayList<>();
+        List<TupleChange> list = changes.get(pid);
+        if (list == null) {
+            return removed;
+        }
+        int seen = 0;
+        Iterator<TupleChange> it = list.iterator();
+        while (it.hasNext()) {
+            TupleChange change = it.next();
+            if (change.getTransactionId() == tid.getId() && seen++ >= keep) {
+                removed.add(change);
+                it.remove();
+            }
+        }
+        if (list.isEmpty()) {
+            changes.remove(pid);
+        }
+        return removed;
+    }
+
+    /**
+     * 事务结束，移除其全部修改
+     * @param tid
+     */
+    public synchronized void removeAll(TransactionId tid) {
+        Set<PageId> pids = pages.remove(tid.getId());
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            remove(tid, pid);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package storage;
+
+/**
+ * 支持行级锁的页面，多个事务可以同时修改同一页面的不同行
+ * 页面上未提交的修改只能按行撤销，不能整页丢弃重新读取
+ */
+public interface RowPage extends Page {
+
+    boolean isSlotUsed(int slot);
+
+    /**
+     * 把tuple放回其RecordId指定的插槽
+     * @param t
+     */
+    void restoreTuple(Tuple t);
+
+    /**
+     * 清空插槽
+     * @param slot
+     */
+    void clearSlot(int slot);
+
+    /**
+     * 撤销一次行修改，插槽已经是修改前的状态时忽略，因此恢复时可以重复执行
+     * @param op
+     * @param tuple 插入或删除的tuple
+     */
+    default void undo(TupleChange.Op op, Tuple tuple) {
+        int slot = tuple.getRecordId().getTupleNumber();
+        if (op == TupleChange.Op.INSERT) {
+            if (isSlotUsed(slot)) {
+                clearSlot(slot);
+            }
+        } else if (!isSlotUsed(slot)) {
+            restoreTuple(tuple);
+        }
+    }
+}
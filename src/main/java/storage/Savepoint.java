@@ -0,0 +1,18 @@
+package storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * 事务内的保存点，记录建立时事务已修改页面的状态，回滚到保存点时在内存中恢复
+ */
+@Getter
+@AllArgsConstructor
+public class Savepoint {
+
+    private final String name;
+    private final Map<PageId, byte[]> pages;//key:加页锁修改过的页面 value:建立保存点时的页面数据
+    private final Map<PageId, Integer> rowCounts;//key:按行修改的页面 value:建立保存点时事务在页面上的修改数量
+}
@@ -0,0 +1,101 @@
+package storage;
+
+import common.DbException;
+import transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * 只读的虚拟表，没有磁盘文件，每次扫描时由rows生成当前数据
+ */
+public class SystemTable implements DbFile {
+
+    private final String name;
+    private final TupleDesc td;
+    private final Supplier<List<Tuple>> rows;
+
+    public SystemTable(String name, TupleDesc td, Supplier<List<Tuple>> rows) {
+        this.name = name;
+        this.td = td;
+        this.rows = rows;
+    }
+
+    @Override
+    public Page readPage(PageId pageId) {
+        throw new UnsupportedOperationException("system table " + name + " has no pages");
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        throw new IOException("system table " + name + " is read-only");
+    }
+
+    @Override
+    public Page createPage(PageId pageId, byte[] data) throws IOException {
+        throw new IOException("system table " + name + " has no pages");
+    }
+
+    @Override
+    public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("system table " + name + " is read-only");
+    }
+
+    @Override
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("system table " + name + " is read-only");
+    }
+
+    /**
+     * 打开时生成数据，rewind时重新生成
+     * @param tid
+     * @return
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid) {
+        return new DbFileIterator() {
+            private Iterator<Tuple> it;
+
+            @Override
+            public void open() {
+                it = rows.get().iterator();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return it != null && it.hasNext();
+            }
+
+            @Override
+            public Tuple next() throws NoSuchElementException {
+                if (it == null) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+
+            @Override
+            public void rewind() {
+                open();
+            }
+
+            @Override
+            public void close() {
+                it = null;
+            }
+        };
+    }
+
+    @Override
+    public int getId() {
+        return ("system:" + name).hashCode();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+}
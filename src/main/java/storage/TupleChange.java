@@ -0,0 +1,33 @@
+package storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 已提交事务对一条tuple的修改，由LogFile.ChangeReader按提交顺序返回
+ */
+@Getter
+@AllArgsConstructor
+public class TupleChange {
+
+    public enum Op {
+        INSERT, DELETE
+    }
+
+    private final long commitLsn;//事务提交记录的LSN，同一事务的修改相同
+    private final long transactionId;
+    private final int tableId;
+    private final Op op;
+    private final Tuple tuple;//删除时为删除前的tuple，RecordId为修改时的物理位置
+
+    @Override
+    public String toString() {
+        return "TupleChange{" +
+                "commitLsn=" + commitLsn +
+                ", transactionId=" + transactionId +
+                ", tableId=" + tableId +
+                ", op=" + op +
+                ", tuple=" + tuple +
+                '}';
+    }
+}
@@ -0,0 +1,242 @@
+package storage;
+
+import common.TransactionAbortedException;
+import transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 页面多版本存储，为只读事务提供快照读
+ * 写事务提交时分配递增的提交时间戳，快照读取时间戳不晚于快照的最新已提交版本
+ * 加页锁的写事务修改前保存页面数据，按行加锁的页面由缓冲池去掉未提交的行修改得到已提交数据
+ * 只有存在活跃快照时才保留页面的历史版本，最早的快照结束后回收不再需要的版本
+ * 保留的版本数有上限，超出时让最早的快照过期并回收它需要的版本，过期快照之后的读取会失败，事务需要回滚重试
+ */
+public class VersionStore {
+
+    /**
+     * 读取页面的某个状态，由缓冲池提供
+     */
+    public interface PageReader {
+        byte[] read(PageId pid) throws IOException;
+    }
+
+    public static final int DEFAULT_MAX_VERSIONS = 1024;
+
+    private long clock = 0;//最新的提交时间戳
+    private int maxVersions = DEFAULT_MAX_VERSIONS;//版本链中最多保留的版本数
+    private int versionCount = 0;//版本链中当前的版本数
+    private long expired = -1;//不晚于该时间戳的快照已过期
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();//key:快照时间戳 value:使用该快照的事务数
+    private final Map<Long, Long> snapshotOf = new ConcurrentHashMap<>();//key:只读事务id value:快照时间戳
+    private final Map<PageId, Long> writers = new ConcurrentHashMap<>();//key:页面 value:持有写锁的事务id
+    private final Map<Long, List<PageId>> writtenPages = new HashMap<>();//key:事务id value:事务持有写锁的页面
+    private final Map<PageId, byte[]> beforeImages = new HashMap<>();//key:页面 value:写事务修改前的已提交数据
+    private final Map<PageId, TreeMap<Long, byte[]>> versions = new HashMap<>();//key:页面 value:提交时间戳->页面数据，时间戳0为基础版本
+
+    /**
+     * 开启快照，能看到此前提交的所有事务
+     * @param tid
+     * @return 快照时间戳
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        long snapshot = clock;
+        snapshots.merge(snapshot, 1, Integer::sum);
+        snapshotOf.put(tid.getId(), snapshot);
+        return snapshot;
+    }
+
+    /**
+     * 结束快照并回收不再需要的版本
+     * @param tid
+     */
+    public synchronized void endSnapshot(TransactionId tid) {
+        Long snapshot = snapshotOf.remove(tid.getId());
+        //过期的快照已经从snapshots中移除
+        if (snapshot == null || !snapshots.containsKey(snapshot)) {
+            return;
+        }
+        if (snapshots.merge(snapshot, -1, Integer::sum) == 0) {
+            snapshots.remove(snapshot);
+        }
+        gc();
+    }
+
+    /**
+     * 获取只读事务的快照时间戳
+     * @param tid
+     * @return 不是只读事务时返回null
+     */
+    public Long getSnapshot(TransactionId tid) {
+        return snapshotOf.get(tid.getId());
+    }
+
+    /**
+     * 是否有正在使用的快照
+     * @return
+     */
+    public synchronized boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * 设置版本链中最多保留的版本数
+     * @param maxVersions
+     */
+    public synchronized void setMaxVersions(int maxVersions) {
+        if (maxVersions <= 0) {
+            throw new IllegalArgumentException("max versions must be positive");
+        }
+        this.maxVersions = maxVersions;
+    }
+
+    /**
+     * 写事务获取页面写锁后、修改页面前调用，有活跃快照时保存页面修改前的数据
+     * @param tid
+     * @param page
+     */
+    public void beginWrite(TransactionId tid, Page page) {
+        if (isWriter(page.getId(), tid)) {
+            return;
+        }
+        synchronized (this) {
+            writers.put(page.getId(), tid.getId());
+            writtenPages.computeIfAbsent(tid.getId(), k -> new ArrayList<>()).add(page.getId());
+            if (!snapshots.isEmpty() && !versions.containsKey(page.getId())) {
+                beforeImages.put(page.getId(), page.getPageData());
+            }
+        }
+    }
+
+    /**
+     * 事务是否已登记为页面的写事务
+     * @param pid
+     * @param tid
+     * @return
+     */
+    public boolean isWriter(PageId pid, TransactionId tid) {
+        Long writer = writers.get(pid);
+        return writer != null && writer == tid.getId();
+    }
+
+    /**
+     * 页面是否被加页锁的写事务修改中
+     * @param pid
+     * @return
+     */
+    public boolean hasWriter(PageId pid) {
+        return writers.containsKey(pid);
+    }
+
+    /**
+     * 写事务提交，有活跃快照时把提交后的页面加入版本链，之后新开启的快照能看到这次提交
+     * @param tid
+     * @param pages 事务修改的页面
+     * @param committed 读取提交前的已提交数据，页面没有修改前镜像时使用
+     * @param committing 读取提交后的页面数据，不包含其他事务按行做的未提交修改
+     * @param publish 提交对新快照可见前执行
+     * @throws IOException
+     */
+    public synchronized void commit(TransactionId tid, List<PageId> pages, PageReader committed, PageReader committing,
+                                    Runnable publish) throws IOException {
+        long ts = clock + 1;
+        if (!snapshots.isEmpty()) {
+            for (PageId pid : pages) {
+                TreeMap<Long, byte[]> chain = versions.get(pid);
+                if (chain == null) {
+                    byte[] base = beforeImages.get(pid);
+                    chain = new TreeMap<>();
+                    chain.put(0L, base != null ? base : committed.read(pid));
+                    versions.put(pid, chain);
+                    versionCount++;
+                }
+                //之前的最新版本不是任何快照可见的版本时不再需要，新快照都会读取这次提交的版本
+                long latest = chain.lastKey();
+                if (snapshots.ceilingKey(latest) == null) {
+                    chain.remove(latest);
+                    versionCount--;
+                }
+                chain.put(ts, committing.read(pid));
+                versionCount++;
+            }
+            //超出上限时依次让最早的快照过期
+            while (versionCount > maxVersions && !snapshots.isEmpty()) {
+                expired = Math.max(expired, snapshots.pollFirstEntry().getKey());
+                gc();
+            }
+        }
+        endWrite(tid);
+        publish.run();
+        clock = ts;
+    }
+
+    /**
+     * 写事务回滚，页面已经恢复为已提交数据
+     * @param tid
+     */
+    public synchronized void abort(TransactionId tid) {
+        endWrite(tid);
+    }
+
+    private void endWrite(TransactionId tid) {
+        List<PageId> pids = writtenPages.remove(tid.getId());
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            writers.remove(pid);
+            beforeImages.remove(pid);
+        }
+    }
+
+    /**
+     * 读取快照可见的页面数据
+     * @param pid
+     * @param snapshot
+     * @param current 读取缓冲池中页面的已提交数据，页面不在缓冲池中时返回null
+     * @return 页面正在被修改且没有保存修改前数据，或者不在缓冲池中时返回null，需要读取已提交数据
+     * @throws IOException
+     * @throws TransactionAbortedException 快照已过期，需要的版本可能已被回收
+     */
+    public synchronized byte[] read(PageId pid, long snapshot, PageReader current) throws IOException, TransactionAbortedException {
+        if (snapshot <= expired) {
+            throw new TransactionAbortedException();
+        }
+        TreeMap<Long, byte[]> chain = versions.get(pid);
+        if (chain != null) {
+            return chain.floorEntry(snapshot).getValue();
+        }
+        if (writers.containsKey(pid)) {
+            return beforeImages.get(pid);
+        }
+        //没有加页锁的写事务时，缓冲池中页面的已提交数据就是最新版本，快照开启后没有事务提交过该页面
+        return current.read(pid);
+    }
+
+    /**
+     * 回收最早的快照也看不到的版本，只剩最新版本的版本链直接删除
+     */
+    private void gc() {
+        if (snapshots.isEmpty()) {
+            versions.clear();
+            beforeImages.clear();
+            versionCount = 0;
+            return;
+        }
+        long oldest = snapshots.firstKey();
+        Iterator<TreeMap<Long, byte[]>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            TreeMap<Long, byte[]> chain = it.next();
+            long visible = chain.floorKey(oldest);
+            SortedMap<Long, byte[]> invisible = chain.headMap(visible);
+            versionCount -= invisible.size();
+            invisible.clear();
+            if (chain.size() == 1) {
+                versionCount--;
+                it.remove();
+            }
+        }
+    }
+}
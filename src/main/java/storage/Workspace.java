@@ -0,0 +1,72 @@
+package storage;
+
+import transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * 乐观事务的私有工作区，保存读取过的页面版本号和页面的私有副本
+ * 事务执行期间的修改只作用于私有副本，提交校验通过后才写入缓冲池
+ */
+public class Workspace {
+
+    private final Map<PageId, Long> readVersions = new LinkedHashMap<>();//key:页面 value:读取时的页面版本号
+    private final Map<PageId, Page> pages = new HashMap<>();//key:页面 value:私有副本
+    private final Map<PageId, List<TupleChange>> changes = new HashMap<>();//key:页面 value:对页面的行修改，提交时写入日志
+
+    /**
+     * 获取页面的私有副本
+     * @param pid
+     * @return 事务没有读取过该页面时返回null
+     */
+    public synchronized Page getPage(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /**
+     * 记录第一次读取的页面
+     * @param page 已提交数据的副本
+     * @param version 读取前的页面版本号
+     */
+    public synchronized void read(Page page, long version) {
+        readVersions.put(page.getId(), version);
+        pages.put(page.getId(), page);
+    }
+
+    public synchronized void addChange(TransactionId tid, PageId pid, TupleChange.Op op, Tuple tuple) {
+        changes.computeIfAbsent(pid, k -> new ArrayList<>()).add(new TupleChange(-1, tid.getId(), pid.getTableId(), op, tuple));
+    }
+
+    public synchronized Map<PageId, Long> getReadVersions() {
+        return new LinkedHashMap<>(readVersions);
+    }
+
+    /**
+     * 被修改过的私有副本
+     * @return
+     */
+    public synchronized List<Page> getDirtyPages() {
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : pages.values()) {
+            if (page.isDirty() != null) {
+                dirty.add(page);
+            }
+        }
+        return dirty;
+    }
+
+    public synchronized boolean isDirty(PageId pid) {
+        Page page = pages.get(pid);
+        return page != null && page.isDirty() != null;
+    }
+
+    /**
+     * 对页面的行修改
+     * @param pid
+     * @return 按修改顺序排列
+     */
+    public synchronized List<TupleChange> changesOf(PageId pid) {
+        List<TupleChange> list = changes.get(pid);
+        return list == null ? Collections.emptyList() : new ArrayList<>(list);
+    }
+}
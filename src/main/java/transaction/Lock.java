@@ -1,6 +1,5 @@
 package transaction;
 
-import common.Permissions;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -8,8 +7,8 @@ import lombok.Data;
 @AllArgsConstructor
 public class Lock {
 
-    private TransactionId transactionId;
-    private Permissions permissions;
+    private long transactionId;//按id比较持有者，不依赖TransactionId对象
+    private LockMode mode;
 
 
 }
@@ -2,129 +2,583 @@ package transaction;
 
 import common.Permissions;
 import storage.PageId;
+import storage.RecordId;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 多粒度锁管理，加锁对象分为表、页面、行三级
+ * 按页加锁时在表上加意向锁，按行加锁时在表和页面上加意向锁，不同事务可以同时修改同一页面的不同行
+ * 事务在同一页面持有的行锁过多时升级为页锁，在同一个表持有的页锁过多时升级为表锁
+ * 锁表按加锁对象哈希分成多个分片，每个分片有自己的latch，一次加锁涉及多个分片时按分片序号顺序获取latch
+ * 同时记录事务正在等待的锁和累计等待时间，用于锁视图和判断等待超时的事务是否处于死锁
+ */
 public class LockManager {
 
-    //key:页id value:作用于该页的所有lock
-    private Map<Integer, List<Lock>> lockCache;
+    private static final int ROW_ESCALATION_THRESHOLD = 64;//同一页面的行锁超过该值时升级为页锁
+    private static final int PAGE_ESCALATION_THRESHOLD = 64;//同一个表的页锁超过该值时升级为表锁
+    private static final int SHARDS = 64;//锁表分片数
+
+    private final Shard[] shards = new Shard[SHARDS];
+    //key:事务id value:事务持有的锁
+    private final Map<Long, TransactionLocks> transactions = new ConcurrentHashMap<>();
+
+    /**
+     * 锁表分片
+     */
+    private static class Shard {
+        private final ReentrantLock latch = new ReentrantLock();
+        //key:加锁对象，表为表id，页面为PageId，行为RecordId value:作用于该对象的所有lock
+        private final Map<Object, List<Lock>> lockCache = new HashMap<>();
+    }
+
+    /**
+     * 事务持有的锁，释放时只需要访问这些对象所在的分片
+     */
+    private static class TransactionLocks {
+        private final Map<Object, LockMode> held = new ConcurrentHashMap<>();//key:持有锁的对象 value:锁模式，已持有足够强的锁时不需要访问锁表
+        private final Map<PageId, Set<RecordId>> rowLocks = new HashMap<>();//key:页面 value:页面上持有的行锁
+        private final Map<Integer, Set<PageId>> pageLocks = new HashMap<>();//key:表id value:表中持有的页锁，不包括意向锁
+        private volatile Object waitingFor;//正在等待的加锁对象，没有等待时为null
+        private volatile LockMode waitingMode;
+        private volatile long waitStart;
+        private volatile long waitTime;//已结束的等待累计时间，单位毫秒
+
+        private boolean covers(Object key, LockMode mode) {
+            LockMode held = this.held.get(key);
+            return held != null && held.covers(mode);
+        }
+    }
+
+    /**
+     * 锁视图中的一行，已持有的锁或正在等待的锁
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class LockInfo {
+        private long transactionId;
+        private Object key;//表为表id，页面为PageId，行为RecordId
+        private LockMode mode;
+        private boolean granted;
+    }
 
     public LockManager() {
-        this.lockCache = new ConcurrentHashMap<>();
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
     }
 
     /**
-     * 获取锁
+     * 获取页锁
      *
      * @param tid
      * @param pageId
      * @param permissions
      * @return
      */
-    public synchronized Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions) {
-        Lock lock = new Lock(tid, permissions);
-        int pid = pageId.getPageNumber();
-        List<Lock> locks = lockCache.get(pid);
-        if (locks == null || locks.size() == 0) {
-            locks = new ArrayList<>();
-            locks.add(lock);
-            lockCache.put(pid, locks);
+    public Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions) {
+        LockMode mode = LockMode.of(permissions);
+        Integer table = pageId.getTableId();
+        TransactionLocks txn = transaction(tid);
+        //重复读取已加锁的页面时不访问锁表
+        if (txn.covers(pageId, mode) || txn.covers(table, mode)) {
             return true;
         }
+        Object[] keys = {table, pageId};
+        Set<PageId> pages;
+        latch(keys);
+        try {
+            if (covered(table, tid, mode) || covered(pageId, tid, mode)) {
+                return true;
+            }
+            if (!grant(tid, txn, keys, new LockMode[]{mode.intention(), mode})) {
+                return false;
+            }
+            pages = txn.pageLocks.computeIfAbsent(table, k -> new HashSet<>());
+            pages.add(pageId);
+        } finally {
+            unlatch(keys);
+        }
+        if (pages.size() > PAGE_ESCALATION_THRESHOLD) {
+            escalateTable(tid, txn, table);
+        }
+        return true;
+    }
 
+    /**
+     * 获取页面的意向锁，之后按行加锁
+     *
+     * @param tid
+     * @param pageId
+     * @param permissions
+     * @return
+     */
+    public Boolean acquireIntentionLock(TransactionId tid, PageId pageId, Permissions permissions) {
+        LockMode mode = LockMode.of(permissions).intention();
+        Integer table = pageId.getTableId();
+        TransactionLocks txn = transaction(tid);
+        if (txn.covers(pageId, mode) || txn.covers(table, mode)) {
+            return true;
+        }
+        Object[] keys = {table, pageId};
+        latch(keys);
+        try {
+            if (covered(table, tid, mode) || covered(pageId, tid, mode)) {
+                return true;
+            }
+            return grant(tid, txn, keys, new LockMode[]{mode, mode});
+        } finally {
+            unlatch(keys);
+        }
+    }
 
-        if (locks.size() == 1) {
-            //当只有一个事务抢占锁
-            Lock curLock = locks.get(0);
-            if (curLock.getTransactionId().equals(tid)) {
-                //判断是否进行锁升级
-                if (curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_WRITE)) {
-                    curLock.setPermissions(Permissions.READ_WRITE);
-                }
+    /**
+     * 获取行锁，同时在表和页面上加意向锁
+     *
+     * @param tid
+     * @param rid
+     * @param permissions
+     * @return
+     */
+    public Boolean acquireRowLock(TransactionId tid, RecordId rid, Permissions permissions) {
+        LockMode mode = LockMode.of(permissions);
+        PageId pageId = rid.getPageId();
+        Integer table = pageId.getTableId();
+        TransactionLocks txn = transaction(tid);
+        if (txn.covers(rid, mode) || txn.covers(pageId, mode) || txn.covers(table, mode)) {
+            return true;
+        }
+        Object[] keys = {table, pageId, rid};
+        Set<RecordId> rows;
+        latch(keys);
+        try {
+            if (covered(table, tid, mode) || covered(pageId, tid, mode) || covered(rid, tid, mode)) {
                 return true;
-            } else {
-                if (curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_ONLY)) {
-                    locks.add(lock);
-                    return true;
-                }
+            }
+            if (!grant(tid, txn, keys, new LockMode[]{mode.intention(), mode.intention(), mode})) {
                 return false;
             }
+            rows = txn.rowLocks.computeIfAbsent(pageId, k -> new HashSet<>());
+            rows.add(rid);
+        } finally {
+            unlatch(keys);
+        }
+        if (rows.size() > ROW_ESCALATION_THRESHOLD) {
+            escalatePage(tid, txn, pageId);
         }
+        return true;
+    }
 
-        //当有多个事务抢占锁，说明必然是多个读事务
-        if (lock.getPermissions().equals(Permissions.READ_WRITE)) {
-            return false;
+    /**
+     * 行锁升级为页锁，其他事务持有该页面的意向锁时放弃升级，下次加行锁时再尝试
+     */
+    private void escalatePage(TransactionId tid, TransactionLocks txn, PageId pageId) {
+        Set<RecordId> rows = txn.rowLocks.get(pageId);
+        List<Object> keyList = new ArrayList<>(rows);
+        keyList.add(pageId.getTableId());
+        keyList.add(pageId);
+        Object[] keys = keyList.toArray();
+        Set<PageId> pages;
+        latch(keys);
+        try {
+            LockMode mode = LockMode.S;
+            for (RecordId rid : rows) {
+                if (heldMode(rid, tid) == LockMode.X) {
+                    mode = LockMode.X;
+                    break;
+                }
+            }
+            if (!grant(tid, txn, new Object[]{pageId.getTableId(), pageId}, new LockMode[]{mode.intention(), mode})) {
+                return;
+            }
+            for (RecordId rid : rows) {
+                remove(rid, tid, txn);
+            }
+            txn.rowLocks.remove(pageId);
+            pages = txn.pageLocks.computeIfAbsent(pageId.getTableId(), k -> new HashSet<>());
+            pages.add(pageId);
+        } finally {
+            unlatch(keys);
         }
+        if (pages.size() > PAGE_ESCALATION_THRESHOLD) {
+            escalateTable(tid, txn, pageId.getTableId());
+        }
+    }
 
-        //每一个事物读锁并不需要重复获取
-        for (Lock l : locks) {
-            if (l.getTransactionId().equals(lock.getTransactionId())) {
-                return true;
+    /**
+     * 页锁升级为表锁，释放该表下的页锁和行锁
+     */
+    private void escalateTable(TransactionId tid, TransactionLocks txn, Integer table) {
+        List<Object> covered = new ArrayList<>(txn.pageLocks.get(table));
+        for (Map.Entry<PageId, Set<RecordId>> entry : txn.rowLocks.entrySet()) {
+            if (entry.getKey().getTableId() == table) {
+                covered.add(entry.getKey());
+                covered.addAll(entry.getValue());
             }
         }
-        locks.add(lock);
+        List<Object> keyList = new ArrayList<>(covered);
+        keyList.add(table);
+        Object[] keys = keyList.toArray();
+        latch(keys);
+        try {
+            LockMode mode = heldMode(table, tid).covers(LockMode.IX) ? LockMode.X : LockMode.S;
+            if (!grant(tid, txn, new Object[]{table}, new LockMode[]{mode})) {
+                return;
+            }
+            for (Object key : covered) {
+                remove(key, tid, txn);
+            }
+            txn.pageLocks.remove(table);
+            txn.rowLocks.keySet().removeIf(pageId -> pageId.getTableId() == table);
+        } finally {
+            unlatch(keys);
+        }
+    }
+
+    /**
+     * 同时获取多个对象的锁，全部兼容时才加锁，已持有的锁合并为更强的模式，调用方需要持有这些对象所在分片的latch
+     * @return 存在冲突时返回false，不加任何锁
+     */
+    private boolean grant(TransactionId tid, TransactionLocks txn, Object[] keys, LockMode[] modes) {
+        LockMode[] targets = new LockMode[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            LockMode held = heldMode(keys[i], tid);
+            targets[i] = held == null ? modes[i] : held.combine(modes[i]);
+            List<Lock> locks = shard(keys[i]).lockCache.get(keys[i]);
+            if (locks == null) {
+                continue;
+            }
+            for (Lock l : locks) {
+                if (l.getTransactionId() != tid.getId() && !l.getMode().compatibleWith(targets[i])) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            List<Lock> locks = shard(keys[i]).lockCache.computeIfAbsent(keys[i], k -> new ArrayList<>());
+            Lock lock = find(locks, tid);
+            if (lock == null) {
+                locks.add(new Lock(tid.getId(), targets[i]));
+            } else {
+                lock.setMode(targets[i]);
+            }
+            txn.held.put(keys[i], targets[i]);
+        }
         return true;
     }
 
+    private boolean covered(Object key, TransactionId tid, LockMode mode) {
+        LockMode held = heldMode(key, tid);
+        return held != null && held.covers(mode);
+    }
+
+    private LockMode heldMode(Object key, TransactionId tid) {
+        List<Lock> locks = shard(key).lockCache.get(key);
+        if (locks == null) {
+            return null;
+        }
+        Lock lock = find(locks, tid);
+        return lock == null ? null : lock.getMode();
+    }
+
+    private Lock find(List<Lock> locks, TransactionId tid) {
+        for (Lock l : locks) {
+            if (l.getTransactionId() == tid.getId()) {
+                return l;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Object key, TransactionId tid, TransactionLocks txn) {
+        Map<Object, List<Lock>> lockCache = shard(key).lockCache;
+        List<Lock> locks = lockCache.get(key);
+        if (locks == null) {
+            return;
+        }
+        Lock lock = find(locks, tid);
+        if (lock != null) {
+            locks.remove(lock);
+            if (locks.size() == 0) {
+                lockCache.remove(key);
+            }
+        }
+        txn.held.remove(key);
+    }
+
+    private TransactionLocks transaction(TransactionId tid) {
+        return transactions.computeIfAbsent(tid.getId(), k -> new TransactionLocks());
+    }
+
+    private Shard shard(Object key) {
+        return shards[Math.floorMod(key.hashCode(), SHARDS)];
+    }
+
+    /**
+     * 按分片序号顺序获取对象所在分片的latch，避免多个分片之间死锁
+     * @param keys
+     */
+    private void latch(Object[] keys) {
+        for (int i : shardIndexes(keys)) {
+            shards[i].latch.lock();
+        }
+    }
+
+    private void unlatch(Object[] keys) {
+        for (int i : shardIndexes(keys)) {
+            shards[i].latch.unlock();
+        }
+    }
+
+    private int[] shardIndexes(Object[] keys) {
+        return Arrays.stream(keys).mapToInt(key -> Math.floorMod(key.hashCode(), SHARDS)).distinct().sorted().toArray();
+    }
+
 
     /**
-     * 释放锁
+     * 释放页锁
      *
      * @param tid
      * @param pageId
      */
-    public synchronized void releaseLock(TransactionId tid, PageId pageId) {
-        int pid = pageId.getPageNumber();
-        List<Lock> locks = lockCache.get(pid);
-        for (Lock l : locks) {
-            if (l.getTransactionId().equals(tid)) {
-                locks.remove(l);
-                if (locks.size() == 0) {
-                    lockCache.remove(pid);
-                }
-                return;
+    public void releaseLock(TransactionId tid, PageId pageId) {
+        TransactionLocks txn = transactions.get(tid.getId());
+        if (txn == null) {
+            return;
+        }
+        Object[] keys = {pageId};
+        latch(keys);
+        try {
+            remove(pageId, tid, txn);
+            Set<PageId> pages = txn.pageLocks.get(pageId.getTableId());
+            if (pages != null) {
+                pages.remove(pageId);
             }
+        } finally {
+            unlatch(keys);
         }
     }
 
     /**
-     * 释放当前事务的所有锁
+     * 释放当前事务的所有锁，只访问事务持有锁的分片
      *
      * @param tid
      */
-    public synchronized void releaseAllLock(TransactionId tid) {
-        for (Integer pid : lockCache.keySet()) {
-            List<Lock> locks = lockCache.get(pid);
-            for (Lock lock : locks) {
-                if (lock.getTransactionId().equals(tid)) {
-                    locks.remove(lock);
-                    if (locks.size() == 0) {
-                        lockCache.remove(pid);
+    public void releaseAllLock(TransactionId tid) {
+        TransactionLocks txn = transactions.remove(tid.getId());
+        if (txn == null) {
+            return;
+        }
+        Map<Shard, List<Object>> byShard = new HashMap<>();
+        for (Object key : txn.held.keySet()) {
+            byShard.computeIfAbsent(shard(key), k -> new ArrayList<>()).add(key);
+        }
+        for (Map.Entry<Shard, List<Object>> entry : byShard.entrySet()) {
+            Shard shard = entry.getKey();
+            shard.latch.lock();
+            try {
+                for (Object key : entry.getValue()) {
+                    List<Lock> locks = shard.lockCache.get(key);
+                    if (locks == null) {
+                        continue;
+                    }
+                    Lock lock = find(locks, tid);
+                    if (lock != null) {
+                        locks.remove(lock);
+                    }
+                    if (locks.isEmpty()) {
+                        shard.lockCache.remove(key);
                     }
-                    break;
                 }
+            } finally {
+                shard.latch.unlock();
             }
         }
     }
 
     /**
-     * 判断是否持有锁
-     *
+     * 记录事务开始等待某个对象的锁，加锁第一次失败后调用
+     * @param tid
+     * @param key 表id、PageId或RecordId
+     * @param permissions
+     */
+    public void beginWait(TransactionId tid, Object key, Permissions permissions) {
+        TransactionLocks txn = transaction(tid);
+        txn.waitStart = System.currentTimeMillis();
+        txn.waitingMode = LockMode.of(permissions);
+        txn.waitingFor = key;
+    }
+
+    /**
+     * 结束等待，累计等待时间
+     * @param tid
+     * @return 本次等待的时间，单位毫秒
+     */
+    public long endWait(TransactionId tid) {
+        TransactionLocks txn = transactions.get(tid.getId());
+        if (txn == null || txn.waitingFor == null) {
+            return 0;
+        }
+        long waited = System.currentTimeMillis() - txn.waitStart;
+        txn.waitingFor = null;
+        txn.waitTime += waited;
+        return waited;
+    }
+
+    /**
+     * 事务正在等待的加锁对象
+     * @param tid
+     * @return 没有等待时返回null
+     */
+    public Object getWaitingFor(TransactionId tid) {
+        TransactionLocks txn = transactions.get(tid.getId());
+        return txn == null ? null : txn.waitingFor;
+    }
+
+    /**
+     * 事务累计的锁等待时间，包括正在进行的等待
+     * @param tid
+     * @return 单位毫秒
+     */
+    public long getWaitTime(TransactionId tid) {
+        TransactionLocks txn = transactions.get(tid.getId());
+        if (txn == null) {
+            return 0;
+        }
+        long waitTime = txn.waitTime;
+        if (txn.waitingFor != null) {
+            waitTime += System.currentTimeMillis() - txn.waitStart;
+        }
+        return waitTime;
+    }
+
+    /**
+     * 事务持有的锁数量，包括意向锁
      * @param tid
-     * @param pageId
      * @return
      */
-    public synchronized Boolean holdsLock(TransactionId tid, PageId pageId) {
-        for (Lock lock : lockCache.get(pageId.getPageNumber())) {
-            if (lock.getTransactionId().equals(tid)) {
-                return true;
+    public int getLockCount(TransactionId tid) {
+        TransactionLocks txn = transactions.get(tid.getId());
+        return txn == null ? 0 : txn.held.size();
+    }
+
+    /**
+     * 判断正在等待的事务是否处于死锁，沿等待图查找：事务等待的对象及其上级对象的持有者，再看持有者在等待什么
+     * 各分片分别加latch读取，得到的等待图不是同一时刻的快照，只用于区分超时和死锁
+     * @param tid
+     * @return 等待图中存在回到该事务的环时返回true
+     */
+    public boolean isDeadlocked(TransactionId tid) {
+        Set<Long> visited = new HashSet<>();
+        Deque<Long> stack = new ArrayDeque<>();
+        stack.push(tid.getId());
+        while (!stack.isEmpty()) {
+            long waiter = stack.pop();
+            TransactionLocks txn = transactions.get(waiter);
+            Object key = txn == null ? null : txn.waitingFor;
+            if (key == null) {
+                continue;
+            }
+            for (long holder : blockers(waiter, key, txn.waitingMode)) {
+                if (holder == tid.getId()) {
+                    return true;
+                }
+                if (visited.add(holder)) {
+                    stack.push(holder);
+                }
             }
         }
         return false;
     }
 
+    /**
+     * 除waiter外持有与mode冲突的锁的事务，包括上级对象上的锁
+     */
+    private Set<Long> blockers(long waiter, Object key, LockMode mode) {
+        List<Object> keys = new ArrayList<>();
+        List<LockMode> modes = new ArrayList<>();
+        keys.add(key);
+        modes.add(mode);
+        if (key instanceof RecordId) {
+            keys.add(((RecordId) key).getPageId());
+            modes.add(mode.intention());
+        }
+        if (key instanceof RecordId || key instanceof PageId) {
+            PageId pageId = key instanceof RecordId ? ((RecordId) key).getPageId() : (PageId) key;
+            keys.add(pageId.getTableId());
+            modes.add(mode.intention());
+        }
+        Set<Long> holders = new HashSet<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Shard shard = shard(keys.get(i));
+            shard.latch.lock();
+            try {
+                List<Lock> locks = shard.lockCache.get(keys.get(i));
+                if (locks == null) {
+                    continue;
+                }
+                for (Lock l : locks) {
+                    long holder = l.getTransactionId();
+                    if (holder != waiter && !l.getMode().compatibleWith(modes.get(i))) {
+                        holders.add(holder);
+                    }
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * 锁表的快照，依次加latch读取每个分片，再加上正在等待的锁
+     * @return
+     */
+    public List<LockInfo> getLocks() {
+        List<LockInfo> res = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                for (Map.Entry<Object, List<Lock>> entry : shard.lockCache.entrySet()) {
+                    for (Lock l : entry.getValue()) {
+                        res.add(new LockInfo(l.getTransactionId(), entry.getKey(), l.getMode(), true));
+                    }
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        for (Map.Entry<Long, TransactionLocks> entry : transactions.entrySet()) {
+            TransactionLocks txn = entry.getValue();
+            Object key = txn.waitingFor;
+            if (key != null) {
+                res.add(new LockInfo(entry.getKey(), key, txn.waitingMode, false));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 判断是否持有页面的锁，包括意向锁和表锁
+     *
+     * @param tid
+     * @param pageId
+     * @return
+     */
+    public Boolean holdsLock(TransactionId tid, PageId pageId) {
+        Object[] keys = {pageId.getTableId(), pageId};
+        latch(keys);
+        try {
+            LockMode table = heldMode(pageId.getTableId(), tid);
+            return heldMode(pageId, tid) != null || (table != null && table.covers(LockMode.S));
+        } finally {
+            unlatch(keys);
+        }
+    }
+
 }
@@ -0,0 +1,72 @@
+package transaction;
+
+import common.Permissions;
+
+/**
+ * 多粒度锁模式，按表、页面、行三级加锁，给页面或行加锁前先在上级加意向锁
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    //兼容矩阵，行列顺序和枚举定义一致
+    private static final boolean[][] COMPATIBLE = {
+            //IS    IX     S      SIX    X
+            {true,  true,  true,  true,  false},//IS
+            {true,  true,  false, false, false},//IX
+            {true,  false, true,  false, false},//S
+            {true,  false, false, false, false},//SIX
+            {false, false, false, false, false},//X
+    };
+
+    public static LockMode of(Permissions permissions) {
+        return permissions == Permissions.READ_WRITE ? X : S;
+    }
+
+    /**
+     * 加锁前需要在上级对象加的意向锁
+     * @return
+     */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * 持有当前模式时是否已经具备other的权限，上级对象的S、X锁隐含了下级对象的同名锁
+     * @param other
+     * @return
+     */
+    public boolean covers(LockMode other) {
+        switch (this) {
+            case X:
+                return true;
+            case SIX:
+                return other != X;
+            case S:
+                return other == S || other == IS;
+            case IX:
+                return other == IX || other == IS;
+            default:
+                return other == IS;
+        }
+    }
+
+    /**
+     * 已经持有当前模式时再申请other，合并后的模式
+     * @param other
+     * @return
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        //只剩IX和S的组合
+        return SIX;
+    }
+}
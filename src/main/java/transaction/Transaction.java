@@ -1,12 +1,28 @@
 package transaction;
 
 import common.Database;
+import common.DbException;
+import common.TransactionAbortedException;
 
 import java.io.IOException;
+import java.util.Random;
 
 public class Transaction {
+
+    /**
+     * 乐观事务执行的操作，提交校验失败时会被重新执行
+     */
+    public interface Work {
+        void run(TransactionId tid) throws DbException, IOException, TransactionAbortedException;
+    }
+
     private final TransactionId tid;
     public volatile boolean started = false;
+    private boolean synchronousCommit = true;//false时提交不等待日志刷盘
+    private boolean readOnly = false;//只读事务读取开始时的快照，不加锁也不写日志
+    private boolean optimistic = false;//乐观事务执行期间不加锁，提交时校验
+    private long startTime;//开始时间，单位毫秒
+    private boolean prepared = false;//已完成两阶段提交的第一阶段
 
     public Transaction() {
         tid = new TransactionId();
@@ -15,37 +31,208 @@ public class Transaction {
 
     public void start() {
         started = true;
+        startTime = System.currentTimeMillis();
+        Database.getTransactionMonitor().begin(this);
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logTractionBegin(tid);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
     }
 
     public TransactionId getId() {
         return tid;
     }
 
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public boolean isSynchronousCommit() {
+        return synchronousCommit;
+    }
+
+    /**
+     * 设置提交方式，异步提交在日志写入后即返回，崩溃时可能丢失最近commitDelay内提交的事务
+     * @param synchronousCommit
+     */
+    public void setSynchronousCommit(boolean synchronousCommit) {
+        this.synchronousCommit = synchronousCommit;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * 设置为只读事务，需要在start之前调用
+     * 只读事务读取start时已提交的数据，和写事务互不阻塞
+     * @param readOnly
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * 设置为乐观事务，需要在start之前调用
+     * 乐观事务读写页面的私有副本，提交时校验读取过的页面没有被其他事务修改，适合冲突少的短事务
+     * @param optimistic
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    /**
+     * 以乐观事务执行操作，提交校验失败时回滚并重新执行
+     * @param work
+     * @param maxAttempts 最多执行次数
+     * @throws TransactionAbortedException 每次执行都校验失败
+     */
+    public static void runOptimistic(Work work, int maxAttempts) throws DbException, IOException, TransactionAbortedException {
+        TransactionAbortedException last = new TransactionAbortedException();
+        for (int i = 0; i < maxAttempts; i++) {
+            Transaction t = new Transaction();
+            t.setOptimistic(true);
+            t.start();
+            try {
+                work.run(t.getId());
+                t.commit();
+                return;
+            } catch (TransactionAbortedException e) {
+                last = e;
+                t.abort();
+                backoff(i);
+            } catch (DbException | IOException | RuntimeException e) {
+                t.abort();
+                throw e;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * 校验失败后随机等待一段时间再重试，冲突的事务错开提交，等待上限随失败次数增加
+     * @param attempt
+     */
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(new Random().nextInt(Math.min(attempt, 10) + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
 
-    public void commit() throws IOException {
+    /**
+     * 提交事务，乐观事务先校验，校验失败时回滚
+     * @throws IOException
+     * @throws TransactionAbortedException 乐观事务读取过的页面被其他事务修改
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (!prepared) {
+            validate();
+        }
         transactionComplete(false);
     }
 
+    /**
+     * 两阶段提交的第一阶段：乐观事务先校验，再写入PREPARE记录并刷盘
+     * 准备好的事务继续持有锁，之后只能提交或回滚，崩溃恢复时由协调者裁决
+     * @param gtid 全局事务id
+     * @throws IOException
+     * @throws TransactionAbortedException 乐观事务校验失败，事务已回滚
+     */
+    public void prepare(long gtid) throws IOException, TransactionAbortedException {
+        if (!started || readOnly || prepared) {
+            return;
+        }
+        validate();
+        Database.getLogFile().logPrepare(tid, gtid);
+        prepared = true;
+    }
+
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+    /**
+     * 乐观事务提交前校验，校验失败时回滚
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private void validate() throws IOException, TransactionAbortedException {
+        if (started && optimistic && !readOnly) {
+            try {
+                Database.getBufferPool().validateOptimistic(tid);
+            } catch (TransactionAbortedException e) {
+                Database.getTransactionMonitor().abortCause(tid, TransactionMonitor.AbortCause.VALIDATION);
+                transactionComplete(true);
+                throw e;
+            }
+        }
+    }
+
 
     public void abort() throws IOException {
         transactionComplete(true);
     }
 
+    /**
+     * 建立保存点，同名的保存点被替换
+     * @param name
+     * @throws DbException 乐观事务不支持保存点
+     */
+    public void savepoint(String name) throws DbException {
+        Database.getBufferPool().savepoint(tid, name);
+    }
+
+    /**
+     * 撤销保存点之后的修改，事务继续执行，已获取的锁不释放
+     * @param name
+     * @throws DbException 保存点不存在
+     */
+    public void rollbackTo(String name) throws DbException {
+        Database.getBufferPool().rollbackTo(tid, name);
+    }
+
+    /**
+     * 删除保存点及之后建立的保存点，已做的修改保留
+     * @param name
+     * @throws DbException 保存点不存在
+     */
+    public void releaseSavepoint(String name) throws DbException {
+        Database.getBufferPool().releaseSavepoint(tid, name);
+    }
+
 
     public void transactionComplete(boolean abort) throws IOException {
         if (started) {
-            if (abort) {
-                Database.getLogFile().logAbort(tid);
-            }else{
+            if (readOnly) {
+                Database.getBufferPool().endSnapshot(tid);
+            } else if (abort) {
+                //回滚后由缓冲池记录abort
+                Database.getBufferPool().transactionComplete(tid, false);
+            } else if (synchronousCommit) {
                 Database.getLogFile().logCommit(tid);
+                Database.getBufferPool().transactionComplete(tid, true);
+            } else {
+                long commitLsn = Database.getLogFile().logCommit(tid, false);
+                Database.getBufferPool().transactionCommitAsync(tid, commitLsn);
             }
-            Database.getBufferPool().transactionComplete(tid, !abort);
             started = false;
+            Database.getTransactionMonitor().end(this, !abort);
         }
     }
 }
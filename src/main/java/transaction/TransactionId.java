@@ -3,14 +3,31 @@ package transaction;
 import java.io.Serializable;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 事务id，进程内唯一
+ * 每个线程一次从全局计数器预留一段id（epoch），段内分配不需要同步，大量线程同时开启事务时全局计数器不会成为热点
+ * 不同线程分配的id不保证按开启顺序递增
+ */
 public class TransactionId implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private static final AtomicLong counter = new AtomicLong(0);
+    private static final int EPOCH_SIZE = 1024;//每个epoch包含的id数
+    private static final AtomicLong nextEpoch = new AtomicLong(0);
+    private static final ThreadLocal<long[]> epoch = ThreadLocal.withInitial(() -> new long[2]);//当前线程的epoch [下一个id, 结束id]
+
     private final long myid;
 
     public TransactionId() {
-        myid = counter.getAndIncrement();
+        myid = allocate();
+    }
+
+    private static long allocate() {
+        long[] range = epoch.get();
+        if (range[0] == range[1]) {
+            range[0] = nextEpoch.getAndIncrement() * EPOCH_SIZE;
+            range[1] = range[0] + EPOCH_SIZE;
+        }
+        return range[0]++;
     }
 
     public long getId() {
@@ -21,9 +38,7 @@ public class TransactionId implements Serializable {
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
-        if (obj == null)
-            return false;
-        if (obj instanceof TransactionId)
+        if (!(obj instanceof TransactionId))
             return false;
         TransactionId other = (TransactionId) obj;
         return myid == other.myid;
@@ -31,9 +46,6 @@ public class TransactionId implements Serializable {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + (int) (myid ^ (myid >>> 32));
-        return result;
+        return Long.hashCode(myid);
     }
 }
@@ -0,0 +1,246 @@
+package transaction;
+
+import common.Database;
+import common.Type;
+import storage.IntField;
+import storage.PageId;
+import storage.RecordId;
+import storage.StringField;
+import storage.Tuple;
+import storage.TupleDesc;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事务监控，记录活跃事务和事务回滚的原因
+ * 提供系统表sys_transactions、sys_locks的数据，汇总统计通过JMX暴露
+ */
+public class TransactionMonitor implements TransactionMonitorMBean {
+
+    public static final String OBJECT_NAME = "myDataBase:type=Transactions";
+
+    /**
+     * 事务回滚的原因
+     */
+    public enum AbortCause {
+        USER,//主动回滚或执行出错
+        TIMEOUT,//等待锁超时
+        DEADLOCK,//等待锁超时且处于死锁
+        VALIDATION,//乐观事务提交校验失败
+        SNAPSHOT_TOO_OLD//只读事务的快照过期
+    }
+
+    public static final TupleDesc TRANSACTIONS_DESC = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+            new String[]{"tid", "mode", "start_time", "duration", "locks", "waiting_for", "wait_time"});
+
+    public static final TupleDesc LOCKS_DESC = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+            new String[]{"tid", "type", "table_id", "page_no", "slot", "mode", "granted"});
+
+    private final Map<Long, Transaction> active = new ConcurrentHashMap<>();//key:事务id value:活跃事务
+    private final Map<Long, AbortCause> abortCauses = new ConcurrentHashMap<>();//key:事务id value:事务将要回滚的原因
+    private final AtomicLong commits = new AtomicLong();
+    private final Map<AbortCause, AtomicLong> aborts = new EnumMap<>(AbortCause.class);
+    private final AtomicLong lockWaits = new AtomicLong();
+    private final AtomicLong lockWaitMillis = new AtomicLong();
+
+    public TransactionMonitor() {
+        for (AbortCause cause : AbortCause.values()) {
+            aborts.put(cause, new AtomicLong());
+        }
+    }
+
+    /**
+     * 注册到平台MBeanServer，已存在同名MBean时替换
+     */
+    public void registerMBean() {
+        registerMBean(null);
+    }
+
+    /**
+     * 注册到平台MBeanServer，已存在同名MBean时替换
+     * @param instance 数据库实例名，同一个JVM中有多个实例时区分各自的MBean，为null时使用默认名称
+     */
+    public void registerMBean(String instance) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(instance == null ? OBJECT_NAME : OBJECT_NAME + ",name=" + ObjectName.quote(instance));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void begin(Transaction transaction) {
+        active.put(transaction.getId().getId(), transaction);
+    }
+
+    /**
+     * 事务结束，回滚时按记录的原因计数，没有记录原因的算作主动回滚
+     * @param transaction
+     * @param commit
+     */
+    public void end(Transaction transaction, boolean commit) {
+        long id = transaction.getId().getId();
+        active.remove(id);
+        AbortCause cause = abortCauses.remove(id);
+        if (commit) {
+            commits.incrementAndGet();
+        } else {
+            aborts.get(cause == null ? AbortCause.USER : cause).incrementAndGet();
+        }
+    }
+
+    /**
+     * 记录事务将要回滚的原因，只保留第一个原因
+     * @param tid
+     * @param cause
+     */
+    public void abortCause(TransactionId tid, AbortCause cause) {
+        if (active.containsKey(tid.getId())) {
+            abortCauses.putIfAbsent(tid.getId(), cause);
+        }
+    }
+
+    /**
+     * 记录一次结束的锁等待
+     * @param millis
+     */
+    public void lockWaited(long millis) {
+        lockWaits.incrementAndGet();
+        lockWaitMillis.addAndGet(millis);
+    }
+
+    /**
+     * sys_transactions的数据，每个活跃事务一行
+     * @return
+     */
+    public List<Tuple> transactionRows() {
+        LockManager lockManager = Database.getBufferPool().getLockManager();
+        long now = System.currentTimeMillis();
+        List<Tuple> rows = new ArrayList<>();
+        for (Transaction transaction : active.values()) {
+            TransactionId tid = transaction.getId();
+            Object waitingFor = lockManager.getWaitingFor(tid);
+            Tuple t = new Tuple(TRANSACTIONS_DESC);
+            t.setField(0, new IntField((int) tid.getId()));
+            t.setField(1, new StringField(modeOf(transaction), Type.STRING_LEN));
+            t.setField(2, new IntField((int) (transaction.getStartTime() / 1000)));
+            t.setField(3, new IntField((int) (now - transaction.getStartTime())));
+            t.setField(4, new IntField(lockManager.getLockCount(tid)));
+            t.setField(5, new StringField(waitingFor == null ? "" : waitingFor.toString(), Type.STRING_LEN));
+            t.setField(6, new IntField((int) lockManager.getWaitTime(tid)));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    /**
+     * sys_locks的数据，每个已持有或正在等待的锁一行，不属于对应层级的列为-1
+     * @return
+     */
+    public List<Tuple> lockRows() {
+        List<Tuple> rows = new ArrayList<>();
+        for (LockManager.LockInfo info : Database.getBufferPool().getLockManager().getLocks()) {
+            Object key = info.getKey();
+            String type = "table";
+            int table;
+            int pageNo = -1;
+            int slot = -1;
+            if (key instanceof RecordId) {
+                RecordId rid = (RecordId) key;
+                type = "row";
+                table = rid.getPageId().getTableId();
+                pageNo = rid.getPageId().getPageNumber();
+                slot = rid.getTupleNumber();
+            } else if (key instanceof PageId) {
+                type = "page";
+                table = ((PageId) key).getTableId();
+                pageNo = ((PageId) key).getPageNumber();
+            } else {
+                table = (Integer) key;
+            }
+            Tuple t = new Tuple(LOCKS_DESC);
+            t.setField(0, new IntField((int) info.getTransactionId()));
+            t.setField(1, new StringField(type, Type.STRING_LEN));
+            t.setField(2, new IntField(table));
+            t.setField(3, new IntField(pageNo));
+            t.setField(4, new IntField(slot));
+            t.setField(5, new StringField(info.getMode().name(), Type.STRING_LEN));
+            t.setField(6, new IntField(info.isGranted() ? 1 : 0));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    private String modeOf(Transaction transaction) {
+        if (transaction.isReadOnly()) {
+            return "read only";
+        }
+        return transaction.isOptimistic() ? "optimistic" : "read write";
+    }
+
+    @Override
+    public int getActiveTransactions() {
+        return active.size();
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.get();
+    }
+
+    @Override
+    public long getAborts() {
+        long sum = 0;
+        for (AtomicLong count : aborts.values()) {
+            sum += count.get();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getUserAborts() {
+        return aborts.get(AbortCause.USER).get();
+    }
+
+    @Override
+    public long getTimeoutAborts() {
+        return aborts.get(AbortCause.TIMEOUT).get();
+    }
+
+    @Override
+    public long getDeadlockAborts() {
+        return aborts.get(AbortCause.DEADLOCK).get();
+    }
+
+    @Override
+    public long getValidationAborts() {
+        return aborts.get(AbortCause.VALIDATION).get();
+    }
+
+    @Override
+    public long getSnapshotTooOldAborts() {
+        return aborts.get(AbortCause.SNAPSHOT_TOO_OLD).get();
+    }
+
+    @Override
+    public long getLockWaits() {
+        return lockWaits.get();
+    }
+
+    @Override
+    public long getLockWaitMillis() {
+        return lockWaitMillis.get();
+    }
+}
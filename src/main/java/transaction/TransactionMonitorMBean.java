@@ -0,0 +1,27 @@
+package transaction;
+
+/**
+ * 通过JMX暴露的事务统计
+ */
+public interface TransactionMonitorMBean {
+
+    int getActiveTransactions();
+
+    long getCommits();
+
+    long getAborts();
+
+    long getUserAborts();
+
+    long getTimeoutAborts();
+
+    long getDeadlockAborts();
+
+    long getValidationAborts();
+
+    long getSnapshotTooOldAborts();
+
+    long getLockWaits();
+
+    long getLockWaitMillis();
+}
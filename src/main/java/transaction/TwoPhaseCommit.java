@@ -0,0 +1,252 @@
+package transaction;
+
+import common.Database;
+import common.DbException;
+import common.TransactionAbortedException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 两阶段提交协调者，让一个全局事务在多个数据库实例（分片）上原子提交
+ * 第一阶段各参与者写入PREPARE记录并刷盘，全部成功后把提交决定写入决定日志并刷盘，第二阶段各参与者提交
+ * 推定回滚：决定日志只记录提交的全局事务，参与者恢复时查不到提交决定的准备事务回滚
+ * 全局事务id为 epoch<<32 | 序号，协调者每次启动先把新的epoch写入决定日志，重启后不会重复分配
+ */
+@Slf4j
+public class TwoPhaseCommit implements Closeable {
+
+    private static final int LONG_SIZE = 8;
+
+    private final FileChannel channel;//决定日志，每条记录为一个全局事务id，序号为0的记录是epoch
+    private final Set<Long> committed = ConcurrentHashMap.newKeySet();//已决定提交的全局事务id
+    private final long epoch;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * 打开决定日志，读取已决定提交的全局事务并开始新的epoch
+     * @param decisionLog
+     * @throws IOException
+     */
+    public TwoPhaseCommit(File decisionLog) throws IOException {
+        channel = FileChannel.open(decisionLog.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //崩溃时写了一半的记录截掉
+        long length = channel.size() / LONG_SIZE * LONG_SIZE;
+        channel.truncate(length);
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        long lastEpoch = 0;
+        while (buffer.remaining() >= LONG_SIZE) {
+            long gtid = buffer.getLong();
+            lastEpoch = Math.max(lastEpoch, gtid >>> 32);
+            if ((int) gtid != 0) {
+                committed.add(gtid);
+            }
+        }
+        epoch = lastEpoch + 1;
+        logDecision(epoch << 32);
+    }
+
+    /**
+     * 开启全局事务
+     * @return
+     */
+    public GlobalTransaction begin() {
+        return new GlobalTransaction(epoch << 32 | sequence.incrementAndGet());
+    }
+
+    /**
+     * 全局事务是否已决定提交，作为参与者恢复时的InDoubtResolver
+     * @param gtid
+     * @return
+     */
+    public boolean isCommitted(long gtid) {
+        return committed.contains(gtid);
+    }
+
+    /**
+     * 恢复参与者，崩溃时处于准备状态的事务按决定日志提交或回滚
+     * @param participant
+     * @throws IOException
+     */
+    public void recover(Database participant) throws IOException {
+        try {
+            participant.execute(() -> {
+                Database.getLogFile().recover(this::isCommitted);
+                return null;
+            });
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private synchronized void logDecision(long gtid) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LONG_SIZE);
+        buffer.putLong(0, gtid);
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 全局事务，在每个参与者上有一个本地事务，第一次在参与者上执行操作时开启
+     * 同一个全局事务的操作不能并发执行
+     */
+    public class GlobalTransaction {
+
+        private final long id;
+        private final Map<Database, Transaction> branches = new LinkedHashMap<>();//key:参与者 value:参与者上的本地事务
+        private boolean prepared = false;
+        private boolean completed = false;
+
+        private GlobalTransaction(long id) {
+            this.id = id;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * 在参与者上执行操作
+         * @param participant
+         * @param work 参数为参与者上本地事务的id
+         * @throws DbException 全局事务已准备或已结束
+         */
+        public void execute(Database participant, Transaction.Work work) throws DbException, IOException, TransactionAbortedException {
+            if (prepared || completed) {
+                throw new DbException("global transaction " + id + " is " + (completed ? "completed" : "prepared"));
+            }
+            Transaction branch = branches.get(participant);
+            if (branch == null) {
+                Transaction transaction = new Transaction();
+                participant.execute(() -> {
+                    transaction.start();
+                    return null;
+                });
+                branches.put(participant, transaction);
+                branch = transaction;
+            }
+            Transaction t = branch;
+            participant.execute(() -> {
+                work.run(t.getId());
+                return null;
+            });
+        }
+
+        /**
+         * 第一阶段：所有参与者准备，有参与者失败时回滚全局事务
+         * @throws IOException
+         * @throws TransactionAbortedException 有参与者校验失败
+         */
+        public void prepare() throws IOException, TransactionAbortedException {
+            if (prepared || completed) {
+                return;
+            }
+            try {
+                for (Map.Entry<Database, Transaction> entry : branches.entrySet()) {
+                    Transaction t = entry.getValue();
+                    run(entry.getKey(), () -> t.prepare(id));
+                }
+            } catch (IOException | TransactionAbortedException e) {
+                abort();
+                throw e;
+            }
+            prepared = true;
+        }
+
+        /**
+         * 提交全局事务，提交决定刷盘后全局事务即提交，之后参与者崩溃也会在恢复时提交
+         * 只有一个参与者时直接提交，不需要两阶段
+         * @throws IOException 提交决定之后的错误，参与者恢复时仍会提交
+         * @throws TransactionAbortedException 有参与者准备失败，全局事务已回滚
+         */
+        public void commit() throws IOException, TransactionAbortedException {
+            if (completed) {
+                return;
+            }
+            if (branches.size() <= 1 && !prepared) {
+                completed = true;
+                for (Map.Entry<Database, Transaction> entry : branches.entrySet()) {
+                    run(entry.getKey(), entry.getValue()::commit);
+                }
+                return;
+            }
+            prepare();
+            logDecision(id);
+            committed.add(id);
+            completed = true;
+            log.info("2PC: global transaction " + id + " committed on " + branches.size() + " participants");
+            //第二阶段，个别参与者失败不影响其他参与者提交
+            IOException error = null;
+            for (Map.Entry<Database, Transaction> entry : branches.entrySet()) {
+                try {
+                    run(entry.getKey(), entry.getValue()::commit);
+                } catch (IOException | TransactionAbortedException e) {
+                    error = error == null ? new IOException(e) : error;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        /**
+         * 回滚全局事务，各参与者回滚本地事务
+         * @throws IOException
+         */
+        public void abort() throws IOException {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            IOException error = null;
+            for (Map.Entry<Database, Transaction> entry : branches.entrySet()) {
+                try {
+                    run(entry.getKey(), entry.getValue()::abort);
+                } catch (IOException | TransactionAbortedException e) {
+                    error = error == null ? new IOException(e) : error;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void run(Database participant, Step step) throws IOException, TransactionAbortedException {
+            try {
+                participant.execute(() -> {
+                    step.run();
+                    return null;
+                });
+            } catch (DbException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * 参与者上本地事务的提交或回滚
+     */
+    private interface Step {
+        void run() throws IOException, TransactionAbortedException;
+    }
+}